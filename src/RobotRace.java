@@ -1,4 +1,87 @@
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Frame;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+import javax.swing.JComboBox;
+import javax.swing.SwingUtilities;
+import com.jogamp.opengl.util.gl2.GLUT;
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.TextureIO;
 import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLAnimatorControl;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
 import static javax.media.opengl.GL2.*;
 import robotrace.Base;
 import robotrace.Vector;
@@ -96,17 +179,131 @@ public class RobotRace extends Base {
     /** Instance of the race track. */
     private final RaceTrack raceTrack;
     
-    /** Instance of the terrain. */
-    private final Terrain terrain;
+    /** Instance of the terrain (null = not built yet). */
+    private volatile Terrain terrain;
 
-    /** Instance of the (more realistic) landscape. */
-    private final Landscape landscape;
+    /** Instance of the (more realistic) landscape (null = not built yet). */
+    private volatile Landscape landscape;
+
+    /** Builds the terrain, the landscape and the trees. */
+    private final SceneLoader sceneLoader;
 
     /** Time difference for every robot. */
     private final double[] robotDeltaTime;
 
-    /** Time for the track. */
-    private double trackTime;
+    /** Positions of the trees (on the terrain). */
+    private final Vector[] treePositions;
+
+    /** Positions of the trees, moved off every track (null = not computed yet). */
+    private final Vector[][] trackTreePositions;
+
+    /** Scenario of the run (the defaults of the assignment if none is given). */
+    private final Scenario scenario;
+
+    /** Random numbers of the race, seeded by the scenario. */
+    private final Random raceRandom;
+
+    /** Whether the duration of the scenario has passed. */
+    private boolean scenarioFinished;
+
+    /** Whether the constructor is done, since Base starts drawing before it is. */
+    private volatile boolean constructed;
+
+    /** Whether OpenGL was initialized before the constructor was done. */
+    private boolean initializePending;
+
+    /** Names of the loaded tracks, which follow the built-in tracks. */
+    private final List<String> loadedTrackNames = new ArrayList<String>();
+
+    /** Minimum distance of a tree to the edge of the track. */
+    private static final double TREE_CLEARANCE = 1.5;
+
+    /** Whether the terrain is flattened under the track. */
+    private final boolean flattenTerrain;
+
+    /** Height of the bottom of the track walls in terrain coordinates (1.5 m lower). */
+    private static final double TRACK_BASE = 0.5;
+
+    /** Distance from the track over which the flattened terrain blends back. */
+    private static final double FLATTEN_MARGIN = 3;
+
+    /** The frame packet that is being drawn. */
+    private FramePacket frame;
+
+    /** Builds the frame packets. */
+    private final FrameBuilder frameBuilder;
+
+    /** Loads the textures in the background. */
+    private final TextureLoader textureLoader;
+
+    /** Atlas of the textures of the track and the robots. */
+    private final TextureAtlas atlas;
+
+    /** Camera modes of the views of the split screen (null = one view of gs.camMode). */
+    private final int[] cameraViews;
+
+    /** Publisher of the positions of the robots (null = disabled). */
+    private TelemetryServer telemetry;
+
+    /** Recorder of the race (null = disabled). */
+    private RaceRecorder recorder;
+
+    /** Player of a recorded race, which replaces the simulation (null = disabled). */
+    private RacePlayer player;
+
+    /** Time in the recording at animation time 0. */
+    private double replayOffset;
+
+    /** Steps of the robots in the current tick. */
+    private byte[] robotSteps;
+
+    /** Timeline to scrub through the live race. */
+    private final Timeline timeline;
+
+    /** Lanes of the robots, which change to overtake (null = fixed lanes). */
+    private LaneModel lanes;
+
+    /** Number of ticks of the recording after which the lanes are (when replaying). */
+    private long laneTick = 0;
+
+    /** Ray queries for picking and camera clearance (null = disabled). */
+    private final RayCaster rayCaster;
+
+    /** The robot that the cameras follow (-1 = none). */
+    private volatile int followedRobot = -1;
+
+    /** Floodlights along the track (null = disabled). */
+    private final Floodlights floodlights;
+
+    /** Editor of the control points of the track (null = disabled). */
+    private final TrackEditor trackEditor;
+
+    /** Steps of the robots that are drawn for the next ticks, but not taken yet. */
+    private final List<byte[]> drawnSteps = new ArrayList<byte[]>();
+
+    /** Length of a simulation step in seconds (the original frame rate). */
+    private static final double SIMULATION_STEP = 1.0 / 30.0;
+
+    /** Maximum number of simulation steps per frame, to catch up after a stall. */
+    private static final int MAX_SIMULATION_STEPS = 30;
+
+    /** Animation time up to which the race is simulated. */
+    private double simulationTime;
+
+    /** Counters of the OpenGL calls per subsystem. */
+    private final GLStatistics statistics;
+
+    /** Timings of the sections of a frame. */
+    private final Profiler profiler;
+
+    /** Frame pacing with dynamic resolution. */
+    private final FramePacer framePacer;
+
+    /** Asynchronous capture of the frames. */
+    private final FrameCapture frameCapture;
+
+    /** Renderer of high resolution stills. */
+    private final TiledRenderer tiledRenderer;
 		
 	/*========================================================================*/
 	// GLOBAL METHODS
@@ -115,7 +312,7 @@ public class RobotRace extends Base {
     /**
      * Inner product of two 3D (or 2D) vectors {@code U} and {@code V}.
      */
-    public double innerProduct(Vector U, Vector V) {
+    public static double innerProduct(Vector U, Vector V) {
         // U.V = u_x v_x + u_y v_y + u_z v_z
         return U.x() * V.x() + U.y() * V.y() + U.z() * V.z();
     }
@@ -142,7 +339,7 @@ public class RobotRace extends Base {
      * @param  n
      * @return n!
      */
-    public double faculty(double n) {
+    public static double faculty(double n) {
         if (n == 0) {
             // Base: faculty(0) = 1
             return 1;
@@ -159,7 +356,7 @@ public class RobotRace extends Base {
      * @param  k
      * @return n! / (k! (n - k)!)
      */
-    public double binomial(double n, double k) {
+    public static double binomial(double n, double k) {
         // Binomial coefficient (n, k) := n! / (k! (n - k)!)
         return faculty(n) / (faculty(k) * faculty(n - k));
     }
@@ -170,7 +367,7 @@ public class RobotRace extends Base {
      * @param  t
      * @return
      */
-    public Vector BezierCurve(double t, Vector[] controlPoints) {
+    public static Vector BezierCurve(double t, Vector[] controlPoints) {
         // The Beziercurve is the sum of the Bernstein polynomials
         Vector sum = new Vector(0, 0, 0);
         // Calculate the Beziercurve with n control points
@@ -188,7 +385,7 @@ public class RobotRace extends Base {
      * @param  controlPoints Control points for the curve
      * @return Tangent at point t
      */
-    public Vector BezierCurveTangent(double t, Vector[] controlPoints) {
+    public static Vector BezierCurveTangent(double t, Vector[] controlPoints) {
         // Calculate the tangent of the Beziercurve
         Vector sum = new Vector(0, 0, 0);
         // For a Beziercurve with n control points
@@ -209,7 +406,7 @@ public class RobotRace extends Base {
      * @param  P3 Second point.
      * @return Bezier curve at parameter t.
      */
-    public Vector getCubicBezierPnt(double t, Vector P0, Vector P1, Vector P2, Vector P3) {
+    public static Vector getCubicBezierPnt(double t, Vector P0, Vector P1, Vector P2, Vector P3) {
         // A cubic Bezier curve is just a special case of a Bezier curve
         Vector[] vectors = new Vector[4];
         vectors[0] = P0;
@@ -230,7 +427,7 @@ public class RobotRace extends Base {
      * @param  P3 Second point.
      * @return Bezier tangent at parameter t.
      */
-    public Vector getCubicBezierTng(double t, Vector P0, Vector P1, Vector P2, Vector P3) {
+    public static Vector getCubicBezierTng(double t, Vector P0, Vector P1, Vector P2, Vector P3) {
         // A cubic Bezier curve is just a special case of a Bezier curve
         Vector[] vectors = new Vector[4];
         vectors[0] = P0;
@@ -248,7 +445,7 @@ public class RobotRace extends Base {
      * @param  t Parameter.
      * @return   Value of the Bernstein polynomial at point t.
      */
-    public double BernsteinPolynomial(int i, int n, double t) {
+    public static double BernsteinPolynomial(int i, int n, double t) {
         // Bernstein[i, n](t) := binomial(n, i) * t^i * (1 - t)^(n - i)
         return binomial(n, i) * Math.pow(t, i) * Math.pow(1 - t, n - i);
     }
@@ -262,68 +459,489 @@ public class RobotRace extends Base {
      * camera, track, and terrain.
      */
     public RobotRace() {
-        
-        // Create a new array of four robots
-        robots = new Robot[4];
-        
-        // Initialize robot 0
-        robots[0] = new Robot(Material.GOLD
-            /* add other parameters that characterize this robot */);
-        
-        // Initialize robot 1
-        robots[1] = new Robot(Material.SILVER
-            /* add other parameters that characterize this robot */);
-        
-        // Initialize robot 2
-        robots[2] = new Robot(Material.WOOD
-            /* add other parameters that characterize this robot */);
 
-        // Initialize robot 3
-        robots[3] = new Robot(Material.ORANGE
-            /* add other parameters that characterize this robot */);
+        // Base already runs the animator, so first create what every frame
+        // uses, and skip the frames until the whole race is constructed
+
+        // Initialize the OpenGL call counters
+        // (enabled by running with -Drobotrace.glstats=N)
+        statistics = new GLStatistics(
+            Integer.getInteger("robotrace.glstats", 0),
+            System.getProperty("robotrace.glstats.file", "glstats.json"));
+
+        // Initialize the frame profiler
+        // (enabled by running with -Drobotrace.profiler=true, with a section
+        // per robot for at most -Drobotrace.profiler.robots=N robots)
+        profiler = new Profiler(
+            Boolean.getBoolean("robotrace.profiler"),
+            Boolean.getBoolean("robotrace.profiler.overlay"),
+            System.getProperty("robotrace.profiler.csv"),
+            Integer.getInteger("robotrace.profiler.robots", 8));
+
+        // Initialize the frame pacing
+        // (enabled by running with -Drobotrace.frametime=milliseconds)
+        framePacer = new FramePacer(
+            Double.parseDouble(System.getProperty("robotrace.frametime", "0")),
+            Double.parseDouble(System.getProperty("robotrace.frametime.minscale", "0.25")));
+
+        // Initialize the frame capture
+        // (enabled by running with -Drobotrace.capture=directory)
+        frameCapture = new FrameCapture(
+            System.getProperty("robotrace.capture"),
+            "raw".equals(System.getProperty("robotrace.capture.format")),
+            Integer.getInteger("robotrace.capture.pbos", 3),
+            Integer.getInteger("robotrace.capture.threads", 2),
+            Integer.getInteger("robotrace.capture.queue", 8));
+
+        // Initialize the renderer of high resolution stills
+        tiledRenderer = new TiledRenderer();
+
+        // Initialize the builder of the frame packets
+        // (built ahead on a worker thread by running with -Drobotrace.pipeline=true)
+        frameBuilder = new FrameBuilder(Boolean.getBoolean("robotrace.pipeline"));
+
+        // Initialize the background texture loader
+        // (enabled by running with -Drobotrace.texturecache=directory)
+        textureLoader = new TextureLoader(System.getProperty("robotrace.texturecache"));
+
+        // Initialize the texture atlas
+        // (enabled by running with -Drobotrace.atlas=true)
+        atlas = new TextureAtlas(Boolean.getBoolean("robotrace.atlas"));
+
+        // Initialize the timeline
+        // (enabled by running with -Drobotrace.timeline=seconds of history)
+        timeline = new Timeline(
+            Double.parseDouble(System.getProperty("robotrace.timeline", "0")),
+            Double.parseDouble(System.getProperty("robotrace.timeline.checkpoint", "5")),
+            Double.parseDouble(System.getProperty("robotrace.timeline.speed", "8")));
+
+        // Read the scenario, or take the defaults of the assignment
+        // (enabled by running with -Drobotrace.scenario=file)
+        String scenarioFile = System.getProperty("robotrace.scenario");
+        Scenario runScenario = null;
+        if (scenarioFile != null) {
+            try {
+                runScenario = Scenario.read(new File(scenarioFile));
+            } catch (IOException ex) {
+                System.err.println("Could not read the scenario: " + ex.getMessage());
+            }
+        }
+        if (runScenario == null) {
+            try {
+                runScenario = new Scenario(new Properties());
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        } else {
+            System.out.println("Scenario " + scenarioFile + " with seed " + runScenario.seed);
+        }
+        scenario = runScenario;
+
+        // The scene and the race draw from their own generators, such that
+        // the race does not depend on whether the scene is cached
+        Random sceneRandom = new Random(scenario.seed);
+        raceRandom = new Random(scenario.seed + 1);
 
-        // Initialize the trees
-        trees = new Tree[3];
-        // Tree with size 4.2
-        trees[0] = new Tree(4.2);
-        // Tree with size 5.0
-        trees[1] = new Tree(5.0);
-        // Tree with size 3.8
-        trees[2] = new Tree(3.8);
+        // Create the robots (four by default)
+        robots = new Robot[scenario.robotCount];
+        for (int i = 0; i < robots.length; i++) {
+            robots[i] = new Robot(scenario.getMaterial(i), sceneRandom);
+        }
 
         // Delta time for the robot (how far are they from the actual time)
-        robotDeltaTime = new double[4];
-        // Time difference for robot #1 such that at time t, robot #1 is at the location for time t + robotDeltaTime[0]
-        robotDeltaTime[0] = 0;
-        // Time difference for robot #2 such that at time t, robot #2 is at the location for time t + robotDeltaTime[1]
-        robotDeltaTime[1] = 0;
-        // Time difference for robot #3 such that at time t, robot #3 is at the location for time t + robotDeltaTime[2]
-        robotDeltaTime[2] = 0;
-        // Time difference for robot #4 such that at time t, robot #4 is at the location for time t + robotDeltaTime[3]
-        robotDeltaTime[3] = 0;
-
-        // Set the time of the track
-        trackTime = 0;
+        // Time difference for robot #i such that at time t, robot #i is at the location for time t + robotDeltaTime[i]
+        robotDeltaTime = new double[robots.length];
+
+        robotSteps = new byte[robotDeltaTime.length];
+
+        // Set the time of the simulation
+        simulationTime = 0;
         
         // Initialize the camera
         camera = new Camera();
         
-        // Initialize the race track
-        raceTrack = new RaceTrack();
-        
-        // Initialize the terrain
-        terrain = new Terrain();
+        // Resolution of the terrain and the landscape
+        // (set by running with -Drobotrace.terrain.steps=N and -Drobotrace.landscape.steps=N)
+        // (or by the scenario)
+        int terrainSteps = scenario.terrainSteps;
+        int landscapeSteps = scenario.landscapeSteps;
+        double[] treeHeights = {4.2, 5.0, 3.8};
+
+        // A forest of random trees instead, placed before the trees are
+        // built, such that the places do not depend on the scene cache
+        double[][] forestPlaces = null;
+        if (scenario.forest >= 0) {
+            // The terrain is as large as the distance field of the track
+            double size = 2 * TrackDistanceField.EXTENT;
+            int treeCount = (int)Math.round(scenario.forest * size * size);
+            treeHeights = new double[treeCount];
+            forestPlaces = new double[treeCount][];
+            for (int i = 0; i < treeCount; i++) {
+                treeHeights[i] = 3.5 + 2 * sceneRandom.nextDouble();
+                forestPlaces[i] = new double[] {
+                    (sceneRandom.nextDouble() - 0.5) * (size - 2),
+                    (sceneRandom.nextDouble() - 0.5) * (size - 2)};
+            }
+        }
+
+        // Read the scene from the cache if it is generated with the same parameters
+        // (enabled by running with -Drobotrace.scenecache=file)
+        long sceneTime = System.nanoTime();
+        SceneCache sceneCache = new SceneCache(System.getProperty("robotrace.scenecache"),
+            new RaceTrackModel().getCacheKey() + ";terrain=" + terrainSteps
+            + ";landscape=" + landscapeSteps + ";trees=" + Arrays.toString(treeHeights)
+            + (scenario.seeded ? ";seed=" + scenario.seed : ""));
+        ByteBuffer scene = null;
+        try {
+            scene = sceneCache.read();
+        } catch (IOException ex) {
+            System.err.println("Could not read the scene cache: " + ex.getMessage());
+        }
+
+        // Build the terrain, the landscape and the trees on background threads,
+        // and draw the first frames without them
+        // (enabled by running with -Drobotrace.sceneloader=true, or timed
+        // without the background threads by running with -Drobotrace.sceneloader=false)
+        trees = new Tree[treeHeights.length];
+        treePositions = new Vector[trees.length];
+        sceneLoader = new SceneLoader(System.getProperty("robotrace.sceneloader"));
+        if (scene != null) {
+            raceTrack = new RaceTrack(scene);
+            terrain = new Terrain(scene);
+            landscape = new Landscape(scene);
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = new Tree(scene);
+            }
+            sceneLoader.placeTrees(forestPlaces);
+            sceneLoader.complete(sceneCache, false, sceneTime);
+        } else {
+            // Initialize the race track, which the robots need from the first frame
+            raceTrack = new RaceTrack();
+            sceneLoader.load(terrainSteps, landscapeSteps, treeHeights, forestPlaces,
+                sceneRandom, sceneCache, sceneTime);
+        }
+
+        // Load the tracks into the slots after the built-in tracks
+        // (enabled by running with -Drobotrace.tracks=file,file,...)
+        String trackFiles = System.getProperty("robotrace.tracks");
+        if (trackFiles != null) {
+            for (String name : trackFiles.split(",")) {
+                File file = new File(name.trim());
+                try {
+                    long start = System.nanoTime();
+                    Vector[] controlPoints = TrackFormat.read(file);
+                    int trackNr = raceTrack.addTrack(controlPoints);
+                    loadedTrackNames.add(file.getName());
+                    System.out.println(String.format("Track %d: %s, %d segments in %.1f ms", trackNr,
+                        file.getName(), (controlPoints.length - 1) / 3, (System.nanoTime() - start) / 1e6));
+                } catch (IOException ex) {
+                    System.err.println("Could not load track " + file + ": " + ex.getMessage());
+                }
+            }
+        }
+        trackTreePositions = new Vector[raceTrack.getTrackCount()][];
+
+        // Start on the track of the scenario, or else on the first loaded track
+        if (scenario.trackNr >= raceTrack.getTrackCount()) {
+            System.err.println("Could not select track " + scenario.trackNr + " of the scenario");
+        } else if (scenario.trackNr >= 0) {
+            gs.trackNr = scenario.trackNr;
+        } else if (!loadedTrackNames.isEmpty()) {
+            gs.trackNr = RaceTrackModel.TRACK_COUNT;
+        }
+
+        // Flatten the terrain under the track
+        // (enabled by running with -Drobotrace.flatten=true)
+        flattenTerrain = Boolean.getBoolean("robotrace.flatten");
+
+        // Initialize the views of the split screen
+        // (enabled by running with -Drobotrace.views=0,1,2,3)
+        String views = System.getProperty("robotrace.views");
+        if (views == null) {
+            cameraViews = null;
+        } else {
+            String[] modes = views.split(",");
+            cameraViews = new int[modes.length];
+            for (int i = 0; i < modes.length; i++) {
+                cameraViews[i] = Integer.parseInt(modes[i].trim());
+            }
+        }
+
+        // Replay a recorded race, or record this race
+        // (enabled by running with -Drobotrace.replay=file or -Drobotrace.record=file)
+        initializeRecording(System.getProperty("robotrace.replay"),
+            System.getProperty("robotrace.record"));
+
+        // Let the robots change lanes to overtake
+        // (enabled by running with -Drobotrace.lanes=true)
+        lanes = Boolean.getBoolean("robotrace.lanes")
+            ? new LaneModel(robots.length, 4, 1.0, 2.0) : null;
+
+        // Pick robots with the mouse and keep the camera above the ground
+        // (enabled by running with -Drobotrace.raycast=true)
+        rayCaster = Boolean.getBoolean("robotrace.raycast") ? new RayCaster() : null;
+
+        // Light the track with floodlights every few meters
+        // (enabled by running with -Drobotrace.floodlights=spacing in meters,
+        // and reported every second with -Drobotrace.profiler=true)
+        double floodlightSpacing = Double.parseDouble(System.getProperty("robotrace.floodlights", "0"));
+        floodlights = floodlightSpacing > 0
+            ? new Floodlights(floodlightSpacing, Boolean.getBoolean("robotrace.profiler")) : null;
+
+        // Drag the control points of the track with the middle mouse button
+        // (enabled by running with -Drobotrace.edit=true)
+        trackEditor = Boolean.getBoolean("robotrace.edit") ? new TrackEditor() : null;
+
+        // Start the telemetry server
+        // (enabled by running with -Drobotrace.telemetry=port)
+        int telemetryPort = Integer.getInteger("robotrace.telemetry", -1);
+        if (telemetryPort >= 0) {
+            try {
+                telemetry = new TelemetryServer(telemetryPort,
+                    !Boolean.getBoolean("robotrace.telemetry.public"),
+                    Double.parseDouble(System.getProperty("robotrace.telemetry.rate", "60")));
+                telemetry.start();
+                System.out.println("Telemetry on port " + telemetry.getPort());
+            } catch (IOException ex) {
+                System.err.println("Could not start the telemetry server: " + ex.getMessage());
+            }
+        }
+        constructed = true;
+    }
+
+    /**
+     * Get the positions of the trees for track {@code trackNr}, where trees
+     * that are too close to the track are moved away from it.
+     */
+    private Vector[] getTreePositions(int trackNr) {
+        if (trackTreePositions[trackNr] == null) {
+            TrackDistanceField field = raceTrack.getDistanceField(trackNr);
+            Vector[] positions = new Vector[treePositions.length];
+            double[] moved = new double[2];
+            for (int i = 0; i < treePositions.length; i++) {
+                Vector position = treePositions[i];
+                if (field.distance(position.x(), position.y()) >= TREE_CLEARANCE) {
+                    positions[i] = position;
+                    continue;
+                }
+                field.pushOut(position.x(), position.y(), TREE_CLEARANCE, moved);
+                // Stand on the terrain, somewhat lower such that the tree is in the ground
+                double height = flattenTerrain
+                    ? terrain.heightAt(field, TRACK_BASE, FLATTEN_MARGIN, moved[0], moved[1])
+                    : terrain.heightAt((float)moved[0], (float)moved[1]);
+                positions[i] = new Vector(moved[0], moved[1], height - 0.5);
+            }
+            trackTreePositions[trackNr] = positions;
+        }
+        return trackTreePositions[trackNr];
+    }
+
+    /**
+     * Open recording {@code replay} to replay it (if not null), or else
+     * start recording to {@code record} (if not null).
+     */
+    private void initializeRecording(String replay, String record) {
+        double[] periods = new double[robots.length];
+        try {
+            if (replay != null) {
+                player = new RacePlayer(new File(replay));
+                if (player.getRobotCount() != robots.length) {
+                    throw new IOException("The recording has " + player.getRobotCount() + " robots");
+                }
+                // Walk just like the recorded robots
+                periods = player.getPeriods();
+                for (int i = 0; i < robots.length; i++) {
+                    robots[i].period = periods[i];
+                }
+                replayOffset = Double.parseDouble(System.getProperty("robotrace.replay.start", "0"));
+                System.out.println(String.format("Replaying %.1f s of %s", player.getDuration(), replay));
+            } else if (record != null) {
+                for (int i = 0; i < robots.length; i++) {
+                    periods[i] = robots[i].period;
+                }
+                final RaceRecorder recording = new RaceRecorder(new File(record), periods, SIMULATION_STEP);
+                recorder = recording;
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            recording.close();
+                        } catch (IOException ex) {
+                            System.err.println("Could not close the recording: " + ex.getMessage());
+                        }
+                    }
+                });
+            }
+        } catch (IOException ex) {
+            System.err.println("Could not open the recording: " + ex.getMessage());
+            player = null;
+            recorder = null;
+        }
+    }
+
+    /**
+     * Advance the simulation of the race up to animation time {@code tAnim}
+     * in steps of {@link #SIMULATION_STEP}, such that the race does not
+     * depend on the frame rate.
+     */
+    public void simulate(double tAnim) {
+        // Take the race from the recording instead
+        if (player != null) {
+            try {
+                if (lanes != null) {
+                    replayLanes(Math.min(player.getTicks(),
+                        (long)Math.floor((tAnim + replayOffset) / player.getStep())));
+                }
+                player.restore(tAnim + replayOffset, robotDeltaTime);
+            } catch (IOException ex) {
+                System.err.println("Could not replay the race: " + ex.getMessage());
+                player = null;
+            }
+            return;
+        }
+
+        // Take the race from the timeline, which keeps the history
+        if (timeline.isEnabled()) {
+            timeline.advance(tAnim);
+            return;
+        }
+
+        // The animation time is reset, so restart the simulation clock
+        if (tAnim < simulationTime - SIMULATION_STEP) {
+            simulationTime = tAnim;
+        }
+        int steps = 0;
+        while (simulationTime + SIMULATION_STEP <= tAnim) {
+            // Do not spiral when the frames are too slow: skip the remainder
+            if (++steps > MAX_SIMULATION_STEPS) {
+                simulationTime = tAnim;
+                break;
+            }
+            step(simulationTime + SIMULATION_STEP);
+            simulationTime += SIMULATION_STEP;
+        }
+    }
+
+    /**
+     * Change the lanes tick by tick up to tick {@code target} of the
+     * recording, just like they changed in the recorded race.
+     */
+    private void replayLanes(long target) throws IOException {
+        if (target < laneTick) {
+            // Start the lanes over from the start of the recording
+            lanes = new LaneModel(lanes.offsets.length, lanes.laneCount, lanes.laneWidth, lanes.gap);
+            laneTick = 0;
+        }
+        double step = player.getStep();
+        double[] deltas = new double[robotDeltaTime.length];
+        for (; laneTick < target; laneTick++) {
+            // The race after the tick (halfway the next tick, clear of rounding)
+            player.restore((laneTick + 1.5) * step, deltas);
+            stepLanes(lanes, deltas, (laneTick + 1) * step);
+        }
+    }
+
+    /**
+     * Change the lanes {@code laneState} over one tick, for the robots at time
+     * differences {@code deltas} at race time {@code time} after the tick.
+     */
+    private void stepLanes(LaneModel laneState, double[] deltas, double time) {
+        // Compare the robots by their distance along the track
+        FrameTable frames = raceTrack.getFrameTable(gs.trackNr);
+        double[] distances = new double[deltas.length];
+        for (int i = 0; i < deltas.length; i++) {
+            distances[i] = frames.getDistance(time / 20.0 + deltas[i]);
+        }
+        laneState.update(distances, frames.getLength(), SIMULATION_STEP);
+    }
 
-        // Initialize the landscape
-        landscape = new Landscape();
+    /**
+     * Simulate one tick, which ends at race time {@code time}: every robot
+     * takes a random step, which is recorded, and the lanes change.
+     */
+    private void step(double time) {
+        // Take the steps that were drawn ahead for a prediction, or draw them now
+        byte[] steps = drawnSteps.isEmpty() ? drawSteps() : drawnSteps.remove(0);
+        System.arraycopy(steps, 0, robotSteps, 0, robotSteps.length);
+        if (recorder != null) {
+            try {
+                recorder.record(robotDeltaTime, robotSteps);
+            } catch (IOException ex) {
+                System.err.println("Could not record the race: " + ex.getMessage());
+                recorder = null;
+            }
+        }
+        for (int i = 0; i < robotDeltaTime.length; i++) {
+            robotDeltaTime[i] += (robotSteps[i] & 0xff) * RaceRecorder.STEP_UNIT;
+        }
+        if (lanes != null) {
+            stepLanes(lanes, robotDeltaTime, time);
+        }
     }
     
+    /**
+     * Draw the steps of every robot for the next tick.
+     */
+    private byte[] drawSteps() {
+        byte[] steps = new byte[robotDeltaTime.length];
+        for (int i = 0; i < steps.length; i++) {
+            // Variate the time of this robot the next step
+            // (in whole units, such that the step fits in a byte of the recording)
+            steps[i] = (byte)scenario.step(i, raceRandom);
+        }
+        return steps;
+    }
+
+    /**
+     * Predict the time differences of the robots at animation time
+     * {@code tAnim} without changing the race, and change the copy
+     * {@code laneState} of the lanes (if not null) along. The steps of the
+     * ticks until then are drawn ahead, and {@link #step} takes them in the
+     * same order, such that the race is the same whether it is predicted or not.
+     */
+    private double[] predict(double tAnim, LaneModel laneState) {
+        double[] deltas = robotDeltaTime.clone();
+        if (player != null) {
+            try {
+                player.restore(tAnim + replayOffset, deltas);
+            } catch (IOException ex) {
+                // The frame is built again when the race gets there
+            }
+            return deltas;
+        }
+        // The timeline takes its ticks when the race time is known
+        if (timeline.isEnabled() || tAnim < simulationTime - SIMULATION_STEP) {
+            return deltas;
+        }
+        double time = simulationTime;
+        for (int tick = 0; time + SIMULATION_STEP <= tAnim && tick < MAX_SIMULATION_STEPS; tick++) {
+            if (tick == drawnSteps.size()) {
+                drawnSteps.add(drawSteps());
+            }
+            byte[] steps = drawnSteps.get(tick);
+            for (int i = 0; i < deltas.length; i++) {
+                deltas[i] += (steps[i] & 0xff) * RaceRecorder.STEP_UNIT;
+            }
+            time += SIMULATION_STEP;
+            if (laneState != null) {
+                stepLanes(laneState, deltas, time);
+            }
+        }
+        return deltas;
+    }
+
     /**
      * Called upon the start of the application.
      * Primarily used to configure OpenGL.
      */
     @Override
     public void initialize() {        
+        // Initialize on the first frame after the constructor instead
+        if (!constructed) {
+            initializePending = true;
+            return;
+        }
+
         // Enable blending.
         gl.glEnable(GL_BLEND);
         gl.glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
@@ -347,6 +965,19 @@ public class RobotRace extends Base {
 
         // Setup the lighting
         initializeLighting();
+
+        // Replace the textures by mip chains that are loaded in the background
+        if (textureLoader.isEnabled()) {
+            track = textureLoader.load("track.jpg", track);
+            brick = textureLoader.load("brick.jpg", brick);
+            head = textureLoader.load("head.jpg", head);
+            torso = textureLoader.load("torso.jpg", torso);
+        }
+
+        // Route all OpenGL calls (also those of GLUT) through the counters
+        if (statistics.isEnabled()) {
+            gl = statistics.install(gl);
+        }
     }
 
     /**
@@ -362,9 +993,9 @@ public class RobotRace extends Base {
     }
 
     /**
-     * Create lights.
+     * Create lights for view {@code view} of the current frame.
      */
-    public void createLights() {
+    public void createLights(int view) {
         // Define the ambient lighting
         float strength = 0.3f;
         float[] ambientColor = {strength, strength, strength, strength};
@@ -382,11 +1013,11 @@ public class RobotRace extends Base {
         // This can be done by calculating (0, 0, 1) x (C - E) (which is "left").
         // Then, "up" is (0, 0, 1).
         Vector Vup = new Vector(0, 0, 1);
-        Vector Vleft = Vup.cross(camera.center.subtract(camera.eye)).normalized();
+        Vector Vleft = Vup.cross(frame.center[view].subtract(frame.eye[view])).normalized();
         
         // Calculate the light position and convert to float array.
         // Light position = E + Vleft + Vup.
-        Vector cameralightPosition = camera.eye.add(Vleft.scale(0.1)).add(Vup.scale(0.1));
+        Vector cameralightPosition = frame.eye[view].add(Vleft.scale(0.1)).add(Vup.scale(0.1));
         float[] fCameralightPosition = {
             (float)cameralightPosition.x(),
             (float)cameralightPosition.y(),
@@ -395,9 +1026,9 @@ public class RobotRace extends Base {
         
         // Calculate the light direction. This is simply C - E.
         float[] fCameralightDirection = {
-            (float)camera.center.subtract(camera.eye).normalized().scale(40).x(),
-            (float)camera.center.subtract(camera.eye).normalized().scale(40).y(),
-            (float)camera.center.subtract(camera.eye).normalized().scale(40).z(),
+            (float)frame.center[view].subtract(frame.eye[view]).normalized().scale(40).x(),
+            (float)frame.center[view].subtract(frame.eye[view]).normalized().scale(40).y(),
+            (float)frame.center[view].subtract(frame.eye[view]).normalized().scale(40).z(),
             1f
         };
         
@@ -412,15 +1043,79 @@ public class RobotRace extends Base {
         gl.glLightf(GL_LIGHT1, GL_SPOT_EXPONENT, 100f);
         gl.glLightfv(GL_LIGHT1, GL_SPOT_DIRECTION, fCameralightDirection, 0);
         gl.glEnable(GL_LIGHT1);
+
+        // The floodlights are bound per object
+        if (floodlights != null) {
+            floodlights.beginView(frame.trackNr);
+        }
     }
     
     /**
-     * Configures the viewing transform.
+     * Configures the viewing transform. The view of every frame is set up
+     * by {@link #drawScene}, since Base also calls this on a reshape.
      */
     @Override
     public void setView() {
-        // Select part of window.
-        gl.glViewport(0, 0, gs.w, gs.h);
+        // Skip the frames until the race is constructed
+        if (!constructed) {
+            return;
+        }
+        if (initializePending) {
+            initializePending = false;
+            initialize();
+        }
+    }
+
+    /**
+     * Begin the frame, take its packet, which holds the cameras of all
+     * views, and set up the first view. Called once per displayed frame,
+     * before {@link FramePacer#endFrame}.
+     */
+    private void beginView() {
+        // Attribute the view and light setup to its own subsystem
+        statistics.select(Subsystem.VIEW);
+
+        // Start timing the view setup
+        long viewTime = profiler.start();
+
+        // Upload the textures that are loaded in the meantime
+        textureLoader.update();
+        atlas.beginFrame();
+
+        // Select part of window (or of the scaled offscreen buffer).
+        framePacer.beginFrame();
+
+        // Follow the camera script of the scenario, and end after its duration
+        gs.camMode = scenario.getCameraMode(gs.tAnim, gs.camMode);
+        if (scenario.duration > 0 && gs.tAnim >= scenario.duration && !scenarioFinished) {
+            scenarioFinished = true;
+            System.out.println(String.format("Scenario finished after %.1f s", gs.tAnim));
+            // Exit on another thread, such that the shutdown hooks can still draw
+            new Thread("Scenario end") {
+                @Override
+                public void run() {
+                    System.exit(0);
+                }
+            }.start();
+        }
+
+        // Take the packet of this frame
+        int[] camModes = cameraViews == null || tiledRenderer.isRendering()
+            ? new int[] {gs.camMode} : cameraViews;
+        frame = frameBuilder.acquire(timeline.getRaceTime(gs.tAnim), gs.trackNr, camModes);
+        applyView(0);
+        profiler.record("setView", viewTime);
+    }
+    
+    /**
+     * Set the viewport, projection, camera and lights of view {@code view}
+     * of the current frame.
+     */
+    public void applyView(int view) {
+        // Select the part of the frame of this view
+        int[] viewport = FramePacket.viewport(view, frame.camModes.length,
+            framePacer.renderWidth, framePacer.renderHeight);
+        gl.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
         
         // Set projection matrix.
         gl.glMatrixMode(GL_PROJECTION);
@@ -432,20 +1127,24 @@ public class RobotRace extends Base {
         // Then tan(1/2 alpha) = 1/2 * viewWidth / viewDistance
         // So alpha = 2 * arcTan(viewWidth / (2 * viewDistance))
         float alpha = 2f * (float)Math.atan(gs.vWidth / (2 * gs.vDist));
-        glu.gluPerspective(40, (float)gs.w / (float)gs.h, 0.1 * gs.vDist, 10 * gs.vDist);
+        if (tiledRenderer.isRendering()) {
+            // Only the part of the frustum of the current tile
+            tiledRenderer.setTileFrustum(40, 0.1 * gs.vDist, 10 * gs.vDist);
+        } else {
+            glu.gluPerspective(40, (float)viewport[2] / (float)viewport[3], 0.1 * gs.vDist, 10 * gs.vDist);
+        }
         
         // Set camera.
         gl.glMatrixMode(GL_MODELVIEW);
         gl.glLoadIdentity();
-               
-        // Update the view according to the camera mode
-        camera.update(gs.camMode);
-        glu.gluLookAt(camera.eye.x(),    camera.eye.y(),    camera.eye.z(),
-                      camera.center.x(), camera.center.y(), camera.center.z(),
-                      camera.up.x(),     camera.up.y(),     camera.up.z());
+        glu.gluLookAt(frame.eye[view].x(),    frame.eye[view].y(),    frame.eye[view].z(),
+                      frame.center[view].x(), frame.center[view].y(), frame.center[view].z(),
+                      frame.up[view].x(),     frame.up[view].y(),     frame.up[view].z());
 
         // Create the lights before doing anything else
-        createLights();
+        long lightsTime = profiler.start();
+        createLights(view);
+        profiler.record("createLights", lightsTime);
     }
     
     /**
@@ -453,6 +1152,15 @@ public class RobotRace extends Base {
      */
     @Override
     public void drawScene() {
+        // Skip the frames until the race is constructed
+        if (!constructed) {
+            return;
+        }
+        beginView();
+
+        // Start timing the frame
+        long frameTime = profiler.start();
+
         // Background color.
         gl.glClearColor(0f, 0f, 0f, 0f);
         
@@ -467,8 +1175,45 @@ public class RobotRace extends Base {
         
         gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
         
+        // Draw every view of the frame
+        for (int view = 0; view < frame.camModes.length; view++) {
+            if (view > 0) {
+                statistics.select(Subsystem.VIEW);
+                applyView(view);
+            }
+            drawView(view);
+        }
+        // Restore the viewport of the whole frame
+        gl.glViewport(0, 0, framePacer.renderWidth, framePacer.renderHeight);
+        profiler.record("drawScene", frameTime);
+
+        // Upscale the scene when it is drawn at a lower resolution
+        framePacer.endFrame();
+
+        // Capture the frame without the overlay
+        frameCapture.captureFrame();
+        textureLoader.endFrame();
+        sceneLoader.endFrame();
+
+        // Show the timings on top of the scene
+        profiler.drawOverlay();
+
+        // The frame is complete, so close the counters of this frame
+        statistics.endFrame();
+        if (floodlights != null) {
+            floodlights.endFrame();
+        }
+    }
+
+    /**
+     * Draws the scene in view {@code view} of the current frame.
+     */
+    public void drawView(int view) {
+        long time;
+
         // Draw the axis frame
         if (gs.showAxes) {
+            statistics.select(Subsystem.AXES);
             drawAxisFrame();
         }
         
@@ -484,7 +1229,7 @@ public class RobotRace extends Base {
         // Beware that V can be in the same direction as (0, 0, 1)! In that case,
         // we approach (0, 0, 1) by (0, 0, 0.999...).
         //
-        Vector V = camera.eye.add(gs.cnt.scale(-1));
+        Vector V = frame.eye[view].add(gs.cnt.scale(-1));
         Vector W;
         if (V.x() == 0 && V.y() == 0) {
             // Same direction! Use an approach for (0, 0, 1).
@@ -508,98 +1253,98 @@ public class RobotRace extends Base {
         Vector F = C.add(W.scale(-t));
         Vector G = C.add(W.scale(t));
         
-		gl.glPushMatrix();
-
-        // Update the track timer
-        trackTime = gs.tAnim / 20.0;
-
-        // Draw all 4 robots
-        for (int i = 0; i < 4; i++) {
+        // Draw all 4 robots with the transforms and poses of the packet
+        statistics.select(Subsystem.ROBOTS);
+        long robotsTime = profiler.start();
+        boolean perRobot = profiler.isPerRobot(robots.length);
+        for (int i = 0; i < robots.length; i++) {
+            if (!frame.robotVisible[view][i]) {
+                continue;
+            }
+            time = perRobot ? profiler.start() : 0;
+            if (floodlights != null) {
+                floodlights.bind(frame.robotTranslations[3 * i], frame.robotTranslations[3 * i + 1],
+                    frame.robotTranslations[3 * i + 2] + 1, 1.5, 0);
+            }
             gl.glPushMatrix();
-
-            // Calculate the time for this robot
-            double robotTrackTime = trackTime + robotDeltaTime[i];
-
-            // Calculate all directions and positions needed for the robots
-            Vector position = raceTrack.getCurvePoint(robotTrackTime, gs.trackNr);
-            // Calculate the direction of the robot
-            Vector direction = raceTrack.getCurveTangent(robotTrackTime, gs.trackNr);
-            // Calculate what is "left" for the robot
-            Vector left = direction.cross(new Vector(0, 0, 1)).normalized();
-            // Calculate what is "right" for the robot (= -left)
-            Vector right = left.scale(-1);
-
-            // Translate the robot such that it is on the desired position
-            gl.glTranslated(position.x(), position.y(), position.z());
-
-            // Go two meter to the left
-            // And translate half the robot width to the right
-            double robotWidth = 0.5;
-            gl.glTranslated(left.scale(2).x(), left.scale(2).y(), left.scale(2).z());
-            gl.glTranslated(right.scale(robotWidth).x(), right.scale(robotWidth).y(), right.scale(robotWidth).z());
-
-            // Change the robot direction
-            robots[i].setDirection(direction);
-            robots[i].draw(gs.showStick);
-
+            gl.glTranslated(frame.robotTranslations[3 * i],
+                frame.robotTranslations[3 * i + 1], frame.robotTranslations[3 * i + 2]);
+            robots[i].draw(frame.robotPoses[i], gs.showStick);
             gl.glPopMatrix();
-
-            // Translate one meter to the right for the next robot
-            gl.glTranslated(right.x(), right.y(), right.z());
-
-            // Variate the time of this robot the next time
-            robotDeltaTime[i] += Math.random() * 0.002;
+            if (perRobot) {
+                profiler.recordRobot(i, time);
+            }
         }
-
-        gl.glPopMatrix();
+        profiler.record("robots", robotsTime);
 
         // Reset the color
         applyMaterial(Material.BLACK);
         
         // Draw race track
-        raceTrack.draw(gs.trackNr);
+        statistics.select(Subsystem.TRACK);
+        time = profiler.start();
+        raceTrack.draw(frame.trackNr);
+        if (trackEditor != null) {
+            trackEditor.draw(frame.trackNr);
+        }
+        if (floodlights != null) {
+            floodlights.unbind();
+        }
+        profiler.record("raceTrack", time);
         
         // Draw terrain
         // Move 1.5 m lower
+        statistics.select(Subsystem.TERRAIN);
         gl.glTranslated(0, 0, -1.5);
-        terrain.draw();
+        time = profiler.start();
+        Terrain ground = terrain;
+        if (ground != null) {
+            ground.draw(frame.trackNr);
+        }
+        profiler.record("terrain", time);
 
         // Draw trees on the terrain
+        statistics.select(Subsystem.TREES);
+        time = profiler.start();
         
-        // First tree
-        gl.glPushMatrix();
-        // Translate such that is on the right position and right height
-        // and move it somewhat lower such that it is in the ground
-        gl.glTranslated(0, -3, terrain.heightAt(0f, 3f) - 0.5);
-        trees[0].draw();
-        gl.glPopMatrix();
-
-        // Second tree
-        gl.glPushMatrix();
-        // Translate such that is on the right position and right height
-        // and move it somewhat lower such that it is in the ground
-        gl.glTranslated(12f, -10f, terrain.heightAt(12f, -10f) - 0.5);
-        trees[1].draw();
-        gl.glPopMatrix();
-        
-        // Last tree
-        gl.glPushMatrix();
-        // Translate such that is on the right position and right height
-        // and move it somewhat lower such that it is in the ground
-        gl.glTranslated(-15, 15, terrain.heightAt(-15f, 15f) - 0.5);
-        trees[2].draw();
-        gl.glPopMatrix();
+        for (int i = 0; i < trees.length; i++) {
+            if (!frame.treeVisible[view][i]) {
+                continue;
+            }
+            Vector position = getTreePositions(frame.trackNr)[i];
+            if (floodlights != null) {
+                // The trees are 1.5 m lower, like the terrain
+                floodlights.bind(position.x(), position.y(), position.z() - 1.5 + trees[i].height / 2,
+                    trees[i].height / 2, -1.5);
+            }
+            gl.glPushMatrix();
+            gl.glTranslated(position.x(), position.y(), position.z());
+            trees[i].draw();
+            gl.glPopMatrix();
+        }
+        if (floodlights != null) {
+            floodlights.unbind();
+        }
+        profiler.record("trees", time);
 
         // Recover from the 1.5 m translation of the terrain
         gl.glTranslated(0, 0, 1.5);
 
         // Draw the landscape
-        gl.glPushMatrix();
-        gl.glTranslated(0, 0, -2);
-        landscape.draw();
-        gl.glPopMatrix();
+        statistics.select(Subsystem.LANDSCAPE);
+        time = profiler.start();
+        Landscape surroundings = landscape;
+        if (surroundings != null) {
+            gl.glPushMatrix();
+            gl.glTranslated(0, 0, -2);
+            surroundings.draw();
+            gl.glPopMatrix();
+        }
+        profiler.record("landscape", time);
 
         // Draw outer sphere
+        statistics.select(Subsystem.SKY);
+        time = profiler.start();
         // Set a blueish color for the atmosphere
         gl.glColor4d(135.0 / 256.0, 206.0 / 256.0, 250.0 / 256.0, 1.0);
         // Draw the atmosphere
@@ -607,6 +1352,7 @@ public class RobotRace extends Base {
 
         // Reset color
         gl.glColor4d(0, 0, 0, 1);
+        profiler.record("sky", time);
     }
     
     
@@ -695,59 +1441,229 @@ public class RobotRace extends Base {
     }
     
     /**
-     * Materials that can be used for the robots.
+     * Find the OpenGL drawable of the window that is created by {@link Base}.
+     *
+     * @return The drawable, or null if the window is not (yet) shown.
      */
-    public enum Material {
-			
-		/**
-		 * Black material for testing purposes.
-		 */
-		BLACK (
-            new float[] {0f, 0f, 0f, 0f},
-            new float[] {0f, 0f, 0f, 0f},
-            new float[] {0f, 0f, 0f, 0f},
-            0f),
-        
-        /** 
-         * Gold material properties.
-         * Modify the default values to make it look like gold.
-         */
-        GOLD (
-            new float[] {0.75164f, 0.60648f, 0.22648f, 1.0f},
-            new float[] {0.628281f, 0.555802f, 0.366065f, 1.0f},
-            new float[] {0.24725f, 0.1995f, 0.1045f, 1f},
-            4f),
-        
-        /**
-         * Silver material properties.
-         * Modify the default values to make it look like silver.
-         */
-        SILVER (
-            new float[] {0.50754f, 0.50754f, 0.50754f, 1.0f},
-            new float[] {0.508273f, 0.508273f, 0.508273f, 1.0f},
-            new float[] {0.19225f, 0.19225f, 0.19225f, 1f},
-            4f),
-        
-        /** 
-         * Wood material properties.
-         * Modify the default values to make it look like wood.
-         */
-        WOOD (
-            new float[] {1.0f, 1.0f, 1.0f, 1.0f},
-            new float[] {0.3f, 0.1f, 0.1f, 1.0f},
-            new float[] {0.3f, 0.106f, 0f, 1.0f},
-            3f),
-        
-        /**
-         * Orange material properties.
-         * Modify the default values to make it look like orange.
-         */
-        ORANGE (
-            new float[] {1.0f, 1.0f, 1.0f, 1.0f},
-            new float[] {1.0f, 0.6f, 0.0f, 1.0f},
-            new float[] {0.25f, 0.25f, 0.25f, 1.0f},
-            1f),
-
+    public GLAutoDrawable findWindowDrawable() {
+        for (Frame frame : Frame.getFrames()) {
+            GLAutoDrawable drawable = findDrawable(frame);
+            if (drawable != null) {
+                return drawable;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Search {@code component} and its children for an OpenGL drawable.
+     */
+    private GLAutoDrawable findDrawable(Component component) {
+        if (component instanceof GLAutoDrawable) {
+            return (GLAutoDrawable)component;
+        }
+        if (component instanceof Container) {
+            for (Component child : ((Container)component).getComponents()) {
+                GLAutoDrawable drawable = findDrawable(child);
+                if (drawable != null) {
+                    return drawable;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the OpenGL drawable of the window. The window is shown
+     * asynchronously, so wait for it (at most 5 seconds).
+     */
+    public GLAutoDrawable waitForWindowDrawable() {
+        GLAutoDrawable drawable = findWindowDrawable();
+        for (int i = 0; drawable == null && i < 100; i++) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            drawable = findWindowDrawable();
+        }
+        return drawable;
+    }
+
+    /**
+     * Add the loaded tracks to the track selection of the window, and select
+     * the current track.
+     */
+    public void showTracks() {
+        waitForWindowDrawable();
+        for (Frame window : Frame.getFrames()) {
+            final JComboBox<?> combo = findTrackCombo(window);
+            if (combo != null) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public void run() {
+                        JComboBox<Object> items = (JComboBox<Object>)combo;
+                        for (String name : loadedTrackNames) {
+                            items.addItem(name);
+                        }
+                        items.setSelectedIndex(gs.trackNr);
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    /**
+     * Search {@code component} and its children for the track selection,
+     * which is the combo box with the built-in tracks.
+     */
+    private JComboBox<?> findTrackCombo(Component component) {
+        if (component instanceof JComboBox) {
+            JComboBox<?> combo = (JComboBox<?>)component;
+            if (combo.getItemCount() == RaceTrackModel.TRACK_COUNT
+                    && "Custom track".equals(combo.getItemAt(RaceTrackModel.TRACK_COUNT - 1))) {
+                return combo;
+            }
+        }
+        if (component instanceof Container) {
+            for (Component child : ((Container)component).getComponents()) {
+                JComboBox<?> combo = findTrackCombo(child);
+                if (combo != null) {
+                    return combo;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop the animator of the window, such that it no longer draws frames.
+     */
+    public void stopWindowAnimator() {
+        GLAutoDrawable drawable = waitForWindowDrawable();
+        if (drawable != null && drawable.getAnimator() != null) {
+            GLAnimatorControl animator = drawable.getAnimator();
+            animator.stop();
+        }
+    }
+
+    /**
+     * Create an offscreen drawable without vsync.
+     *
+     * @param width   Width of the drawable.
+     * @param height  Height of the drawable.
+     * @param pbuffer Whether a pbuffer is used instead of an FBO.
+     */
+    public GLOffscreenAutoDrawable createOffscreenDrawable(int width, int height, boolean pbuffer) {
+        GLProfile profile = GLProfile.get(GLProfile.GL2);
+        GLCapabilities capabilities = new GLCapabilities(profile);
+        capabilities.setOnscreen(false);
+        capabilities.setFBO(!pbuffer);
+        capabilities.setPBuffer(pbuffer);
+        capabilities.setDoubleBuffered(false);
+        return GLDrawableFactory.getFactory(profile)
+            .createOffscreenAutoDrawable(null, capabilities, null, width, height);
+    }
+
+    /**
+     * Prepare the context of an offscreen drawable: load the textures for
+     * it and configure OpenGL, just like {@link Base} does for the window.
+     */
+    public void initializeOffscreen(GLAutoDrawable drawable) {
+        gl = drawable.getGL().getGL2();
+        // Do not wait for a vertical refresh
+        gl.setSwapInterval(0);
+        // The texture loader starts with placeholders instead
+        if (!textureLoader.isEnabled()) {
+            track = loadTexture("track.jpg");
+            brick = loadTexture("brick.jpg");
+            head = loadTexture("head.jpg");
+            torso = loadTexture("torso.jpg");
+        }
+        initialize();
+    }
+
+    /**
+     * Load a texture for the current context, just like the {@link Base} class
+     * does for the window: first from the working folder, then from /src.
+     *
+     * @param  file Name of the texture file.
+     * @return      The texture, or null if it could not be loaded.
+     */
+    public Texture loadTexture(String file) {
+        Texture result = null;
+        try {
+            result = TextureIO.newTexture(new File(file), false);
+        } catch (Exception e1) {
+            try {
+                result = TextureIO.newTexture(new File("src/" + file), false);
+            } catch (Exception e2) {
+                System.err.println("Could not load " + file);
+            }
+        }
+        if (result != null) {
+            result.enable(gl);
+        }
+        return result;
+    }
+    
+    /**
+     * Materials that can be used for the robots.
+     */
+    public enum Material {
+			
+		/**
+		 * Black material for testing purposes.
+		 */
+		BLACK (
+            new float[] {0f, 0f, 0f, 0f},
+            new float[] {0f, 0f, 0f, 0f},
+            new float[] {0f, 0f, 0f, 0f},
+            0f),
+        
+        /** 
+         * Gold material properties.
+         * Modify the default values to make it look like gold.
+         */
+        GOLD (
+            new float[] {0.75164f, 0.60648f, 0.22648f, 1.0f},
+            new float[] {0.628281f, 0.555802f, 0.366065f, 1.0f},
+            new float[] {0.24725f, 0.1995f, 0.1045f, 1f},
+            4f),
+        
+        /**
+         * Silver material properties.
+         * Modify the default values to make it look like silver.
+         */
+        SILVER (
+            new float[] {0.50754f, 0.50754f, 0.50754f, 1.0f},
+            new float[] {0.508273f, 0.508273f, 0.508273f, 1.0f},
+            new float[] {0.19225f, 0.19225f, 0.19225f, 1f},
+            4f),
+        
+        /** 
+         * Wood material properties.
+         * Modify the default values to make it look like wood.
+         */
+        WOOD (
+            new float[] {1.0f, 1.0f, 1.0f, 1.0f},
+            new float[] {0.3f, 0.1f, 0.1f, 1.0f},
+            new float[] {0.3f, 0.106f, 0f, 1.0f},
+            3f),
+        
+        /**
+         * Orange material properties.
+         * Modify the default values to make it look like orange.
+         */
+        ORANGE (
+            new float[] {1.0f, 1.0f, 1.0f, 1.0f},
+            new float[] {1.0f, 0.6f, 0.0f, 1.0f},
+            new float[] {0.25f, 0.25f, 0.25f, 1.0f},
+            1f),
+
         /**
          * Red material properties.
          * Modify the default values to make it look like red.
@@ -822,9 +1738,9 @@ public class RobotRace extends Base {
     }
     
     /**
-     * Represents a Robot, to be implemented according to the Assignments.
+     * Pose and running motion of a robot, without any OpenGL calls.
      */
-    private class Robot {
+    static class RobotModel {
 			
         // Angle for the left upper arm
 		public double angleLUpperArm = 180.0;
@@ -862,23 +1778,48 @@ public class RobotRace extends Base {
         public double angleTorso = 0;
 
         // The direction angle where the robot is looking to
-        private double directionAngle = 0;
+        protected double directionAngle = 0;
 
         // The period for the running animation
-        private double period = 1;
-        
-        /** The material from which this robot is built. */
-        private final Material material;
+        protected double period = 1;
         
         /**
-         * Constructs the robot with initial parameters.
+         * Constructs the robot model with a slightly random period.
          */
-        public Robot(Material material
-            /* add other parameters that characterize this robot */) {
-            this.material = material;
+        public RobotModel() {
+            this(new Random());
+        }
+
+        /**
+         * Constructs the robot model with a period from {@code random}.
+         */
+        public RobotModel(Random random) {
             // Add some random integer to the period, to variate the animations
             // of the robots
-            period = period + Math.random() / 10.0;
+            period = period + random.nextDouble() / 10.0;
+        }
+
+        /**
+         * Constructs a copy of the pose of {@code other}.
+         */
+        public RobotModel(RobotModel other) {
+            angleLUpperArm = other.angleLUpperArm;
+            angleLLowerArm = other.angleLLowerArm;
+            angleLHand = other.angleLHand;
+            angleRUpperArm = other.angleRUpperArm;
+            angleRLowerArm = other.angleRLowerArm;
+            angleRHand = other.angleRHand;
+            angleLUpperLeg = other.angleLUpperLeg;
+            angleLLowerLeg = other.angleLLowerLeg;
+            angleLFoot = other.angleLFoot;
+            angleRUpperLeg = other.angleRUpperLeg;
+            angleRLowerLeg = other.angleRLowerLeg;
+            angleRFoot = other.angleRFoot;
+            angleHead = other.angleHead;
+            angleNeck = other.angleNeck;
+            angleTorso = other.angleTorso;
+            directionAngle = other.directionAngle;
+            period = other.period;
         }
 
         /**
@@ -887,23 +1828,26 @@ public class RobotRace extends Base {
          * @param V Vector the robot looks with.
          */
         public void setDirection(Vector V) {
-            // Let V be the direction vector
-            // Then (0, 1, 0).V = |U|*|V|*cos(alpha)
-            // So, alpha = ArcCos((0, 1, 0).V/(|U|*|V|))
-            // But, alpha needs to be within -90 <= alpha < 90
-            // So in other cases, we need to invert the direction angle
-            Vector U = new Vector(0, 1, 0);
-            double cosAlpha = V.dot(U) / (U.length() * V.length());
-            double directionRadians = Math.acos(cosAlpha);
-            this.directionAngle = 360 * directionRadians / (2 * Math.PI);
-            if (V.x() > 0) {
-                this.directionAngle = -this.directionAngle;
-            }
+            setDirection(V.x(), V.y());
         }
 
-        public void update() {
+        /**
+         * Set the direction of the robot to the direction (x, y) in the XY-plane.
+         */
+        public void setDirection(double x, double y) {
+            // The angle alpha between (0, 1) and (x, y), counterclockwise
+            // (the same as ArcCos((0, 1).V/|V|), inverted if x > 0)
+            this.directionAngle = Math.toDegrees(Math.atan2(-x, y));
+        }
+
+        /**
+         * Update the motion to animation time {@code tAnim}.
+         *
+         * @param tAnim Time since the start of the animation in seconds.
+         */
+        public void update(double tAnim) {
             // Get the current time
-            double time = gs.tAnim % period;
+            double time = tAnim % period;
             // Get the relative time from the period
             // Such that t in [0, 1)
             double t = time / period;
@@ -930,34 +1874,49 @@ public class RobotRace extends Base {
             // Same for the left lower leg
             angleLLowerLeg = -80 - angleRLowerLeg;
         }
+    }
+
+    /**
+     * Represents a Robot, to be implemented according to the Assignments.
+     */
+    private class Robot extends RobotModel {
+        
+        /** The material from which this robot is built. */
+        private final Material material;
         
         /**
-         * Draws this robot (as a {@code stickfigure} if specified).
+         * Constructs the robot with initial parameters.
          */
-        public void draw(boolean stickFigure) {
-            // Update the motion
-            update();
+        public Robot(Material material, Random random
+            /* add other parameters that characterize this robot */) {
+            super(random);
+            this.material = material;
+        }
 
+        /**
+         * Draws this robot in pose {@code pose} (as a {@code stickfigure} if specified).
+         */
+        public void draw(RobotModel pose, boolean stickFigure) {
             // Apply the robot materials
 			applyMaterial(this.material);
 
             // Rotate
-            gl.glRotated(this.directionAngle, 0, 0, 1);
+            gl.glRotated(pose.directionAngle, 0, 0, 1);
 			
 			// Left leg
 			gl.glTranslatef(-0.2f, 0f, 0.8f);
-			this.drawLeg(stickFigure, this.angleLUpperLeg, this.angleLLowerLeg, this.angleLFoot);
+			this.drawLeg(stickFigure, pose.angleLUpperLeg, pose.angleLLowerLeg, pose.angleLFoot);
 			gl.glTranslatef(0.2f, 0f, -0.8f);
 			
 			// Right leg
 			gl.glTranslatef(0.2f, 0f, 0.8f);
-			this.drawLeg(stickFigure, this.angleRUpperLeg, this.angleRLowerLeg, this.angleRFoot);
+			this.drawLeg(stickFigure, pose.angleRUpperLeg, pose.angleRLowerLeg, pose.angleRFoot);
 			gl.glTranslatef(-0.2f, 0f, -0.8f);
 			
 			// Torso
             Vector side = new Vector(1, 0, 0);
 			gl.glTranslatef(0f, 0f, 0.8f);
-            gl.glRotated(this.angleTorso, side.x(), side.y(), side.z());
+            gl.glRotated(pose.angleTorso, side.x(), side.y(), side.z());
 			this.drawTorso(stickFigure);
 
             // Head
@@ -967,22 +1926,22 @@ public class RobotRace extends Base {
 
             // Left arm
             gl.glTranslatef(-0.3f, 0f, 0.7f);
-            this.drawArm(stickFigure, this.angleLUpperArm, this.angleLLowerArm, this.angleLHand);
+            this.drawArm(stickFigure, pose.angleLUpperArm, pose.angleLLowerArm, pose.angleLHand);
             gl.glTranslatef(0.3f, 0f, -0.7f);
             
             // Right arm
             gl.glTranslatef(0.3f, 0f, 0.7f);
-            this.drawArm(stickFigure, this.angleRUpperArm, this.angleRLowerArm, this.angleRHand);
+            this.drawArm(stickFigure, pose.angleRUpperArm, pose.angleRLowerArm, pose.angleRHand);
             gl.glTranslatef(-0.3f, 0f, -0.7f);
 
             // Rotate back (torso)
-            gl.glRotated(-this.angleTorso, side.x(), side.y(), side.z());
+            gl.glRotated(-pose.angleTorso, side.x(), side.y(), side.z());
 
             // Translate back (torso)
 			gl.glTranslatef(0f, 0f, -0.8f);
 
             // Rotate back
-            gl.glRotated(this.directionAngle, 0, 0, -1);
+            gl.glRotated(pose.directionAngle, 0, 0, -1);
         }
 				
 		public void drawHead(boolean stickFigure) {
@@ -1001,19 +1960,19 @@ public class RobotRace extends Base {
 				glut.glutSolidCylinder(0.05f, 0.1f + 0.15f / 2.0f, 30, 30);
 				
 				// Head
-                head.bind(gl);
+                atlas.bind(head);
                 gl.glColor4d(1, 1, 1, 1);
                 gl.glBegin(GL_QUAD_STRIP);
 
                 // Front (draw the face! :))
                 gl.glNormal3d(0, 1, 0);
-                gl.glTexCoord2d(0, 0);
+                atlas.texCoord(0, 0);
                 gl.glVertex3d(-0.15, 0.10, 0.1);
-                gl.glTexCoord2d(1, 0);
+                atlas.texCoord(1, 0);
                 gl.glVertex3d(0.15, 0.10, 0.1);
-                gl.glTexCoord2d(0, 1);
+                atlas.texCoord(0, 1);
                 gl.glVertex3d(-0.15, 0.10, 0.5);
-                gl.glTexCoord2d(1, 1);
+                atlas.texCoord(1, 1);
                 gl.glVertex3d(0.15, 0.10, 0.5);
 
                 gl.glColor4f(0, 0, 0, 1);
@@ -1075,18 +2034,18 @@ public class RobotRace extends Base {
 				gl.glScalef(0.6f, 0.2f, 0.7f);
 				
                 // Torso
-                torso.bind(gl);
+                atlas.bind(torso);
                 gl.glColor4d(1, 1, 1, 1);
                 gl.glBegin(GL_QUAD_STRIP);
                 // Front (draw the texture on the torso)
                 gl.glNormal3d(0, 1, 0);
-                gl.glTexCoord2d(0, 0);
+                atlas.texCoord(0, 0);
                 gl.glVertex3d(-0.5, 0.5, -0.5);
-                gl.glTexCoord2d(1, 0);
+                atlas.texCoord(1, 0);
                 gl.glVertex3d(0.5, 0.5, -0.5);
-                gl.glTexCoord2d(0, 1);
+                atlas.texCoord(0, 1);
                 gl.glVertex3d(-0.5, 0.5, 0.5);
-                gl.glTexCoord2d(1, 1);
+                atlas.texCoord(1, 1);
                 gl.glVertex3d(0.5, 0.5, 0.5);
 
                 gl.glColor4f(0, 0, 0, 1);
@@ -1246,12 +2205,22 @@ public class RobotRace extends Base {
         
         /** The up vector. */
         public Vector up = Vector.Z;
+
+        /** Frame of the track (tangent, left and up) at the followed robot. */
+        private final double[] orientation = new double[9];
         
+        /** Time of the track, and the time difference of every robot. */
+        private double trackTime;
+        private double[] deltas;
+
         /**
          * Updates the camera viewpoint and direction based on the
-         * selected camera mode.
+         * selected camera mode, for the robots at time differences
+         * {@code deltas} from track time {@code trackTime}.
          */
-        public void update(int mode) {
+        public void update(int mode, double tAnim, double trackTime, double[] deltas) {
+            this.trackTime = trackTime;
+            this.deltas = deltas;
             // Helicopter mode
             if (1 == mode) {  
                 setHelicopterMode();
@@ -1269,7 +2238,7 @@ public class RobotRace extends Base {
                 // Switch every 4 seconds from camera
                 // The camera modes are in this order:
                 double period = 4;
-                double timer = gs.tAnim % (3 * period);
+                double timer = tAnim % (3 * period);
                 if (timer <= period) {
                     setHelicopterMode();
                 } else if (timer <= 2 * period) {
@@ -1317,8 +2286,19 @@ public class RobotRace extends Base {
             );
             
             // Thus, eye point E = C + V
-            this.eye = gs.cnt.add(V);
-            this.center = gs.cnt;
+            // (around the followed robot, if any)
+            Vector C = gs.cnt;
+            int robot = followedRobot;
+            if (robot >= 0) {
+                C = raceTrack.getCurvePoint(trackTime + deltas[robot], gs.trackNr);
+            }
+            this.eye = C.add(V);
+            this.center = C;
+
+            // Do not look through the hills or from below the ground
+            if (rayCaster != null && sceneLoader.isReady()) {
+                this.eye = rayCaster.keepAboveGround(gs.trackNr, C, this.eye);
+            }
         }
 
         /**
@@ -1337,15 +2317,17 @@ public class RobotRace extends Base {
         private void setHelicopterMode() {
             // First find out what the avarage position of the robots is
             double sum = 0;
-            for (int i = 0; i < 4; i++) {
-                sum += robotDeltaTime[i];
+            for (int i = 0; i < deltas.length; i++) {
+                sum += deltas[i];
             }
-            double avgDeltaTime = sum / 4;
-            double time = trackTime + avgDeltaTime;
+            double avgDeltaTime = sum / deltas.length;
+            int robot = followedRobot;
+            double time = trackTime + (robot >= 0 ? deltas[robot] : avgDeltaTime);
 
             // Then go a little to the back and a little upward
             Vector center = raceTrack.getCurvePoint(time, gs.trackNr);
-            Vector tangent = raceTrack.getCurveTangent(time, gs.trackNr).normalized();
+            raceTrack.getFrameTable(gs.trackNr).getFrame(time, orientation, 0);
+            Vector tangent = new Vector(orientation[0], orientation[1], orientation[2]);
             this.center = center;
             Vector eye = center.subtract(tangent.scale(8)).add(new Vector(0, 0, 8));
             this.eye = eye;
@@ -1358,15 +2340,16 @@ public class RobotRace extends Base {
         private void setMotorCycleMode() {
             // Find the leading robot
             double max = 0;
-            for (int i = 0; i < 4; i++) {
-                if (robotDeltaTime[i] > max) max = robotDeltaTime[i];
+            for (int i = 0; i < deltas.length; i++) {
+                if (deltas[i] > max) max = deltas[i];
             }
-            double time = trackTime + max;
+            int robot = followedRobot;
+            double time = trackTime + (robot >= 0 ? deltas[robot] : max);
 
             // Now go to the left
             Vector center = raceTrack.getCurvePoint(time, gs.trackNr);
-            Vector tangent = raceTrack.getCurveTangent(time, gs.trackNr).normalized();
-            Vector left = tangent.cross(up).normalized().scale(5);
+            raceTrack.getFrameTable(gs.trackNr).getFrame(time, orientation, 0);
+            Vector left = new Vector(orientation[3], orientation[4], orientation[5]).scale(5);
             this.eye = center.add(left.scale(1.1)).add(new Vector(0, 0, 2));
             this.center = center;
         }
@@ -1378,14 +2361,16 @@ public class RobotRace extends Base {
         private void setFirstPersonMode() {
             // Find the last robot
             double min = -1;
-            for (int i = 0; i < 4; i++) {
-                if (robotDeltaTime[i] < min || min == -1) min = robotDeltaTime[i];
+            for (int i = 0; i < deltas.length; i++) {
+                if (deltas[i] < min || min == -1) min = deltas[i];
             }
-            double time = trackTime + min;
+            int robot = followedRobot;
+            double time = trackTime + (robot >= 0 ? deltas[robot] : min);
 
             // Now go a bit forward and upward
             Vector position = raceTrack.getCurvePoint(time, gs.trackNr);
-            Vector tangent = raceTrack.getCurveTangent(time, gs.trackNr).normalized();
+            raceTrack.getFrameTable(gs.trackNr).getFrame(time, orientation, 0);
+            Vector tangent = new Vector(orientation[0], orientation[1], orientation[2]);
             this.eye = position.add(new Vector(0, 0, 1.8));
             this.center = this.eye.add(tangent.scale(4)).add(new Vector(0, 0, -0.3));
         }
@@ -1393,37 +2378,278 @@ public class RobotRace extends Base {
     }
     
     /**
-     * Implementation of a race track that is made from Bezier segments.
+     * Curves of the race tracks that are made from Bezier segments,
+     * without any OpenGL calls.
      */
-    private class RaceTrack {
+    static class RaceTrackModel {
         
         /** Array with control points for the O-track. */
-        private Vector[] controlPointsOTrack;
+        protected Vector[] controlPointsOTrack;
         
         /** Array with control points for the L-track. */
-        private Vector[] controlPointsLTrack;
+        protected Vector[] controlPointsLTrack;
         
         /** Array with control points for the C-track. */
-        private Vector[] controlPointsCTrack;
+        protected Vector[] controlPointsCTrack;
         
         /** Array with control points for the custom track. */
-        private Vector[] controlPointsCustomTrack;
+        protected Vector[] controlPointsCustomTrack;
 
         /** Size of the tracks */
-        private double trackSize = 4.0;
+        protected double trackSize = 4.0;
+
+        /** Number of parts in which a track is drawn */
+        protected int steps = 200;
+
+        /** Number of values per track part, see {@link #getTrackPart}. */
+        public static final int TRACK_PART_SIZE = 50;
+
+        /** Number of built-in tracks, after which the loaded tracks follow. */
+        public static final int TRACK_COUNT = 5;
+
+        /** Number of coefficients of a segment: a, b, c and d of x, y and z. */
+        public static final int COEFFICIENT_SIZE = 12;
+
+        /** Power-basis coefficients of the segments of every track (null = not computed yet). */
+        protected double[][] coefficients = new double[TRACK_COUNT][];
+
+        /** Control points of the loaded tracks. */
+        protected Vector[][] loadedTracks = new Vector[0][];
+
+        /** Geometry of all parts of every track (null = not computed yet). */
+        protected double[][] trackParts = new double[TRACK_COUNT][];
 
-        private int steps = 200;
+        /** Rotation-minimizing frames of every track (null = not computed yet). */
+        protected FrameTable[] frameTables = new FrameTable[TRACK_COUNT];
+
+        /** Signed distance fields of the footprints of every track (null = not computed yet). */
+        protected TrackDistanceField[] distanceFields = new TrackDistanceField[TRACK_COUNT];
+
+        /** Number of texture repeats along the side walls of every track (0 = not computed yet). */
+        protected int[] textureRepeats = new int[TRACK_COUNT];
         
         /**
-         * Constructs the race track, sets up display lists.
+         * Constructs the control points of all tracks.
          */
-        public RaceTrack() {
+        public RaceTrackModel() {
             initOTrack();
             initLTrack();
             initCTrack();
             initCustomTrack();
         }
 
+        /**
+         * Constructs the control points of all tracks, and reads the
+         * geometry of their parts from the scene cache.
+         */
+        public RaceTrackModel(ByteBuffer in) {
+            this();
+            steps = in.getInt();
+            for (int trackNr = 0; trackNr < TRACK_COUNT; trackNr++) {
+                trackParts[trackNr] = SceneCache.readGrid(in, 1, steps * TRACK_PART_SIZE)[0];
+            }
+        }
+
+        /**
+         * Get the parameters of the geometry that is written to the scene
+         * cache: the parts per track, the track size and the control points.
+         */
+        public String getCacheKey() {
+            StringBuilder key = new StringBuilder("steps=" + steps + ";size=" + trackSize);
+            for (int trackNr = 0; trackNr < TRACK_COUNT; trackNr++) {
+                key.append(";track").append(trackNr).append('=')
+                    .append(Arrays.toString(getControlPoints(trackNr)));
+            }
+            return key.toString();
+        }
+
+        /**
+         * Write the geometry of the parts of all tracks to the scene cache.
+         */
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(steps);
+            for (int trackNr = 0; trackNr < TRACK_COUNT; trackNr++) {
+                SceneCache.writeGrid(out, new double[][] {getTrackParts(trackNr)});
+            }
+        }
+
+        /**
+         * Get the geometry of all {@link #steps} parts of track {@code trackNr},
+         * every part as written by {@link #getTrackPart}.
+         */
+        public double[] getTrackParts(int trackNr) {
+            if (trackParts[trackNr] == null) {
+                double[] parts = new double[steps * TRACK_PART_SIZE];
+                for (int i = 0; i < steps; i++) {
+                    getTrackPart(i / (float)steps, (i + 1) / (float)steps, trackNr,
+                        parts, i * TRACK_PART_SIZE);
+                }
+                trackParts[trackNr] = parts;
+            }
+            return trackParts[trackNr];
+        }
+
+        /**
+         * Get the table of rotation-minimizing frames of track {@code trackNr}.
+         */
+        public FrameTable getFrameTable(int trackNr) {
+            if (frameTables[trackNr] == null) {
+                frameTables[trackNr] = new FrameTable(this, trackNr);
+            }
+            return frameTables[trackNr];
+        }
+
+        /**
+         * Get the number of texture repeats along the side walls of track
+         * {@code trackNr}, which is kept when the track is edited.
+         */
+        public int getTextureRepeat(int trackNr) {
+            if (textureRepeats[trackNr] == 0) {
+                textureRepeats[trackNr] = Math.max(1, (int)((float)getFrameTable(trackNr).getLength() / 1.5));
+            }
+            return textureRepeats[trackNr];
+        }
+
+        /**
+         * Get the number of tracks, including the loaded tracks.
+         */
+        public int getTrackCount() {
+            return TRACK_COUNT + loadedTracks.length;
+        }
+
+        /**
+         * Add a track with {@code controlPoints}, for example read by
+         * {@link TrackFormat}, and get its track number.
+         */
+        public int addTrack(Vector[] controlPoints) {
+            int trackNr = getTrackCount();
+            loadedTracks = Arrays.copyOf(loadedTracks, loadedTracks.length + 1);
+            loadedTracks[loadedTracks.length - 1] = controlPoints;
+            trackParts = Arrays.copyOf(trackParts, trackNr + 1);
+            frameTables = Arrays.copyOf(frameTables, trackNr + 1);
+            distanceFields = Arrays.copyOf(distanceFields, trackNr + 1);
+            textureRepeats = Arrays.copyOf(textureRepeats, trackNr + 1);
+            coefficients = Arrays.copyOf(coefficients, trackNr + 1);
+            return trackNr;
+        }
+
+        /**
+         * Get the control points of track {@code trackNr} (null for the test track).
+         */
+        public Vector[] getControlPoints(int trackNr) {
+            if (trackNr >= TRACK_COUNT && trackNr < getTrackCount()) {
+                return loadedTracks[trackNr - TRACK_COUNT];
+            } else if (1 == trackNr) {
+                return controlPointsOTrack;
+            } else if (2 == trackNr) {
+                return controlPointsLTrack;
+            } else if (3 == trackNr) {
+                return controlPointsCTrack;
+            } else if (4 == trackNr) {
+                return controlPointsCustomTrack;
+            }
+            return null;
+        }
+
+        /**
+         * Move control point {@code index} of track {@code trackNr} to
+         * {@code point}. Only the segments that use the point are tessellated
+         * again, and the frame table and the distance field are only updated
+         * for those segments. The start and the end of a closed track move
+         * together.
+         */
+        public void moveControlPoint(int trackNr, int index, Vector point) {
+            Vector[] points = getControlPoints(trackNr);
+            if (points == null || index < 0 || index >= points.length) {
+                return;
+            }
+            int last = points.length - 1;
+            int segmentCount = last / 3;
+            boolean closed = points[0].subtract(points[last]).length() < 1e-9;
+
+            // The segments that use the point: 3 s <= index <= 3 s + 3
+            int first = Math.max(0, (index + 2) / 3 - 1);
+            int end = Math.min(segmentCount - 1, index / 3);
+            if (closed && (index == 0 || index == last)) {
+                // Both the first and the last segment, starting with the start of the track
+                double[] box = getSegmentBox(points, 0, 0);
+                double[] lastBox = getSegmentBox(points, segmentCount - 1, segmentCount - 1);
+                points[0] = point;
+                points[last] = point;
+                updateSegments(trackNr, 0, 0, box);
+                updateSegments(trackNr, segmentCount - 1, segmentCount - 1, lastBox);
+                return;
+            }
+            double[] box = getSegmentBox(points, first, end);
+            points[index] = point;
+            updateSegments(trackNr, first, end, box);
+        }
+
+        /**
+         * Get the box (min x, min y, max x, max y) around segments {@code first}
+         * to {@code last}, which contains their curve (the convex hull of the
+         * control points of a Bezier segment contains the segment).
+         */
+        private double[] getSegmentBox(Vector[] points, int first, int last) {
+            double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int i = 3 * first; i <= 3 * last + 3; i++) {
+                box[0] = Math.min(box[0], points[i].x());
+                box[1] = Math.min(box[1], points[i].y());
+                box[2] = Math.max(box[2], points[i].x());
+                box[3] = Math.max(box[3], points[i].y());
+            }
+            return box;
+        }
+
+        /**
+         * Update the derived tables and the parts of track {@code trackNr}
+         * after segments {@code first} to {@code last} changed, of which the
+         * old curve was inside {@code oldBox}.
+         */
+        protected void updateSegments(int trackNr, int first, int last, double[] oldBox) {
+            int segmentCount = (getControlPoints(trackNr).length - 1) / 3;
+            double tStart = (double)first / segmentCount;
+            double tEnd = (double)(last + 1) / segmentCount;
+
+            // The coefficients first, as everything else evaluates the curve
+            if (coefficients[trackNr] != null) {
+                for (int segment = first; segment <= last; segment++) {
+                    setCoefficients(getControlPoints(trackNr), segment, coefficients[trackNr]);
+                }
+            }
+            // The frame table first, as the parts take their directions from it
+            if (frameTables[trackNr] != null) {
+                frameTables[trackNr].update(this, trackNr, tStart, tEnd);
+            }
+            if (distanceFields[trackNr] != null) {
+                distanceFields[trackNr].update(this, trackNr, tStart, tEnd,
+                    oldBox[0], oldBox[1], oldBox[2], oldBox[3]);
+            }
+
+            // The parts in the segments and their neighbors, in place
+            double[] parts = trackParts[trackNr];
+            if (parts != null) {
+                int i0 = (int)Math.floor(tStart * steps) - 1;
+                int i1 = (int)Math.ceil(tEnd * steps);
+                for (int i = i0; i <= i1; i++) {
+                    int part = (i + steps) % steps;
+                    getTrackPart(part / (float)steps, (part + 1) / (float)steps, trackNr,
+                        parts, part * TRACK_PART_SIZE);
+                }
+            }
+        }
+
+        /**
+         * Get the signed distance field of the footprint of track {@code trackNr}.
+         */
+        public TrackDistanceField getDistanceField(int trackNr) {
+            if (distanceFields[trackNr] == null) {
+                distanceFields[trackNr] = new TrackDistanceField(this, trackNr, trackSize / 2, 0.25);
+            }
+            return distanceFields[trackNr];
+        }
+
         /**
          * Initialize the control points of the custom track (8-shape).
          */
@@ -1652,72 +2878,65 @@ public class RobotRace extends Base {
         private Vector[] inset(Vector[] controlPoints, double width, double height, double inset) {
             // Inset all controlpoints
             for (int i = 0; i < controlPoints.length; i++) {
-                double x = controlPoints[i].x();
-                double y = controlPoints[i].y();
+                double x = inset(controlPoints[i].x(), width, inset);
+                double y = inset(controlPoints[i].y(), height, inset);
                 double z = controlPoints[i].z();
-                if (x > 0.5 * width) {
-                    // Inset x
-                    x = x - inset;
-                } else if (x < 0.5 * width) {
-                    // Inset x
-                    x = x + inset;
-                }
-                if (y > 0.5 * height) {
-                    // Inset y
-                    y = y - inset;
-                } else if (y < 0.5 * height) {
-                    // Inset y
-                    y = y + inset;
-                }
                 controlPoints[i] = new Vector(x, y, z);
             }
             return controlPoints;
         }
 
         /**
-         * Draw the track from the track with track number {@code trackNr}.
+         * Inset coordinate {@code value} by {@code inset} toward the middle of [0, {@code size}).
          */
-        public void drawTrack(int trackNr) {
-            for (int i = 0; i < steps; i++) {
-                // Loop through all steps and draw all (mini) parts of the track
-                drawTrackPart(i / (float)steps, (i + 1) / (float)steps, trackNr);
+        static double inset(double value, double size, double inset) {
+            if (value > 0.5 * size) {
+                return value - inset;
+            } else if (value < 0.5 * size) {
+                return value + inset;
             }
+            return value;
         }
 
         /**
-         * Draw the part of track with track number {@code trackNr} with
-         * {@code tStart} <= t <= {@code tEnd}.
+         * Compute the geometry of the part of track with track number
+         * {@code trackNr} with {@code tStart} <= t <= {@code tEnd}.
+         *
+         * The {@link #TRACK_PART_SIZE} values written to {@code part} from
+         * {@code offset} on are the vertices Q0..Q7 (x, y, z), the normals
+         * N0..N7 (x, y, z) and the texture coordinates at the start and at
+         * the end of the side walls.
          */
-        public void drawTrackPart(double tStart, double tEnd, int trackNr) {
-            // Calculate global directions
-            Vector up = new Vector(0, 0, 1);
-            Vector down = up.scale(-1);
-
+        public void getTrackPart(double tStart, double tEnd, int trackNr, double[] part, int offset) {
             Vector P1 = getCurvePoint(tStart, trackNr);
             Vector P2 = getCurvePoint(tEnd, trackNr);
-            Vector P3 = getCurvePoint((tEnd + (tEnd - tStart)) % 1, trackNr);
-            
-            // Calculate local directions
-            Vector forward1 = P2.subtract(P1);
-            Vector left1 = forward1.cross(up).normalized().scale(2);
+
+            // Take the local directions from the rotation-minimizing frames,
+            // such that the walls follow the banking of the track
+            FrameTable frames = getFrameTable(trackNr);
+            double[] frame = new double[18];
+            frames.getFrame(tStart, frame, 0);
+            frames.getFrame(tEnd, frame, 9);
+            Vector left1 = new Vector(frame[3], frame[4], frame[5]).scale(2);
             Vector right1 = left1.scale(-1);
-            Vector forward2 = P3.subtract(P2);
-            Vector left2 = forward2.cross(up).normalized().scale(2);
+            Vector down1 = new Vector(-frame[6], -frame[7], -frame[8]);
+            Vector left2 = new Vector(frame[12], frame[13], frame[14]).scale(2);
             Vector right2 = left2.scale(-1);
+            Vector down2 = new Vector(-frame[15], -frame[16], -frame[17]);
 
             // Calculate all vertexes
-            Vector Q0 = P1.add(left1).add(down);
-            Vector Q1 = P2.add(left2).add(down);
+            Vector Q0 = P1.add(left1).add(down1);
+            Vector Q1 = P2.add(left2).add(down2);
             Vector Q2 = P1.add(left1);
             Vector Q3 = P2.add(left2);
             Vector Q4 = P1.add(right1);
             Vector Q5 = P2.add(right2);
-            Vector Q6 = Q4.add(down);
-            Vector Q7 = Q5.add(down);
+            Vector Q6 = Q4.add(down1);
+            Vector Q7 = Q5.add(down2);
 
             // Calculate all normals
-            Vector N0 = forward1.cross(new Vector(0, 0, 1)).scale(-1);
-            Vector N1 = forward2.cross(new Vector(0, 0, 1)).scale(-1);
+            Vector N0 = left1.scale(-0.5);
+            Vector N1 = left2.scale(-0.5);
             Vector N2 = N0;
             Vector N3 = N1;
             Vector N4 = N0.scale(-1);
@@ -1725,101 +2944,24 @@ public class RobotRace extends Base {
             Vector N6 = N4;
             Vector N7 = N5;
 
-            // And now draw all the vertexes
-            int repeat = (int)((float)getTrackLength(trackNr) / 1.5);
+            // Store all vertexes and normals
+            Vector[] vectors = {Q0, Q1, Q2, Q3, Q4, Q5, Q6, Q7, N0, N1, N2, N3, N4, N5, N6, N7};
+            for (int i = 0; i < vectors.length; i++) {
+                part[offset + 3 * i] = vectors[i].x();
+                part[offset + 3 * i + 1] = vectors[i].y();
+                part[offset + 3 * i + 2] = vectors[i].z();
+            }
+
+            // Calculate the texture coordinates of the side walls
+            int repeat = getTextureRepeat(trackNr);
             double texStart = tStart * repeat % 1;
             double texEnd = tEnd * repeat % 1;
-            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
             if (texEnd < texStart) {
                 texEnd = 1;
             }
-
-            // Left side
-            gl.glColor3d(1, 1, 1);
-            brick.bind(gl);
-            gl.glBegin(GL_QUADS);
-            gl.glTexCoord2d(texStart, 0);
-            gl.glNormal3d(N4.x(), N4.y(), N4.z());
-            gl.glVertex3d(Q4.x(), Q4.y(), Q4.z());
-
-            gl.glTexCoord2d(texEnd, 0);
-            gl.glNormal3d(N5.x(), N5.y(), N5.z());
-            gl.glVertex3d(Q5.x(), Q5.y(), Q5.z());
-
-            gl.glTexCoord2d(texEnd, 1);
-            gl.glNormal3d(N7.x(), N7.y(), N7.z());
-            gl.glVertex3d(Q7.x(), Q7.y(), Q7.z());
-
-            gl.glTexCoord2d(texStart, 1);
-            gl.glNormal3d(N4.x(), N4.y(), N4.z());
-            gl.glVertex3d(Q6.x(), Q6.y(), Q6.z());
-            gl.glEnd();
-
-            // Right side
-            gl.glColor3d(1, 1, 1);
-            brick.bind(gl);
-            gl.glBegin(GL_QUADS);
-            gl.glTexCoord2d(texStart, 0);
-            gl.glNormal3d(N0.x(), N0.y(), N0.z());
-            gl.glVertex3d(Q0.x(), Q0.y(), Q0.z());
-
-            gl.glTexCoord2d(texEnd, 0);
-            gl.glNormal3d(N1.x(), N1.y(), N1.z());
-            gl.glVertex3d(Q1.x(), Q1.y(), Q1.z());
-
-            gl.glTexCoord2d(texEnd, 1);
-            gl.glNormal3d(N3.x(), N3.y(), N3.z());
-            gl.glVertex3d(Q3.x(), Q3.y(), Q3.z());
-
-            gl.glTexCoord2d(texStart, 1);
-            gl.glNormal3d(N2.x(), N2.y(), N2.z());
-            gl.glVertex3d(Q2.x(), Q2.y(), Q2.z());
-            gl.glEnd();
-
-            // Top
-            gl.glColor3d(1, 1, 1);
-            track.bind(gl);
-            gl.glBegin(GL_QUADS);
-            gl.glTexCoord2d(0, 0);
-            gl.glNormal3d(N2.x(), N2.y(), N2.z());
-            gl.glVertex3d(Q2.x(), Q2.y(), Q2.z());
-
-            gl.glTexCoord2d(0, 1);
-            gl.glNormal3d(N3.x(), N3.y(), N3.z());
-            gl.glVertex3d(Q3.x(), Q3.y(), Q3.z());
-
-            gl.glTexCoord2d(1, 0);
-            gl.glNormal3d(N5.x(), N5.y(), N5.z());
-            gl.glVertex3d(Q5.x(), Q5.y(), Q5.z());
-
-            gl.glTexCoord2d(1, 1);
-            gl.glNormal3d(N4.x(), N4.y(), N4.z());
-            gl.glVertex3d(Q4.x(), Q4.y(), Q4.z());
-            gl.glEnd();
-        }
-        
-        /**
-         * Draws this track, based on the selected track number.
-         */
-        public void draw(int trackNr) { 
-            // The test track is selected
-            if (0 == trackNr) {
-                drawTrack(trackNr);
-            // The O-track is selected
-            } else if (1 == trackNr) {
-                drawTrack(trackNr);
-            // The L-track is selected
-            } else if (2 == trackNr) {
-                drawTrack(trackNr);
-            // The C-track is selected
-            } else if (3 == trackNr) {
-                drawTrack(trackNr);
-            // The custom track is selected (8-track)
-            } else if (4 == trackNr) {
-                drawTrack(trackNr);
-            }
-        }
+            part[offset + 48] = texStart;
+            part[offset + 49] = texEnd;
+        }
 
         /**
          * Get the length of the track.
@@ -1904,19 +3046,43 @@ public class RobotRace extends Base {
         public Vector getCurvePoint(double t, int trackNr) {
             if (trackNr == 0) {
                 return getPoint(t);
-            } else if (1 == trackNr) {
-                return getCurvePoint(t, controlPointsOTrack);
-            // The L-track is selected
-            } else if (2 == trackNr) {
-                return getCurvePoint(t, controlPointsLTrack);
-            // The C-track is selected
-            } else if (3 == trackNr) {
-                return getCurvePoint(t, controlPointsCTrack);
-            // The custom track is selected (8-track)
-            } else if (4 == trackNr) {
-                return getCurvePoint(t, controlPointsCustomTrack);
             }
-            return new Vector(0, 0, 0);
+            double[] c = getCoefficients(trackNr);
+            if (c == null) {
+                return new Vector(0, 0, 0);
+            }
+            int segmentCount = c.length / COEFFICIENT_SIZE;
+            double u = wrap(t) * segmentCount;
+            int segment = Math.min(segmentCount - 1, (int)u);
+            u -= segment;
+            int offset = COEFFICIENT_SIZE * segment;
+            return new Vector(
+                ((c[offset + 3] * u + c[offset + 2]) * u + c[offset + 1]) * u + c[offset],
+                ((c[offset + 7] * u + c[offset + 6]) * u + c[offset + 5]) * u + c[offset + 4],
+                ((c[offset + 11] * u + c[offset + 10]) * u + c[offset + 9]) * u + c[offset + 8]);
+        }
+
+        /**
+         * Write the point at the curve of track {@code trackNr} at time
+         * {@code t} to {@code out} from {@code offset} on, without allocating.
+         */
+        public void getCurvePoint(double t, int trackNr, double[] out, int offset) {
+            double[] c = trackNr == 0 ? null : getCoefficients(trackNr);
+            if (c == null) {
+                Vector P = getCurvePoint(t, trackNr);
+                out[offset] = P.x();
+                out[offset + 1] = P.y();
+                out[offset + 2] = P.z();
+                return;
+            }
+            int segmentCount = c.length / COEFFICIENT_SIZE;
+            double u = wrap(t) * segmentCount;
+            int segment = Math.min(segmentCount - 1, (int)u);
+            u -= segment;
+            int o = COEFFICIENT_SIZE * segment;
+            out[offset] = ((c[o + 3] * u + c[o + 2]) * u + c[o + 1]) * u + c[o];
+            out[offset + 1] = ((c[o + 7] * u + c[o + 6]) * u + c[o + 5]) * u + c[o + 4];
+            out[offset + 2] = ((c[o + 11] * u + c[o + 10]) * u + c[o + 9]) * u + c[o + 8];
         }
 
         /**
@@ -1929,19 +3095,74 @@ public class RobotRace extends Base {
         public Vector getCurveTangent(double t, int trackNr) {
             if (trackNr == 0) {
                 return getTangent(t);
-            } else if (1 == trackNr) {
-                return getCurveTangent(t, controlPointsOTrack);
-            // The L-track is selected
-            } else if (2 == trackNr) {
-                return getCurveTangent(t, controlPointsLTrack);
-            // The C-track is selected
-            } else if (3 == trackNr) {
-                return getCurveTangent(t, controlPointsCTrack);
-            // The custom track is selected (8-track)
-            } else if (4 == trackNr) {
-                return getCurveTangent(t, controlPointsCustomTrack);
             }
-            return new Vector(0, 0, 0);
+            double[] c = getCoefficients(trackNr);
+            if (c == null) {
+                return new Vector(0, 0, 0);
+            }
+            // The derivative b + 2 c u + 3 d u^2 of a + b u + c u^2 + d u^3
+            int segmentCount = c.length / COEFFICIENT_SIZE;
+            double u = wrap(t) * segmentCount;
+            int segment = Math.min(segmentCount - 1, (int)u);
+            u -= segment;
+            int offset = COEFFICIENT_SIZE * segment;
+            double x = (3 * c[offset + 3] * u + 2 * c[offset + 2]) * u + c[offset + 1];
+            double y = (3 * c[offset + 7] * u + 2 * c[offset + 6]) * u + c[offset + 5];
+            double z = (3 * c[offset + 11] * u + 2 * c[offset + 10]) * u + c[offset + 9];
+            // Of length 3, like getCurveTangent(t, controlPoints)
+            double scale = 3 / Math.sqrt(x * x + y * y + z * z);
+            return new Vector(scale * x, scale * y, scale * z);
+        }
+
+        /**
+         * Get the power-basis coefficients of the segments of track
+         * {@code trackNr} (null for the test track), see {@link #setCoefficients}.
+         */
+        public double[] getCoefficients(int trackNr) {
+            if (coefficients[trackNr] == null) {
+                Vector[] points = getControlPoints(trackNr);
+                if (points == null) {
+                    return null;
+                }
+                int segmentCount = (points.length - 1) / 3;
+                double[] c = new double[COEFFICIENT_SIZE * segmentCount];
+                for (int segment = 0; segment < segmentCount; segment++) {
+                    setCoefficients(points, segment, c);
+                }
+                coefficients[trackNr] = c;
+            }
+            return coefficients[trackNr];
+        }
+
+        /**
+         * Write the coefficients a, b, c, d of x, y and z of segment
+         * {@code segment} of {@code points} to {@code coefficients}, such
+         * that the segment is a + b u + c u^2 + d u^3 with 0 <= u <= 1.
+         */
+        private static void setCoefficients(Vector[] points, int segment, double[] coefficients) {
+            Vector P0 = points[3 * segment], P1 = points[3 * segment + 1];
+            Vector P2 = points[3 * segment + 2], P3 = points[3 * segment + 3];
+            double[][] p = {
+                {P0.x(), P1.x(), P2.x(), P3.x()},
+                {P0.y(), P1.y(), P2.y(), P3.y()},
+                {P0.z(), P1.z(), P2.z(), P3.z()}
+            };
+            int offset = COEFFICIENT_SIZE * segment;
+            for (int axis = 0; axis < 3; axis++) {
+                double[] q = p[axis];
+                coefficients[offset + 4 * axis] = q[0];
+                coefficients[offset + 4 * axis + 1] = 3 * (q[1] - q[0]);
+                coefficients[offset + 4 * axis + 2] = 3 * (q[0] - 2 * q[1] + q[2]);
+                coefficients[offset + 4 * axis + 3] = -q[0] + 3 * (q[1] - q[2]) + q[3];
+            }
+        }
+
+        /**
+         * Bring {@code t} back in interval [0, 1).
+         */
+        private static double wrap(double t) {
+            t = t % 1;
+            return t < 0 ? t + 1 : t;
         }
 
         /**
@@ -1999,24 +3220,386 @@ public class RobotRace extends Base {
     }
     
     /**
-     * Implementation of the terrain.
+     * Text and binary format of a track, read in a single pass into a
+     * growable array of coordinates.
+     *
+     * The text format has one command per line (# starts a comment):
+     *
+     * start x y z                          First point of the track.
+     * bezier x1 y1 z1 x2 y2 z2 x3 y3 z3    Bezier segment to (x3, y3, z3).
+     * line x y z                           Straight segment to (x, y, z).
+     * scale s                              Scale all points so far.
+     * translate x y                        Translate all points so far.
+     * inset width height inset             Inset all points so far, like the built-in tracks.
+     *
+     * The binary format is {@link #MAGIC}, followed by the same commands as
+     * an opcode byte and their arguments as doubles (big endian).
+     */
+    public static class TrackFormat {
+
+        /** First four bytes of a binary track ("RRTK"). */
+        public static final int MAGIC = 0x5252544B;
+
+        /** Commands, in the order of their opcodes. */
+        private static final String[] COMMANDS = {"start", "bezier", "line", "scale", "translate", "inset"};
+
+        /** Number of arguments of every command. */
+        private static final int[] ARGUMENTS = {3, 9, 3, 1, 2, 3};
+
+        /** Coordinates (x, y, z) of the control points read so far. */
+        private double[] coordinates = new double[3 * 64];
+
+        /** Number of control points read so far. */
+        private int count = 0;
+
+        /**
+         * Read the control points of a track from {@code file}.
+         */
+        public static Vector[] read(File file) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                return read(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Read the control points of a track in the text or the binary format
+         * from {@code in}.
+         */
+        public static Vector[] read(InputStream in) throws IOException {
+            BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+            DataInputStream data = new DataInputStream(buffered);
+            TrackFormat format = new TrackFormat();
+            buffered.mark(4);
+            if (buffered.available() >= 4 && data.readInt() == MAGIC) {
+                format.readBinary(data);
+            } else {
+                buffered.reset();
+                format.readText(new BufferedReader(new InputStreamReader(buffered, "UTF-8")));
+            }
+            return format.getControlPoints();
+        }
+
+        /**
+         * Write {@code controlPoints} in the binary format to {@code out}.
+         */
+        public static void writeBinary(Vector[] controlPoints, OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            data.writeInt(MAGIC);
+            for (int i = 0; i < controlPoints.length; i += 3) {
+                data.writeByte(i == 0 ? 0 : 1);
+                for (int k = i == 0 ? 0 : i - 2; k <= i; k++) {
+                    data.writeDouble(controlPoints[k].x());
+                    data.writeDouble(controlPoints[k].y());
+                    data.writeDouble(controlPoints[k].z());
+                }
+            }
+            data.flush();
+        }
+
+        /**
+         * Read the commands of the text format.
+         */
+        private void readText(BufferedReader reader) throws IOException {
+            double[] arguments = new double[9];
+            String line;
+            for (int lineNr = 1; (line = reader.readLine()) != null; lineNr++) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                // Split the line in words without regular expressions
+                int end = 0, words = 0, opcode = -1;
+                while (true) {
+                    int start = end;
+                    while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+                        start++;
+                    }
+                    if (start == line.length()) {
+                        break;
+                    }
+                    end = start;
+                    while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+                        end++;
+                    }
+                    String word = line.substring(start, end);
+                    if (words == 0) {
+                        opcode = Arrays.asList(COMMANDS).indexOf(word);
+                        if (opcode < 0) {
+                            throw new IOException("Line " + lineNr + ": unknown command " + word);
+                        }
+                    } else if (words <= ARGUMENTS[opcode]) {
+                        try {
+                            arguments[words - 1] = Double.parseDouble(word);
+                        } catch (NumberFormatException ex) {
+                            throw new IOException("Line " + lineNr + ": bad number " + word);
+                        }
+                    }
+                    words++;
+                }
+                if (opcode < 0) {
+                    continue;
+                }
+                if (words - 1 != ARGUMENTS[opcode]) {
+                    throw new IOException("Line " + lineNr + ": " + COMMANDS[opcode] + " takes "
+                        + ARGUMENTS[opcode] + " numbers");
+                }
+                apply(opcode, arguments, "Line " + lineNr);
+            }
+        }
+
+        /**
+         * Read the commands of the binary format (after the magic number).
+         */
+        private void readBinary(DataInputStream data) throws IOException {
+            double[] arguments = new double[9];
+            for (long record = 0; ; record++) {
+                int opcode = data.read();
+                if (opcode < 0) {
+                    return;
+                }
+                if (opcode >= COMMANDS.length) {
+                    throw new IOException("Record " + record + ": unknown opcode " + opcode);
+                }
+                for (int i = 0; i < ARGUMENTS[opcode]; i++) {
+                    arguments[i] = data.readDouble();
+                }
+                apply(opcode, arguments, "Record " + record);
+            }
+        }
+
+        /**
+         * Apply command {@code opcode} with {@code arguments}.
+         */
+        private void apply(int opcode, double[] arguments, String where) throws IOException {
+            if ((opcode == 0) != (count == 0)) {
+                throw new IOException(where + ": " + (count == 0
+                    ? "the track must begin with start" : "the track has already begun"));
+            }
+            switch (opcode) {
+                case 0:
+                    add(arguments[0], arguments[1], arguments[2]);
+                    break;
+                case 1:
+                    add(arguments[0], arguments[1], arguments[2]);
+                    add(arguments[3], arguments[4], arguments[5]);
+                    add(arguments[6], arguments[7], arguments[8]);
+                    break;
+                case 2: {
+                    // A Bezier segment that simulates a line, like RaceTrackModel.addLine
+                    int last = 3 * (count - 1);
+                    double x = coordinates[last], y = coordinates[last + 1], z = coordinates[last + 2];
+                    add(arguments[0], arguments[1], arguments[2]);
+                    add(x, y, z);
+                    add(arguments[0], arguments[1], arguments[2]);
+                    break;
+                }
+                case 3:
+                    for (int i = 0; i < 3 * count; i++) {
+                        coordinates[i] *= arguments[0];
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < 3 * count; i += 3) {
+                        coordinates[i] += arguments[0];
+                        coordinates[i + 1] += arguments[1];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < 3 * count; i += 3) {
+                        coordinates[i] = RaceTrackModel.inset(coordinates[i], arguments[0], arguments[2]);
+                        coordinates[i + 1] = RaceTrackModel.inset(coordinates[i + 1], arguments[1], arguments[2]);
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Append control point (x, y, z), doubling the array when it is full.
+         */
+        private void add(double x, double y, double z) {
+            if (3 * count + 3 > coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, 2 * coordinates.length);
+            }
+            coordinates[3 * count] = x;
+            coordinates[3 * count + 1] = y;
+            coordinates[3 * count + 2] = z;
+            count++;
+        }
+
+        /**
+         * Get the control points that are read.
+         */
+        private Vector[] getControlPoints() throws IOException {
+            if (count < 4) {
+                throw new IOException("The track has no segments");
+            }
+            Vector[] controlPoints = new Vector[count];
+            for (int i = 0; i < count; i++) {
+                controlPoints[i] = new Vector(coordinates[3 * i], coordinates[3 * i + 1], coordinates[3 * i + 2]);
+            }
+            return controlPoints;
+        }
+    }
+
+    /**
+     * Implementation of a race track that is made from Bezier segments.
      */
-    private class Terrain {
+    private class RaceTrack extends RaceTrackModel {
+
+        /** Geometry of the parts of the track that is being drawn. */
+        private double[] part;
+
+        /** Offset of the part that is being drawn. */
+        private int offset;
+
+        /**
+         * Constructs the race track.
+         */
+        public RaceTrack() {
+            super();
+        }
+
+        /**
+         * Constructs the race track from the scene cache.
+         */
+        public RaceTrack(ByteBuffer in) {
+            super(in);
+        }
+
+        /**
+         * Draw the track from the track with track number {@code trackNr}.
+         */
+        public void drawTrack(int trackNr) {
+            // The parts are computed once for every track
+            part = getTrackParts(trackNr);
+            for (int i = 0; i < steps; i++) {
+                // Light every chunk of parts by the floodlights near it
+                if (floodlights != null && i % Floodlights.CHUNK_PARTS == 0) {
+                    floodlights.bindTrackChunk(part, i, Math.min(steps, i + Floodlights.CHUNK_PARTS));
+                }
+                // Loop through all steps and draw all (mini) parts of the track
+                drawTrackPart(i * TRACK_PART_SIZE);
+            }
+        }
+
+        /**
+         * Draw the part of the current track of which the geometry starts
+         * at {@code offset}.
+         */
+        public void drawTrackPart(int offset) {
+            // All vertexes, normals and texture coordinates of this part
+            this.offset = offset;
+            double texStart = part[offset + 48];
+            double texEnd = part[offset + 49];
+
+            // And now draw all the vertexes
+            // Left side
+            gl.glColor3d(1, 1, 1);
+            atlas.bind(brick);
+            if (!atlas.isBound()) {
+                gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+                gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+            }
+            gl.glBegin(GL_QUADS);
+            atlas.texCoord(texStart, 0);
+            partVertex(4, 4);
+            atlas.texCoord(texEnd, 0);
+            partVertex(5, 5);
+            atlas.texCoord(texEnd, 1);
+            partVertex(7, 7);
+            atlas.texCoord(texStart, 1);
+            partVertex(6, 4);
+            gl.glEnd();
+
+            // Right side
+            gl.glColor3d(1, 1, 1);
+            atlas.bind(brick);
+            gl.glBegin(GL_QUADS);
+            atlas.texCoord(texStart, 0);
+            partVertex(0, 0);
+            atlas.texCoord(texEnd, 0);
+            partVertex(1, 1);
+            atlas.texCoord(texEnd, 1);
+            partVertex(3, 3);
+            atlas.texCoord(texStart, 1);
+            partVertex(2, 2);
+            gl.glEnd();
+
+            // Top
+            gl.glColor3d(1, 1, 1);
+            atlas.bind(track);
+            gl.glBegin(GL_QUADS);
+            atlas.texCoord(0, 0);
+            partVertex(2, 2);
+            atlas.texCoord(0, 1);
+            partVertex(3, 3);
+            atlas.texCoord(1, 0);
+            partVertex(5, 5);
+            atlas.texCoord(1, 1);
+            partVertex(4, 4);
+            gl.glEnd();
+        }
 
-        private int uSteps = 200;
-        private int vSteps = 200;
-        private double[][] xCoordinate;
-        private double[][] yCoordinate;
-        private double[][] zCoordinate;
-        private Vector[][] normals;
-        private double[][] rValue;
-        private double[][] gValue;
-        private double[][] bValue;
+        /**
+         * Pass normal N{@code n} and vertex Q{@code q} of the current part to OpenGL.
+         */
+        private void partVertex(int q, int n) {
+            int normal = offset + 24 + 3 * n;
+            int vertex = offset + 3 * q;
+            gl.glNormal3d(part[normal], part[normal + 1], part[normal + 2]);
+            gl.glVertex3d(part[vertex], part[vertex + 1], part[vertex + 2]);
+        }
         
         /**
-         * Can be used to set up a display list.
+         * Draws this track, based on the selected track number.
+         */
+        public void draw(int trackNr) { 
+            // The test track is selected
+            if (0 == trackNr) {
+                drawTrack(trackNr);
+            // The O-track is selected
+            } else if (1 == trackNr) {
+                drawTrack(trackNr);
+            // The L-track is selected
+            } else if (2 == trackNr) {
+                drawTrack(trackNr);
+            // The C-track is selected
+            } else if (3 == trackNr) {
+                drawTrack(trackNr);
+            // The custom track is selected (8-track)
+            } else if (4 == trackNr) {
+                drawTrack(trackNr);
+            // A loaded track is selected
+            } else if (trackNr < getTrackCount()) {
+                drawTrack(trackNr);
+            }
+        }
+    }
+    
+    /**
+     * Grid of the terrain, without any OpenGL calls.
+     */
+    static class TerrainModel {
+
+        protected int uSteps;
+        protected int vSteps;
+        protected double[][] xCoordinate;
+        protected double[][] yCoordinate;
+        protected double[][] zCoordinate;
+        protected Vector[][] normals;
+        protected double[][] rValue;
+        protected double[][] gValue;
+        protected double[][] bValue;
+        
+        /**
+         * Computes a grid of {@code uSteps} by {@code vSteps} points.
          */
-        public Terrain() {
+        public TerrainModel(int uSteps, int vSteps) {
+            this.uSteps = uSteps;
+            this.vSteps = vSteps;
             // Initialize the terrain
             // Such that all information is available for all
             // (u, v) coordinates.
@@ -2071,46 +3654,35 @@ public class RobotRace extends Base {
         }
         
         /**
-         * Draws the terrain.
+         * Reads the grid from the scene cache.
          */
-        public void draw() {
-            // Draw all (u, v) pairs
-            for (int u = 0; u < uSteps - 1; u++) {
-                for (int v = 0; v < vSteps - 1; v++) {
-                    gl.glBegin(GL_QUADS);
-                    initVertex(u, v);
-                    initVertex(u + 1, v);
-                    initVertex(u + 1, v + 1);
-                    initVertex(u, v + 1);
-                    gl.glEnd();
-                }
-            }
-
-            // Add a transparant plane at z = 0
-            gl.glColor4d(0.125, 0.125, 0.25, 0.8);
-            gl.glBegin(GL_QUADS);
-            gl.glVertex3d(-20, -20, 0);
-            gl.glVertex3d(-20, 20, 0);
-            gl.glVertex3d(20, 20, 0);
-            gl.glVertex3d(20, -20, 0);
-            gl.glEnd();
-
-            // Reset the color
-            gl.glColor4d(0, 0, 0, 1);
+        public TerrainModel(ByteBuffer in) {
+            uSteps = in.getInt();
+            vSteps = in.getInt();
+            xCoordinate = SceneCache.readGrid(in, uSteps, vSteps);
+            yCoordinate = SceneCache.readGrid(in, uSteps, vSteps);
+            zCoordinate = SceneCache.readGrid(in, uSteps, vSteps);
+            rValue = SceneCache.readGrid(in, uSteps, vSteps);
+            gValue = SceneCache.readGrid(in, uSteps, vSteps);
+            bValue = SceneCache.readGrid(in, uSteps, vSteps);
+            normals = SceneCache.readVectors(in, uSteps, vSteps);
         }
 
         /**
-         * Initialize a vertex.
-         * 
-         * @param u
-         * @param v
+         * Write the grid to the scene cache.
          */
-        private void initVertex(int u, int v) {
-            gl.glColor3d(rValue[u][v], gValue[u][v], bValue[u][v]);
-            gl.glNormal3d(normals[u][v].x(), normals[u][v].y(), normals[u][v].z());
-            gl.glVertex3d(xCoordinate[u][v], yCoordinate[u][v], zCoordinate[u][v]);
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(uSteps);
+            out.writeInt(vSteps);
+            SceneCache.writeGrid(out, xCoordinate);
+            SceneCache.writeGrid(out, yCoordinate);
+            SceneCache.writeGrid(out, zCoordinate);
+            SceneCache.writeGrid(out, rValue);
+            SceneCache.writeGrid(out, gValue);
+            SceneCache.writeGrid(out, bValue);
+            SceneCache.writeVectors(out, normals);
         }
-
+        
         /**
          * Get the derivative.
          * 
@@ -2139,27 +3711,177 @@ public class RobotRace extends Base {
         public float heightAt(float x, float y) {
             return (float)Math.cos(0.3f * x + 0.2f * y) + 0.4f * (float)Math.cos(x - 0.5f * y);
         }
+
+        /**
+         * Computes the elevation of the terrain at ({@code x}, {@code y}) when
+         * it is flattened to {@code level} under the track of {@code field},
+         * blending back to the terrain within {@code margin} of the track.
+         */
+        public double heightAt(TrackDistanceField field, double level, double margin, double x, double y) {
+            double z = heightAt((float)x, (float)y);
+            double d = field.distance(x, y);
+            if (d >= margin) {
+                return z;
+            }
+            // Smoothstep from the edge of the track to the margin
+            double w = d <= 0 ? 1 : 1 - d / margin;
+            w = w * w * (3 - 2 * w);
+            return z + w * (level - z);
+        }
+
+        /**
+         * Flatten the terrain under the track of {@code field}, see
+         * {@link #heightAt(TrackDistanceField, double, double, double, double)},
+         * and write the heights and normals of the grid to {@code heights}
+         * and {@code flatNormals}.
+         */
+        public void flatten(TrackDistanceField field, double level, double margin,
+                double[][] heights, Vector[][] flatNormals) {
+            for (int u = 0; u < uSteps; u++) {
+                for (int v = 0; v < vSteps; v++) {
+                    heights[u][v] = heightAt(field, level, margin, xCoordinate[u][v], yCoordinate[u][v]);
+                }
+            }
+            for (int u = 0; u < uSteps; u++) {
+                for (int v = 0; v < vSteps; v++) {
+                    if (heights[u][v] == zCoordinate[u][v]) {
+                        flatNormals[u][v] = normals[u][v];
+                        continue;
+                    }
+                    // Central differences, in the same orientation as the normals of the terrain
+                    int u0 = Math.max(0, u - 1), u1 = Math.min(uSteps - 1, u + 1);
+                    int v0 = Math.max(0, v - 1), v1 = Math.min(vSteps - 1, v + 1);
+                    double dx = (heights[u1][v] - heights[u0][v]) / (xCoordinate[u1][v] - xCoordinate[u0][v]);
+                    double dy = (heights[u][v1] - heights[u][v0]) / (yCoordinate[u][v1] - yCoordinate[u][v0]);
+                    flatNormals[u][v] = new Vector(0, 1, dy).cross(new Vector(1, 0, dx));
+                }
+            }
+        }
     }
 
     /**
-     * Implementation of the (more realistic) landscape.
+     * Implementation of the terrain.
      */
-    private class Landscape {
+    private class Terrain extends TerrainModel {
 
-        private int uSteps = 10;
-        private int vSteps = 10;
-        private double[][] xCoordinate;
-        private double[][] yCoordinate;
-        private double[][] zCoordinate;
-        private Vector[][] normals;
-        private double[][] rValue;
-        private double[][] gValue;
-        private double[][] bValue;
-        
         /**
          * Can be used to set up a display list.
          */
-        public Landscape() {
+        public Terrain(int steps) {
+            super(steps, steps);
+        }
+
+        /**
+         * Reads the terrain from the scene cache.
+         */
+        public Terrain(ByteBuffer in) {
+            super(in);
+        }
+        
+        /** Heights and normals of the terrain flattened under every track (null = not computed yet). */
+        private double[][][] trackHeights = new double[0][][];
+        private Vector[][][] trackNormals = new Vector[0][][];
+
+        /**
+         * Get the heights of the grid, flattened under track {@code trackNr} if enabled.
+         */
+        public synchronized double[][] getHeights(int trackNr) {
+            if (!flattenTerrain) {
+                return zCoordinate;
+            }
+            if (trackNr >= trackHeights.length) {
+                // Also for the tracks that are loaded after the terrain is built
+                trackHeights = Arrays.copyOf(trackHeights, raceTrack.getTrackCount());
+                trackNormals = Arrays.copyOf(trackNormals, raceTrack.getTrackCount());
+            }
+            if (trackHeights[trackNr] == null) {
+                double[][] heights = new double[uSteps][vSteps];
+                trackNormals[trackNr] = new Vector[uSteps][vSteps];
+                flatten(raceTrack.getDistanceField(trackNr), TRACK_BASE, FLATTEN_MARGIN,
+                    heights, trackNormals[trackNr]);
+                trackHeights[trackNr] = heights;
+            }
+            return trackHeights[trackNr];
+        }
+
+        /**
+         * Forget the flattened heights of track {@code trackNr}, after the track changed.
+         */
+        public synchronized void invalidate(int trackNr) {
+            if (trackNr < trackHeights.length) {
+                trackHeights[trackNr] = null;
+                trackNormals[trackNr] = null;
+            }
+        }
+
+        /**
+         * Draws the terrain, flattened under track {@code trackNr} if enabled.
+         */
+        public void draw(int trackNr) {
+            double[][] heights = getHeights(trackNr);
+            Vector[][] vertexNormals = flattenTerrain ? trackNormals[trackNr] : normals;
+
+            // Draw all (u, v) pairs
+            for (int u = 0; u < uSteps - 1; u++) {
+                for (int v = 0; v < vSteps - 1; v++) {
+                    gl.glBegin(GL_QUADS);
+                    initVertex(u, v, heights, vertexNormals);
+                    initVertex(u + 1, v, heights, vertexNormals);
+                    initVertex(u + 1, v + 1, heights, vertexNormals);
+                    initVertex(u, v + 1, heights, vertexNormals);
+                    gl.glEnd();
+                }
+            }
+
+            // Add a transparant plane at z = 0
+            gl.glColor4d(0.125, 0.125, 0.25, 0.8);
+            gl.glBegin(GL_QUADS);
+            gl.glVertex3d(-20, -20, 0);
+            gl.glVertex3d(-20, 20, 0);
+            gl.glVertex3d(20, 20, 0);
+            gl.glVertex3d(20, -20, 0);
+            gl.glEnd();
+
+            // Reset the color
+            gl.glColor4d(0, 0, 0, 1);
+        }
+
+        /**
+         * Initialize a vertex.
+         * 
+         * @param u
+         * @param v
+         * @param heights       Heights of the grid.
+         * @param vertexNormals Normals of the grid.
+         */
+        private void initVertex(int u, int v, double[][] heights, Vector[][] vertexNormals) {
+            gl.glColor3d(rValue[u][v], gValue[u][v], bValue[u][v]);
+            gl.glNormal3d(vertexNormals[u][v].x(), vertexNormals[u][v].y(), vertexNormals[u][v].z());
+            gl.glVertex3d(xCoordinate[u][v], yCoordinate[u][v], heights[u][v]);
+        }
+    }
+    
+    /**
+     * Grid of the (more realistic) landscape, without any OpenGL calls.
+     */
+    static class LandscapeModel {
+
+        protected int uSteps;
+        protected int vSteps;
+        protected double[][] xCoordinate;
+        protected double[][] yCoordinate;
+        protected double[][] zCoordinate;
+        protected Vector[][] normals;
+        protected double[][] rValue;
+        protected double[][] gValue;
+        protected double[][] bValue;
+        
+        /**
+         * Computes a grid of {@code uSteps} by {@code vSteps} points.
+         */
+        public LandscapeModel(int uSteps, int vSteps) {
+            this.uSteps = uSteps;
+            this.vSteps = vSteps;
             // Just as in terrain, initialize all lists
             xCoordinate = new double[uSteps][vSteps];
             yCoordinate = new double[uSteps][vSteps];
@@ -2196,36 +3918,35 @@ public class RobotRace extends Base {
         }
         
         /**
-         * Draws the landscape.
+         * Reads the grid from the scene cache.
          */
-        public void draw() {
-            // Draw all (u, v) pairs
-            for (int u = 0; u < uSteps - 1; u++) {
-                for (int v = 0; v < vSteps - 1; v++) {
-                    gl.glBegin(GL_QUADS);
-                    initVertex(u, v);
-                    initVertex(u + 1, v);
-                    initVertex(u + 1, v + 1);
-                    initVertex(u, v + 1);
-                    gl.glEnd();
-                }
-            }
-
-            gl.glColor4d(0, 0, 0, 1);
+        public LandscapeModel(ByteBuffer in) {
+            uSteps = in.getInt();
+            vSteps = in.getInt();
+            xCoordinate = SceneCache.readGrid(in, uSteps, vSteps);
+            yCoordinate = SceneCache.readGrid(in, uSteps, vSteps);
+            zCoordinate = SceneCache.readGrid(in, uSteps, vSteps);
+            rValue = SceneCache.readGrid(in, uSteps, vSteps);
+            gValue = SceneCache.readGrid(in, uSteps, vSteps);
+            bValue = SceneCache.readGrid(in, uSteps, vSteps);
+            normals = SceneCache.readVectors(in, uSteps, vSteps);
         }
 
         /**
-         * Initialize a vertex.
-         * 
-         * @param u
-         * @param v
+         * Write the grid to the scene cache.
          */
-        private void initVertex(int u, int v) {
-            gl.glColor3d(rValue[u][v], gValue[u][v], bValue[u][v]);
-            gl.glNormal3d(normals[u][v].x(), normals[u][v].y(), normals[u][v].z());
-            gl.glVertex3d(xCoordinate[u][v], yCoordinate[u][v], zCoordinate[u][v]);
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(uSteps);
+            out.writeInt(vSteps);
+            SceneCache.writeGrid(out, xCoordinate);
+            SceneCache.writeGrid(out, yCoordinate);
+            SceneCache.writeGrid(out, zCoordinate);
+            SceneCache.writeGrid(out, rValue);
+            SceneCache.writeGrid(out, gValue);
+            SceneCache.writeGrid(out, bValue);
+            SceneCache.writeVectors(out, normals);
         }
-
+        
         /**
          * Get the derivative.
          * 
@@ -2271,37 +3992,98 @@ public class RobotRace extends Base {
     }
 
     /**
-     * Tree object.
+     * Implementation of the (more realistic) landscape.
+     */
+    private class Landscape extends LandscapeModel {
+
+        /**
+         * Can be used to set up a display list.
+         */
+        public Landscape(int steps) {
+            super(steps, steps);
+        }
+
+        /**
+         * Reads the landscape from the scene cache.
+         */
+        public Landscape(ByteBuffer in) {
+            super(in);
+        }
+        
+        /**
+         * Draws the landscape.
+         */
+        public void draw() {
+            // Draw all (u, v) pairs
+            for (int u = 0; u < uSteps - 1; u++) {
+                for (int v = 0; v < vSteps - 1; v++) {
+                    gl.glBegin(GL_QUADS);
+                    initVertex(u, v);
+                    initVertex(u + 1, v);
+                    initVertex(u + 1, v + 1);
+                    initVertex(u, v + 1);
+                    gl.glEnd();
+                }
+            }
+
+            gl.glColor4d(0, 0, 0, 1);
+        }
+
+        /**
+         * Initialize a vertex.
+         * 
+         * @param u
+         * @param v
+         */
+        private void initVertex(int u, int v) {
+            gl.glColor3d(rValue[u][v], gValue[u][v], bValue[u][v]);
+            gl.glNormal3d(normals[u][v].x(), normals[u][v].y(), normals[u][v].z());
+            gl.glVertex3d(xCoordinate[u][v], yCoordinate[u][v], zCoordinate[u][v]);
+        }
+    }
+    
+    /**
+     * Randomized shape of a tree, without any OpenGL calls.
      */
-    class Tree {
+    static class TreeModel {
 
         // Maximal number of recursion
         // Runs in O(branchesPerLevel^maxDepth)
-        private int maxDepth = 2;
+        protected int maxDepth = 2;
         // Number of branches per level
-        private int branchesPerLevel = 5;
+        protected int branchesPerLevel = 5;
         // Number of leafs per branch
-        private int leafsPerBranch = 10;
+        protected int leafsPerBranch = 10;
         // At which z position a branch is attached to its previous branch
-        private double[][] zAttachnmentBranch;
+        protected double[][] zAttachnmentBranch;
         // The angle at with the branch is
-        private double[][] angleAttachmentBranch;
+        protected double[][] angleAttachmentBranch;
         // Same for leafs
-        private double[][][] zAttachnmentLeaf;
-        private double[][][] angleAttachmentLeaf;
+        protected double[][][] zAttachnmentLeaf;
+        protected double[][][] angleAttachmentLeaf;
         // Scale of leafs
-        private double[][][] scaleLeaf;
+        protected double[][][] scaleLeaf;
         // Scale per level (for branches)
-        private double[] levelScale;
+        protected double[] levelScale;
         // Height of the tree
-        private double height;
+        protected double height;
 
         /**
          * Initialize the tree.
          * 
          * @param  height Height of the tree.
          */
-        public Tree(double height) {
+        public TreeModel(double height) {
+            this(height, new Random());
+        }
+
+        /**
+         * Initialize the tree with a shape from {@code random}.
+         *
+         * @param  height Height of the tree.
+         * @param  random Random numbers of the shape.
+         */
+        public TreeModel(double height, Random random) {
             this.height = height;
             // Initialize the variables
             zAttachnmentBranch = new double[maxDepth][branchesPerLevel];
@@ -2324,18 +4106,75 @@ public class RobotRace extends Base {
                 }
                 // Loop through all branches
                 for (int branch = 0; branch < branchesPerLevel; branch++) {
-                    zAttachnmentBranch[level][branch] = 0.5 * Math.random() + 0.3;
-                    angleAttachmentBranch[level][branch] = Math.random();
+                    zAttachnmentBranch[level][branch] = 0.5 * random.nextDouble() + 0.3;
+                    angleAttachmentBranch[level][branch] = random.nextDouble();
                     // Loop through all leafs
                     for (int leaf = 0; leaf < leafsPerBranch; leaf++) {
-                        zAttachnmentLeaf[level][branch][leaf] = 2.0 * Math.random();
-                        angleAttachmentLeaf[level][branch][leaf] = Math.random();
-                        scaleLeaf[level][branch][leaf] = 0.7 + (Math.random() - 0.5) / 10.0;
+                        zAttachnmentLeaf[level][branch][leaf] = 2.0 * random.nextDouble();
+                        angleAttachmentLeaf[level][branch][leaf] = random.nextDouble();
+                        scaleLeaf[level][branch][leaf] = 0.7 + (random.nextDouble() - 0.5) / 10.0;
                     }
                 }
             }
         }
 
+        /**
+         * Reads the tree from the scene cache.
+         */
+        public TreeModel(ByteBuffer in) {
+            height = in.getDouble();
+            levelScale = SceneCache.readGrid(in, 1, maxDepth)[0];
+            zAttachnmentBranch = SceneCache.readGrid(in, maxDepth, branchesPerLevel);
+            angleAttachmentBranch = SceneCache.readGrid(in, maxDepth, branchesPerLevel);
+            zAttachnmentLeaf = new double[maxDepth][][];
+            angleAttachmentLeaf = new double[maxDepth][][];
+            scaleLeaf = new double[maxDepth][][];
+            for (int level = 0; level < maxDepth; level++) {
+                zAttachnmentLeaf[level] = SceneCache.readGrid(in, branchesPerLevel, leafsPerBranch);
+                angleAttachmentLeaf[level] = SceneCache.readGrid(in, branchesPerLevel, leafsPerBranch);
+                scaleLeaf[level] = SceneCache.readGrid(in, branchesPerLevel, leafsPerBranch);
+            }
+        }
+
+        /**
+         * Write the tree to the scene cache.
+         */
+        public void write(DataOutputStream out) throws IOException {
+            out.writeDouble(height);
+            SceneCache.writeGrid(out, new double[][] {levelScale});
+            SceneCache.writeGrid(out, zAttachnmentBranch);
+            SceneCache.writeGrid(out, angleAttachmentBranch);
+            for (int level = 0; level < maxDepth; level++) {
+                SceneCache.writeGrid(out, zAttachnmentLeaf[level]);
+                SceneCache.writeGrid(out, angleAttachmentLeaf[level]);
+                SceneCache.writeGrid(out, scaleLeaf[level]);
+            }
+        }
+
+    }
+    
+    /**
+     * Tree object.
+     */
+    class Tree extends TreeModel {
+
+        /**
+         * Initialize the tree.
+         * 
+         * @param  height Height of the tree.
+         * @param  random Random numbers of the shape.
+         */
+        public Tree(double height, Random random) {
+            super(height, random);
+        }
+
+        /**
+         * Reads the tree from the scene cache.
+         */
+        public Tree(ByteBuffer in) {
+            super(in);
+        }
+
         // Draw everything!
         public void draw() {
             gl.glPushMatrix();
@@ -2440,15 +4279,5499 @@ public class RobotRace extends Base {
             glut.glutSolidCube(1f);
             gl.glPopMatrix();
         }
-
     }
     
     /**
-     * Main program execution body, delegates to an instance of
-     * the RobotRace implementation.
+     * Scenario of a reproducible run, read from a properties file:
+     *
+     * seed = 42                    Seed of all random numbers (default: random).
+     * robots = 16                  Number of robots.
+     * materials = GOLD, SILVER     Materials of the robots, repeated over the robots.
+     * pacing = uniform 0 255; normal 140 30
+     *                              Step of a robot per tick in units of the
+     *                              recording (0 to 255), repeated over the robots.
+     * track = 3                    Track number.
+     * camera = 0 0, 10 1, 20 4     Camera mode from every time on (in seconds).
+     * duration = 60                Seconds after which the program exits (0 = never).
+     * forest = 0.02                Trees per square meter of the terrain
+     *                              (default: the three trees of the assignment).
+     * terrain.steps = 200          Resolution of the terrain.
+     * landscape.steps = 10         Resolution of the landscape.
      */
-    public static void main(String args[]) {
-        RobotRace robotRace = new RobotRace();
+    public static class Scenario {
+
+        /** Seed of all random numbers. */
+        public final long seed;
+
+        /** Whether the seed is given, such that the run is reproducible. */
+        public final boolean seeded;
+
+        /** Number of robots. */
+        public final int robotCount;
+
+        /** Materials of the robots, repeated over the robots. */
+        public final Material[] materials;
+
+        /** Pacing of the robots (uniform or normal, and two parameters), repeated over the robots. */
+        private final boolean[] pacingNormal;
+        private final double[] pacingA, pacingB;
+
+        /** Track number (-1 = the track of the window). */
+        public final int trackNr;
+
+        /** Times from which the camera modes of the camera script apply. */
+        private final double[] cameraTimes;
+        private final int[] cameraModes;
+
+        /** Seconds after which the program exits (0 = never). */
+        public final double duration;
+
+        /** Trees per square meter (negative = the three trees of the assignment). */
+        public final double forest;
+
+        /** Resolution of the terrain and the landscape. */
+        public final int terrainSteps, landscapeSteps;
+
+        /**
+         * Construct the scenario from {@code properties}, where the missing
+         * properties take the defaults of the assignment.
+         */
+        public Scenario(Properties properties) throws IOException {
+            try {
+                String seedValue = properties.getProperty("seed");
+                seeded = seedValue != null;
+                seed = seeded ? Long.parseLong(seedValue.trim()) : new Random().nextLong();
+                robotCount = Integer.parseInt(properties.getProperty("robots", "4").trim());
+
+                String[] names = properties.getProperty("materials", "GOLD, SILVER, WOOD, ORANGE").split(",");
+                materials = new Material[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    try {
+                        materials[i] = Material.valueOf(names[i].trim().toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        throw new IOException("Unknown material " + names[i].trim());
+                    }
+                }
+
+                String[] pacings = properties.getProperty("pacing", "uniform 0 255").split(";");
+                pacingNormal = new boolean[pacings.length];
+                pacingA = new double[pacings.length];
+                pacingB = new double[pacings.length];
+                for (int i = 0; i < pacings.length; i++) {
+                    String[] words = pacings[i].trim().split("\\s+");
+                    if (words.length != 3 || !(words[0].equals("uniform") || words[0].equals("normal"))) {
+                        throw new IOException("Bad pacing " + pacings[i].trim());
+                    }
+                    pacingNormal[i] = words[0].equals("normal");
+                    pacingA[i] = Double.parseDouble(words[1]);
+                    pacingB[i] = Double.parseDouble(words[2]);
+                }
+
+                trackNr = Integer.parseInt(properties.getProperty("track", "-1").trim());
+
+                String camera = properties.getProperty("camera", "").trim();
+                String[] entries = camera.isEmpty() ? new String[0] : camera.split(",");
+                cameraTimes = new double[entries.length];
+                cameraModes = new int[entries.length];
+                for (int i = 0; i < entries.length; i++) {
+                    String[] words = entries[i].trim().split("\\s+");
+                    if (words.length != 2) {
+                        throw new IOException("Bad camera entry " + entries[i].trim());
+                    }
+                    cameraTimes[i] = Double.parseDouble(words[0]);
+                    cameraModes[i] = Integer.parseInt(words[1]);
+                }
+
+                duration = Double.parseDouble(properties.getProperty("duration", "0").trim());
+                forest = Double.parseDouble(properties.getProperty("forest", "-1").trim());
+                terrainSteps = Integer.parseInt(properties.getProperty("terrain.steps",
+                    String.valueOf(Integer.getInteger("robotrace.terrain.steps", 200))).trim());
+                landscapeSteps = Integer.parseInt(properties.getProperty("landscape.steps",
+                    String.valueOf(Integer.getInteger("robotrace.landscape.steps", 10))).trim());
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad number " + ex.getMessage());
+            }
+            if (robotCount < 1) {
+                throw new IOException("There must be at least one robot");
+            }
+        }
+
+        /**
+         * Read the scenario from {@code file}.
+         */
+        public static Scenario read(File file) throws IOException {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            return new Scenario(properties);
+        }
+
+        /**
+         * Get the material of robot {@code robot}.
+         */
+        public Material getMaterial(int robot) {
+            return materials[robot % materials.length];
+        }
+
+        /**
+         * Draw the step (0 to 255) of robot {@code robot} in the next tick.
+         */
+        public int step(int robot, Random random) {
+            int i = robot % pacingNormal.length;
+            double step = pacingNormal[i]
+                ? Math.rint(pacingA[i] + pacingB[i] * random.nextGaussian())
+                : Math.floor(pacingA[i] + (pacingB[i] - pacingA[i] + 1) * random.nextDouble());
+            return (int)Math.max(0, Math.min(255, step));
+        }
+
+        /**
+         * Get the camera mode of the camera script at {@code time}, or
+         * {@code camMode} if the script does not apply (yet).
+         */
+        public int getCameraMode(double time, int camMode) {
+            for (int i = 0; i < cameraTimes.length && cameraTimes[i] <= time; i++) {
+                camMode = cameraModes[i];
+            }
+            return camMode;
+        }
+    }
+
+    /**
+     * Everything the GL thread needs to draw one frame. A packet is built
+     * on a worker thread and is not changed after it is handed over. The
+     * robots are simulated once, and every view has its own camera and
+     * visible objects.
+     */
+    private static class FramePacket {
+
+        /** Vertical field of view of the cameras in degrees. */
+        private static final double FIELD_OF_VIEW = 40;
+
+        /** Animation time and track for which the packet is built. */
+        public final double tAnim;
+        public final int trackNr;
+
+        /** Camera mode of every view. */
+        public final int[] camModes;
+
+        /** Eye point, center point and up vector of the camera of every view. */
+        public final Vector[] eye, center, up;
+
+        /** Translation of every robot (x, y, z per robot). */
+        public final double[] robotTranslations;
+
+        /** Pose of every robot. */
+        public final RobotModel[] robotPoses;
+
+        /** Whether every robot and tree is inside every view. */
+        public final boolean[][] robotVisible, treeVisible;
+
+        /** Time difference of every robot in the race that the packet shows. */
+        public final double[] robotDeltaTimes;
+
+        /** Offset of every robot to the left of the center of the track (null = fixed lanes). */
+        public final double[] laneOffsets;
+
+        /** Track time, position and heading of every robot, for the telemetry. */
+        public final double[] trackTimes, headings;
+        public final Vector[] positions;
+
+        /**
+         * Construct a packet for the views with camera modes {@code camModes},
+         * the robots at time differences {@code robotDeltaTimes} with lane
+         * offsets {@code laneOffsets}, and {@code treeCount} trees.
+         */
+        public FramePacket(double tAnim, int trackNr, int[] camModes, double[] robotDeltaTimes,
+                double[] laneOffsets, int treeCount) {
+            int robotCount = robotDeltaTimes.length;
+            this.tAnim = tAnim;
+            this.robotDeltaTimes = robotDeltaTimes;
+            this.laneOffsets = laneOffsets;
+            this.trackNr = trackNr;
+            this.camModes = camModes;
+            this.eye = new Vector[camModes.length];
+            this.center = new Vector[camModes.length];
+            this.up = new Vector[camModes.length];
+            this.robotTranslations = new double[3 * robotCount];
+            this.robotPoses = new RobotModel[robotCount];
+            this.robotVisible = new boolean[camModes.length][robotCount];
+            this.treeVisible = new boolean[camModes.length][treeCount];
+            this.trackTimes = new double[robotCount];
+            this.headings = new double[robotCount];
+            this.positions = new Vector[robotCount];
+        }
+
+        /**
+         * Get the viewport (x, y, width, height) of view {@code view} when
+         * {@code count} views are tiled over a {@code width} by {@code height} frame.
+         */
+        public static int[] viewport(int view, int count, int width, int height) {
+            int columns = (int)Math.ceil(Math.sqrt(count));
+            int rows = (count + columns - 1) / columns;
+            int column = view % columns;
+            // The first view is at the top left
+            int row = rows - 1 - view / columns;
+            int x0 = column * width / columns, x1 = (column + 1) * width / columns;
+            int y0 = row * height / rows, y1 = (row + 1) * height / rows;
+            return new int[] {x0, y0, x1 - x0, y1 - y0};
+        }
+
+        /**
+         * Get the ray through pixel ({@code x}, {@code y}) (from the top left)
+         * of a {@code width} by {@code height} window showing this packet.
+         */
+        public Ray getPixelRay(int x, int y, int width, int height) {
+            // Find the view under the pixel (the viewports count from the bottom)
+            int count = camModes.length;
+            int view = 0;
+            int[] viewport = viewport(0, count, width, height);
+            for (int v = 0; v < count; v++) {
+                int[] area = viewport(v, count, width, height);
+                if (x >= area[0] && x < area[0] + area[2]
+                        && height - 1 - y >= area[1] && height - 1 - y < area[1] + area[3]) {
+                    view = v;
+                    viewport = area;
+                }
+            }
+
+            Vector forward = center[view].subtract(eye[view]).normalized();
+            Vector right = forward.cross(up[view]).normalized();
+            Vector upward = right.cross(forward);
+            double tanHalf = Math.tan(Math.toRadians(FIELD_OF_VIEW / 2));
+            double aspect = (double)viewport[2] / viewport[3];
+            double nx = 2 * (x - viewport[0] + 0.5) / viewport[2] - 1;
+            double ny = 2 * (height - 1 - y - viewport[1] + 0.5) / viewport[3] - 1;
+            return new Ray(eye[view], forward.add(right.scale(nx * tanHalf * aspect))
+                .add(upward.scale(ny * tanHalf)));
+        }
+    }
+
+    /**
+     * Builds the frame packets. When enabled, the packet of the next frame is
+     * built on a worker thread while the current frame is drawn.
+     */
+    private class FrameBuilder {
+
+        /** Radius of the bounding sphere of a robot. */
+        private static final double ROBOT_RADIUS = 1.5;
+
+        /** Worker that builds the next packet (null = build on the GL thread). */
+        private final ThreadPoolExecutor worker;
+
+        /** The packet that is being built for the next frame. */
+        private Future<FramePacket> next;
+
+        /** Animation time of the previous frame. */
+        private double lastTAnim = -1;
+
+        /** Number of frames that used a prebuilt packet, or that had to wait for a new one. */
+        private long hits = 0, misses = 0;
+
+        /**
+         * Construct the frame builder.
+         *
+         * @param pipelined Whether the packets are built ahead on a worker thread.
+         */
+        public FrameBuilder(boolean pipelined) {
+            if (!pipelined) {
+                worker = null;
+                return;
+            }
+            worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "RobotRace frame builder");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    report();
+                }
+            });
+        }
+
+        /**
+         * Get the packet of the frame at time {@code tAnim}, and start building
+         * the packet of the frame after it. The race is only advanced here on
+         * the GL thread; the worker builds from a prediction of the race,
+         * which is used only if the race turns out the same.
+         */
+        public FramePacket acquire(double tAnim, int trackNr, int[] camModes) {
+            FramePacket packet = null;
+            if (next != null) {
+                packet = await(next);
+                next = null;
+            }
+            simulate(tAnim);
+            // Only use the prebuilt packet if it was predicted right
+            if (packet != null && (packet.trackNr != trackNr || !Arrays.equals(packet.camModes, camModes)
+                    || Math.abs(packet.tAnim - tAnim) > SIMULATION_STEP
+                    || !Arrays.equals(packet.robotDeltaTimes, robotDeltaTime)
+                    || (lanes != null && !Arrays.equals(packet.laneOffsets, lanes.offsets)))) {
+                packet = null;
+            }
+            // Edit the track and pick robots while the worker is idle, and build the packet again
+            if (trackEditor != null && trackEditor.apply()) {
+                packet = null;
+            }
+            if (rayCaster != null && rayCaster.apply()) {
+                packet = null;
+            }
+            if (packet == null) {
+                packet = build(tAnim, trackNr, camModes, robotDeltaTime.clone(),
+                    lanes == null ? null : lanes.offsets.clone());
+                misses++;
+            } else {
+                hits++;
+            }
+            if (telemetry != null) {
+                telemetry.publish(packet.tAnim, packet.trackTimes, packet.positions, packet.headings);
+            }
+
+            if (worker != null) {
+                // Predict the time of the next frame from the last frame interval
+                double interval = tAnim - lastTAnim;
+                if (lastTAnim < 0 || interval <= 0 || interval > 1) {
+                    interval = 1.0 / FPS;
+                }
+                final double nextTAnim = packet.tAnim + interval;
+                final int nextTrackNr = trackNr;
+                final int[] nextCamModes = camModes;
+                LaneModel nextLanes = lanes == null ? null : new LaneModel(lanes);
+                final double[] nextDeltas = predict(nextTAnim, nextLanes);
+                final double[] nextOffsets = nextLanes == null ? null : nextLanes.offsets;
+                next = worker.submit(new Callable<FramePacket>() {
+                    @Override
+                    public FramePacket call() {
+                        return build(nextTAnim, nextTrackNr, nextCamModes, nextDeltas, nextOffsets);
+                    }
+                });
+            }
+            lastTAnim = tAnim;
+            return packet;
+        }
+
+        /**
+         * Wait for the packet that is being built (null if it failed).
+         */
+        private FramePacket await(Future<FramePacket> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+
+        /**
+         * Compute the transforms and poses of the robots at time differences
+         * {@code deltas} and lane offsets {@code laneOffsets} (null = fixed
+         * lanes), and the camera and visible objects of the views with
+         * camera modes {@code camModes}.
+         */
+        private FramePacket build(double tAnim, int trackNr, int[] camModes, double[] deltas,
+                double[] laneOffsets) {
+            // Update the track timer
+            double trackTime = tAnim / 20.0;
+
+            FramePacket packet = new FramePacket(tAnim, trackNr, camModes, deltas, laneOffsets, trees.length);
+            double[] trackTimes = packet.trackTimes;
+            Vector[] positions = packet.positions;
+            double[] headings = packet.headings;
+
+            // Every robot is shifted one meter to the right of the previous one
+            Vector shift = Vector.O;
+            FrameTable frames = raceTrack.getFrameTable(trackNr);
+            double[] orientation = new double[9];
+            for (int i = 0; i < robots.length; i++) {
+                // Calculate the time for this robot
+                double robotTrackTime = trackTime + deltas[i];
+
+                // Calculate all directions and positions needed for the robots
+                Vector position = raceTrack.getCurvePoint(robotTrackTime, trackNr);
+                frames.getFrame(robotTrackTime, orientation, 0);
+                Vector left = new Vector(orientation[3], orientation[4], orientation[5]);
+                Vector right = left.scale(-1);
+
+                // Go to the lane of the robot, or else go two meter to the left
+                // And translate half the robot width to the right
+                double robotWidth = 0.5;
+                Vector translation = laneOffsets != null ? position.add(left.scale(laneOffsets[i]))
+                    : position.add(left.scale(2)).add(right.scale(robotWidth)).add(shift);
+                packet.robotTranslations[3 * i] = translation.x();
+                packet.robotTranslations[3 * i + 1] = translation.y();
+                packet.robotTranslations[3 * i + 2] = translation.z();
+                shift = shift.add(right);
+
+                // Change the robot direction and take a copy of its pose
+                robots[i].update(tAnim);
+                robots[i].setDirection(orientation[0], orientation[1]);
+                packet.robotPoses[i] = new RobotModel(robots[i]);
+
+                trackTimes[i] = robotTrackTime;
+                positions[i] = position;
+                headings[i] = robots[i].directionAngle;
+            }
+
+            for (int v = 0; v < camModes.length; v++) {
+                // Update the view according to the camera mode
+                camera.update(camModes[v], tAnim, trackTime, deltas);
+                packet.eye[v] = camera.eye;
+                packet.center[v] = camera.center;
+                packet.up[v] = camera.up;
+
+                // The view cone (around the diagonal of the frustum) and the far plane
+                Vector view = camera.center.subtract(camera.eye).normalized();
+                int[] viewport = FramePacket.viewport(v, camModes.length, gs.w, gs.h);
+                double aspect = viewport[3] <= 0 ? 1 : (double)viewport[2] / viewport[3];
+                double tanHalf = Math.tan(Math.toRadians(40) / 2);
+                double coneAngle = Math.atan(tanHalf * Math.sqrt(1 + aspect * aspect));
+                double far = 10 * gs.vDist;
+
+                for (int i = 0; i < robots.length; i++) {
+                    Vector translation = new Vector(packet.robotTranslations[3 * i],
+                        packet.robotTranslations[3 * i + 1], packet.robotTranslations[3 * i + 2]);
+                    packet.robotVisible[v][i] = isVisible(camera.eye, view, coneAngle, far,
+                        translation, ROBOT_RADIUS);
+                }
+
+                // The trees are drawn 1.5 m lower, with the terrain (once they are ready)
+                if (!sceneLoader.isTreesReady()) {
+                    continue;
+                }
+                Vector[] treesOnTrack = getTreePositions(trackNr);
+                for (int i = 0; i < trees.length; i++) {
+                    Vector position = treesOnTrack[i].add(new Vector(0, 0, -1.5));
+                    packet.treeVisible[v][i] = isVisible(camera.eye, view, coneAngle, far,
+                        position.add(new Vector(0, 0, trees[i].height / 2)), trees[i].height);
+                }
+            }
+            return packet;
+        }
+
+        /**
+         * Whether the sphere around {@code point} with radius {@code radius} is
+         * (partly) inside the view cone with half angle {@code coneAngle} around
+         * {@code view} from {@code eye}, and before the far plane {@code far}.
+         */
+        private boolean isVisible(Vector eye, Vector view, double coneAngle, double far,
+                Vector point, double radius) {
+            Vector v = point.subtract(eye);
+            double distance = v.dot(view);
+            if (distance < -radius || distance > far + radius) {
+                return false;
+            }
+            // Distance of the point to the side of the cone
+            double lateral = v.subtract(view.scale(distance)).length();
+            return lateral * Math.cos(coneAngle) - distance * Math.sin(coneAngle) <= radius;
+        }
+
+        /**
+         * Print how many frames used a prebuilt packet.
+         */
+        private void report() {
+            System.out.println(String.format("Frame packets: %d prebuilt, %d built on the GL thread",
+                hits, misses));
+        }
+    }
+
+    /**
+     * Mip chain of a texture, in the layout of the texture cache files.
+     */
+    private static class MipChain {
+
+        /** Magic number and version of the cache files. */
+        private static final int MAGIC = 0x52525458;
+        private static final int VERSION = 1;
+
+        /** Internal format of the levels. */
+        public final int internalFormat;
+
+        /** Whether the levels hold compressed data of the internal format. */
+        public final boolean compressed;
+
+        /** Size of the first level. */
+        public final int width, height;
+
+        /** Data of every level. */
+        public final ByteBuffer[] levels;
+
+        /** Whether the levels are mapped from a cache file. */
+        public boolean mapped = false;
+
+        /**
+         * Construct a mip chain from its levels.
+         */
+        public MipChain(int internalFormat, boolean compressed, int width, int height, ByteBuffer[] levels) {
+            this.internalFormat = internalFormat;
+            this.compressed = compressed;
+            this.width = width;
+            this.height = height;
+            this.levels = levels;
+        }
+
+        /**
+         * Decode image {@code file}, and compute all its levels with a box filter.
+         * The rows are kept from top to bottom, like the textures of {@link Base}.
+         */
+        public static MipChain decode(File file) throws IOException {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Unknown image format: " + file);
+            }
+            int w = image.getWidth();
+            int h = image.getHeight();
+            int[] argb = image.getRGB(0, 0, w, h, null, 0, w);
+            byte[] level = new byte[3 * w * h];
+            for (int i = 0; i < argb.length; i++) {
+                level[3 * i] = (byte)(argb[i] >> 16);
+                level[3 * i + 1] = (byte)(argb[i] >> 8);
+                level[3 * i + 2] = (byte)argb[i];
+            }
+
+            int count = 1;
+            while ((w >> (count - 1)) > 1 || (h >> (count - 1)) > 1) {
+                count++;
+            }
+            ByteBuffer[] levels = new ByteBuffer[count];
+            levels[0] = direct(level);
+            for (int l = 1; l < count; l++) {
+                int sw = Math.max(1, w >> (l - 1)), sh = Math.max(1, h >> (l - 1));
+                int dw = Math.max(1, w >> l), dh = Math.max(1, h >> l);
+                byte[] next = new byte[3 * dw * dh];
+                for (int y = 0; y < dh; y++) {
+                    int y0 = Math.min(2 * y, sh - 1), y1 = Math.min(2 * y + 1, sh - 1);
+                    for (int x = 0; x < dw; x++) {
+                        int x0 = Math.min(2 * x, sw - 1), x1 = Math.min(2 * x + 1, sw - 1);
+                        for (int c = 0; c < 3; c++) {
+                            int sum = (level[3 * (y0 * sw + x0) + c] & 0xff)
+                                    + (level[3 * (y0 * sw + x1) + c] & 0xff)
+                                    + (level[3 * (y1 * sw + x0) + c] & 0xff)
+                                    + (level[3 * (y1 * sw + x1) + c] & 0xff);
+                            next[3 * (y * dw + x) + c] = (byte)((sum + 2) / 4);
+                        }
+                    }
+                }
+                levels[l] = direct(next);
+                level = next;
+            }
+            return new MipChain(GL_RGB8, false, w, h, levels);
+        }
+
+        /**
+         * Copy {@code bytes} into a direct buffer, which can be passed to OpenGL.
+         */
+        private static ByteBuffer direct(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes);
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Map cache file {@code cache} of image {@code source} into memory.
+         *
+         * @return The mip chain, or null if there is no cache file, or it is out
+         *         of date, truncated or corrupt.
+         */
+        public static MipChain read(File cache, File source) {
+            if (!cache.isFile()) {
+                return null;
+            }
+            try {
+                RandomAccessFile file = new RandomAccessFile(cache, "r");
+                try {
+                    return read(file.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, file.length()), source);
+                } finally {
+                    // The mapping stays valid after the file is closed
+                    file.close();
+                }
+            } catch (IOException ex) {
+                return null;
+            } catch (RuntimeException ex) {
+                // For example a buffer underflow, which is checked for already
+                return null;
+            }
+        }
+
+        /**
+         * Read the mip chain of image {@code source} from the mapped cache file {@code map}.
+         *
+         * @return The mip chain, or null if the file does not match the source
+         *         or its levels do not fit in the file.
+         */
+        private static MipChain read(ByteBuffer map, File source) {
+            if (map.remaining() < 36 || map.getInt() != MAGIC || map.getInt() != VERSION
+                    || map.getLong() != source.length() || map.getLong() != source.lastModified()) {
+                return null;
+            }
+            int internalFormat = map.getInt();
+            boolean compressed = map.getInt() != 0;
+            int count = map.getInt();
+            if (count < 1 || count > 32 || map.remaining() < 12L * count) {
+                return null;
+            }
+            ByteBuffer[] levels = new ByteBuffer[count];
+            int[] sizes = new int[count];
+            int width = 0, height = 0;
+            long total = 0;
+            for (int l = 0; l < count; l++) {
+                int w = map.getInt();
+                int h = map.getInt();
+                if (l == 0) {
+                    width = w;
+                    height = h;
+                    if (width < 1 || height < 1 || Math.max(width, height) >> (count - 1) != 1) {
+                        return null;
+                    }
+                }
+                sizes[l] = map.getInt();
+                if (w != Math.max(1, width >> l) || h != Math.max(1, height >> l) || sizes[l] < 0
+                        || (!compressed && sizes[l] != 3L * w * h)) {
+                    return null;
+                }
+                total += sizes[l];
+            }
+            if (total > map.remaining()) {
+                return null;
+            }
+            int offset = map.position();
+            for (int l = 0; l < levels.length; l++) {
+                ByteBuffer level = map.duplicate();
+                level.position(offset);
+                level.limit(offset + sizes[l]);
+                levels[l] = level.slice();
+                offset += sizes[l];
+            }
+            MipChain chain = new MipChain(internalFormat, compressed, width, height, levels);
+            chain.mapped = true;
+            return chain;
+        }
+
+        /**
+         * Write this mip chain of image {@code source} to cache file {@code cache}.
+         */
+        public void write(File cache, File source) throws IOException {
+            File temporary = new File(cache.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.length());
+                out.writeLong(source.lastModified());
+                out.writeInt(internalFormat);
+                out.writeInt(compressed ? 1 : 0);
+                out.writeInt(levels.length);
+                for (int l = 0; l < levels.length; l++) {
+                    out.writeInt(Math.max(1, width >> l));
+                    out.writeInt(Math.max(1, height >> l));
+                    out.writeInt(levels[l].remaining());
+                }
+                for (ByteBuffer level : levels) {
+                    byte[] bytes = new byte[level.remaining()];
+                    level.duplicate().get(bytes);
+                    out.write(bytes);
+                }
+            } finally {
+                out.close();
+            }
+            // Replace the old cache file only when the new one is complete
+            cache.delete();
+            if (!temporary.renameTo(cache)) {
+                throw new IOException("Could not write " + cache);
+            }
+        }
+    }
+
+    /**
+     * Loads the textures on a background thread. Every texture is decoded
+     * and its mip chain is computed once, after which it is kept (compressed
+     * when the driver supports S3TC) in a cache file that is memory mapped
+     * on later startups. Until a texture is ready, a placeholder is shown.
+     */
+    private class TextureLoader {
+
+        /** Directory of the cache files (null = disabled). */
+        private final File directory;
+
+        /** Thread that decodes the images and reads and writes the cache files. */
+        private ExecutorService worker;
+
+        /** Mip chains that are being loaded, for every texture. */
+        private final Map<Texture, Future<MipChain>> pending = new LinkedHashMap<Texture, Future<MipChain>>();
+
+        /** Image file of every texture. */
+        private final Map<Texture, File> sources = new HashMap<Texture, File>();
+
+        /** Number of textures, and the number of them that came from the cache. */
+        private int count = 0, cached = 0;
+
+        /** Start time of the application in milliseconds. */
+        private final long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        /** Whether the first frame is drawn. */
+        private boolean firstFrame = false;
+
+        /**
+         * Construct the texture loader.
+         *
+         * @param directory Directory of the cache files (null = disabled).
+         */
+        public TextureLoader(String directory) {
+            this.directory = directory == null ? null : new File(directory);
+        }
+
+        /**
+         * Whether the textures are loaded by this loader.
+         */
+        public boolean isEnabled() {
+            return directory != null;
+        }
+
+        /**
+         * Start loading texture {@code file}.
+         *
+         * @param  file        Name of the texture file.
+         * @param  placeholder Texture that is shown until it is ready (null = a gray pixel).
+         * @return             The texture, which receives the mip chain when it is ready.
+         */
+        public Texture load(String file, Texture placeholder) {
+            if (worker == null) {
+                directory.mkdirs();
+                worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "RobotRace texture loader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            Texture texture = placeholder;
+            if (texture == null) {
+                ByteBuffer gray = MipChain.direct(new byte[] {(byte)128, (byte)128, (byte)128});
+                texture = new Texture(gl, new TextureData(
+                    gl.getGLProfile(), GL_RGB8, 1, 1, 0, GL_RGB, GL_UNSIGNED_BYTE,
+                    false, false, false, gray, null));
+                texture.enable(gl);
+            }
+
+            // Like Base: first from the working folder, then from /src
+            final File source = new File(file).isFile() ? new File(file) : new File("src/" + file);
+            final File cache = new File(directory, file + ".mip");
+            pending.put(texture, worker.submit(new Callable<MipChain>() {
+                @Override
+                public MipChain call() throws IOException {
+                    // A missing or damaged cache file is decoded again, and rewritten on upload
+                    MipChain chain = MipChain.read(cache, source);
+                    return chain != null ? chain : MipChain.decode(source);
+                }
+            }));
+            sources.put(texture, source);
+            count++;
+            return texture;
+        }
+
+        /**
+         * Upload the textures that are ready. Called on the GL thread before every frame.
+         */
+        public void update() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            Iterator<Map.Entry<Texture, Future<MipChain>>> entries = pending.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Texture, Future<MipChain>> entry = entries.next();
+                if (!entry.getValue().isDone()) {
+                    continue;
+                }
+                entries.remove();
+                Texture texture = entry.getKey();
+                File source = sources.get(texture);
+                try {
+                    upload(texture, source, entry.getValue().get());
+                    atlas.invalidate();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    System.err.println("Could not load " + source + ": " + ex.getCause());
+                }
+            }
+            if (pending.isEmpty()) {
+                System.out.println(String.format("Textures ready after %d ms (%d of %d from the cache)",
+                    System.currentTimeMillis() - startTime, cached, count));
+            }
+        }
+
+        /**
+         * Upload {@code chain} to {@code texture}, and write the cache file when
+         * the chain is not from the cache.
+         */
+        private void upload(Texture texture, final File source, MipChain chain) {
+            boolean compress = !chain.compressed
+                && gl.isExtensionAvailable("GL_EXT_texture_compression_s3tc");
+            int internalFormat = compress ? GL_COMPRESSED_RGB_S3TC_DXT1_EXT : chain.internalFormat;
+            gl.glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+            texture.updateImage(gl, new TextureData(
+                gl.getGLProfile(), internalFormat, chain.width, chain.height, 0, GL_RGB,
+                GL_UNSIGNED_BYTE, chain.compressed, false, chain.levels, null));
+            texture.setTexParameteri(gl, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+            texture.setTexParameteri(gl, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+
+            if (chain.mapped) {
+                cached++;
+                return;
+            }
+            if (compress) {
+                // Read back the levels as the driver compressed them
+                ByteBuffer[] levels = new ByteBuffer[chain.levels.length];
+                int[] size = new int[1];
+                texture.bind(gl);
+                for (int l = 0; l < levels.length; l++) {
+                    gl.glGetTexLevelParameteriv(GL_TEXTURE_2D, l, GL_TEXTURE_COMPRESSED_IMAGE_SIZE, size, 0);
+                    levels[l] = ByteBuffer.allocateDirect(size[0]);
+                    gl.glGetCompressedTexImage(GL_TEXTURE_2D, l, levels[l]);
+                }
+                chain = new MipChain(internalFormat, true, chain.width, chain.height, levels);
+            }
+            final MipChain result = chain;
+            final File cache = new File(directory, source.getName() + ".mip");
+            worker.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result.write(cache, source);
+                    } catch (IOException ex) {
+                        System.err.println("Could not write " + cache + ": " + ex.getMessage());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Report the time to the first frame. Called on the GL thread after every frame.
+         */
+        public void endFrame() {
+            if (isEnabled() && !firstFrame) {
+                firstFrame = true;
+                System.out.println(String.format("First frame after %d ms (%d of %d textures ready)",
+                    System.currentTimeMillis() - startTime, count - pending.size(), count));
+            }
+        }
+    }
+
+    /**
+     * Builds the terrain, the landscape and the trees, either in the
+     * constructor or on background threads. In the background, the first
+     * frames are drawn without the parts of the scene that are not ready.
+     */
+    private class SceneLoader {
+
+        /** Whether the scene is built on background threads. */
+        private final boolean background;
+
+        /** Whether the times to the first frame and the complete scene are reported. */
+        private final boolean report;
+
+        /** Start time of the application in milliseconds. */
+        private final long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        /** Whether the trees are built and placed. */
+        private volatile boolean treesReady = false;
+
+        /** Whether the terrain, the landscape and the trees are ready. */
+        private volatile boolean ready = false;
+
+        /** Released when the scene is ready (or could not be built). */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** Whether the first frame is drawn. */
+        private boolean firstFrame = false;
+
+        /** Tracks as written to the scene cache, before the loaders start (null = not written). */
+        private byte[] tracks;
+
+        /**
+         * Construct the scene loader.
+         *
+         * @param mode "true" to build in the background, "false" to build in
+         *             the constructor, both with a report (null = no report).
+         */
+        public SceneLoader(String mode) {
+            background = Boolean.parseBoolean(mode);
+            report = mode != null;
+        }
+
+        /**
+         * Whether the trees are built and placed.
+         */
+        public boolean isTreesReady() {
+            return treesReady;
+        }
+
+        /**
+         * Whether the terrain, the landscape and the trees are ready.
+         */
+        public boolean isReady() {
+            return ready;
+        }
+
+        /**
+         * Wait until the scene is ready.
+         */
+        public void await() {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Generate the terrain, the landscape and the trees with heights
+         * {@code treeHeights} (placed at {@code forestPlaces}, if not null),
+         * and write them to {@code cache}.
+         */
+        public void load(final int terrainSteps, final int landscapeSteps, final double[] treeHeights,
+                final double[][] forestPlaces, final Random random, final SceneCache cache, final long sceneTime) {
+            // The GL thread edits the tracks in place, so the loaders only
+            // get a copy, which is tessellated here
+            if (cache.isEnabled()) {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    raceTrack.write(out);
+                    out.flush();
+                    tracks = bytes.toByteArray();
+                } catch (IOException ex) {
+                    System.err.println("Could not write the tracks: " + ex.getMessage());
+                }
+            }
+            if (!background) {
+                terrain = new Terrain(terrainSteps);
+                landscape = new Landscape(landscapeSteps);
+                buildTrees(treeHeights, random);
+                placeTrees(forestPlaces);
+                complete(cache, true, sceneTime);
+                return;
+            }
+
+            final ExecutorService workers = Executors.newFixedThreadPool(
+                Math.min(3, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "RobotRace scene loader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            // The terrain is submitted first, since the trees wait for it
+            final Future<?> terrainDone = workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    terrain = new Terrain(terrainSteps);
+                }
+            });
+            final Future<?> landscapeDone = workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    landscape = new Landscape(landscapeSteps);
+                }
+            });
+            workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        buildTrees(treeHeights, random);
+                        terrainDone.get();
+                        placeTrees(forestPlaces);
+                        landscapeDone.get();
+                        complete(cache, true, sceneTime);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException ex) {
+                        System.err.println("Could not build the scene: " + ex.getCause());
+                    } finally {
+                        done.countDown();
+                        workers.shutdown();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Build the trees with heights {@code treeHeights}.
+         */
+        private void buildTrees(double[] treeHeights, Random random) {
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = new Tree(treeHeights[i], random);
+            }
+        }
+
+        /**
+         * Place the trees on the terrain, at {@code forestPlaces} if not null.
+         */
+        public void placeTrees(double[][] forestPlaces) {
+            // Position the trees such that they are on the right position and right
+            // height, and move them somewhat lower such that they are in the ground
+            if (forestPlaces != null) {
+                for (int i = 0; i < trees.length; i++) {
+                    float x = (float)forestPlaces[i][0], y = (float)forestPlaces[i][1];
+                    treePositions[i] = new Vector(x, y, terrain.heightAt(x, y) - 0.5);
+                }
+            } else {
+                // First tree
+                treePositions[0] = new Vector(0, -3, terrain.heightAt(0f, 3f) - 0.5);
+                // Second tree
+                treePositions[1] = new Vector(12f, -10f, terrain.heightAt(12f, -10f) - 0.5);
+                // Last tree
+                treePositions[2] = new Vector(-15, 15, terrain.heightAt(-15f, 15f) - 0.5);
+            }
+            treesReady = true;
+        }
+
+        /**
+         * Complete the scene, and write it to {@code cache} if it is {@code generated}.
+         */
+        public void complete(SceneCache cache, boolean generated, long sceneTime) {
+            if (generated && tracks != null) {
+                try {
+                    DataOutputStream out = cache.create();
+                    out.write(tracks);
+                    terrain.write(out);
+                    landscape.write(out);
+                    for (Tree tree : trees) {
+                        tree.write(out);
+                    }
+                    cache.commit(out);
+                } catch (IOException ex) {
+                    System.err.println("Could not write the scene cache: " + ex.getMessage());
+                }
+            }
+            if (cache.isEnabled()) {
+                System.out.println(String.format("Scene %s in %.1f ms",
+                    generated ? "generated" : "read from the cache",
+                    (System.nanoTime() - sceneTime) / 1e6));
+            }
+            ready = true;
+            done.countDown();
+            if (report) {
+                System.out.println(String.format("Scene complete after %d ms (%d trees%s)",
+                    System.currentTimeMillis() - startTime, trees.length,
+                    background ? ", in the background" : ""));
+            }
+        }
+
+        /**
+         * Report the time to the first frame. Called on the GL thread after every frame.
+         */
+        public void endFrame() {
+            if (report && !firstFrame) {
+                firstFrame = true;
+                System.out.println(String.format("First frame after %d ms (scene %s)",
+                    System.currentTimeMillis() - startTime, ready ? "complete" : "still loading"));
+            }
+        }
+    }
+
+    /**
+     * Atlas of the track, brick, head and torso textures, such that the
+     * track and the robots are drawn without switching textures. The
+     * texture coordinates of the meshes stay within [0, 1], and are mapped
+     * to the region of the bound texture when they are passed to OpenGL.
+     */
+    private class TextureAtlas {
+
+        /** Number of texels around every region, copied from its edges. */
+        private static final int PADDING = 4;
+
+        /** Whether the atlas is used. */
+        private final boolean enabled;
+
+        /** Texture object of the atlas (0 = not built). */
+        private int atlas = 0;
+
+        /** Whether the textures changed since the atlas was built. */
+        private boolean dirty = true;
+
+        /** Region of every texture in the atlas (u0, v0, u1, v1). */
+        private final Map<Texture, double[]> regions = new HashMap<Texture, double[]>();
+
+        /** Region of the bound texture. */
+        private double[] region;
+
+        /** Whether the atlas is bound in the current frame. */
+        private boolean bound = false;
+
+        /**
+         * Construct the texture atlas.
+         *
+         * @param enabled Whether the atlas is used.
+         */
+        public TextureAtlas(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * Rebuild the atlas before the next frame (the images of the textures changed).
+         */
+        public void invalidate() {
+            dirty = true;
+        }
+
+        /**
+         * Build the atlas when needed. Called on the GL thread before every frame.
+         */
+        public void beginFrame() {
+            bound = false;
+            if (enabled && dirty && track != null && brick != null && head != null && torso != null) {
+                build(new Texture[] {track, brick, head, torso});
+                dirty = false;
+            }
+        }
+
+        /**
+         * Bind {@code texture}, or the atlas if it holds {@code texture}.
+         */
+        public void bind(Texture texture) {
+            region = regions.get(texture);
+            if (region == null) {
+                texture.bind(gl);
+                bound = false;
+            } else if (!bound) {
+                gl.glBindTexture(GL_TEXTURE_2D, atlas);
+                bound = true;
+            }
+        }
+
+        /**
+         * Whether the bound texture is in the atlas, such that it does not repeat.
+         */
+        public boolean isBound() {
+            return region != null;
+        }
+
+        /**
+         * Pass texture coordinate ({@code s}, {@code t}) of the bound texture to OpenGL.
+         */
+        public void texCoord(double s, double t) {
+            if (region == null) {
+                gl.glTexCoord2d(s, t);
+            } else {
+                gl.glTexCoord2d(region[0] + s * (region[2] - region[0]),
+                                region[1] + t * (region[3] - region[1]));
+            }
+        }
+
+        /**
+         * Copy the images of {@code textures} next to each other into the atlas.
+         */
+        private void build(Texture[] textures) {
+            // Read back the images of the textures
+            int[] widths = new int[textures.length];
+            int[] heights = new int[textures.length];
+            ByteBuffer[] images = new ByteBuffer[textures.length];
+            int[] size = new int[1];
+            int width = 0, height = 0;
+            gl.glPixelStorei(GL_PACK_ALIGNMENT, 1);
+            for (int i = 0; i < textures.length; i++) {
+                textures[i].bind(gl);
+                gl.glGetTexLevelParameteriv(GL_TEXTURE_2D, 0, GL_TEXTURE_WIDTH, size, 0);
+                widths[i] = size[0];
+                gl.glGetTexLevelParameteriv(GL_TEXTURE_2D, 0, GL_TEXTURE_HEIGHT, size, 0);
+                heights[i] = size[0];
+                images[i] = ByteBuffer.allocateDirect(3 * widths[i] * heights[i]);
+                gl.glGetTexImage(GL_TEXTURE_2D, 0, GL_RGB, GL_UNSIGNED_BYTE, images[i]);
+                width += widths[i] + 2 * PADDING;
+                height = Math.max(height, heights[i] + 2 * PADDING);
+            }
+
+            // Put them in a row, and extend their edges into the padding
+            ByteBuffer pixels = ByteBuffer.allocateDirect(3 * width * height);
+            regions.clear();
+            int x0 = 0;
+            for (int i = 0; i < textures.length; i++) {
+                int w = widths[i], h = heights[i];
+                for (int y = 0; y < h + 2 * PADDING; y++) {
+                    int sy = Math.min(Math.max(y - PADDING, 0), h - 1);
+                    for (int x = 0; x < w + 2 * PADDING; x++) {
+                        int sx = Math.min(Math.max(x - PADDING, 0), w - 1);
+                        int source = 3 * (sy * w + sx);
+                        int target = 3 * (y * width + x0 + x);
+                        pixels.put(target, images[i].get(source));
+                        pixels.put(target + 1, images[i].get(source + 1));
+                        pixels.put(target + 2, images[i].get(source + 2));
+                    }
+                }
+                regions.put(textures[i], new double[] {
+                    (double)(x0 + PADDING) / width, (double)PADDING / height,
+                    (double)(x0 + PADDING + w) / width, (double)(PADDING + h) / height
+                });
+                x0 += w + 2 * PADDING;
+            }
+
+            // Upload the atlas; the padding covers the first two mipmap levels
+            if (atlas == 0) {
+                int[] name = new int[1];
+                gl.glGenTextures(1, name, 0);
+                atlas = name[0];
+            }
+            gl.glBindTexture(GL_TEXTURE_2D, atlas);
+            gl.glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+            gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB8, width, height, 0, GL_RGB, GL_UNSIGNED_BYTE, pixels);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, 2);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            gl.glGenerateMipmap(GL_TEXTURE_2D);
+        }
+    }
+
+    /**
+     * Versioned binary cache of the generated scene: the tessellated tracks,
+     * the grids of the terrain and the landscape, and the parameters of the
+     * trees. The file is keyed by the generation parameters and is memory
+     * mapped when it is read, so it is rebuilt when the parameters change.
+     */
+    private static class SceneCache {
+
+        /** Magic number and version of the cache file. */
+        private static final int MAGIC = 0x52525343;
+        private static final int VERSION = 3;
+
+        /** Size of the digest of the generation parameters. */
+        private static final int DIGEST_SIZE = 20;
+
+        /** The cache file (null = disabled). */
+        private final File file;
+
+        /** SHA-1 digest of the generation parameters of the scene. */
+        private final byte[] digest;
+
+        /**
+         * Construct the scene cache.
+         *
+         * @param file Name of the cache file (null = disabled).
+         * @param key  The generation parameters of the scene, of any length.
+         */
+        public SceneCache(String file, String key) {
+            this.file = file == null ? null : new File(file);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes("UTF-8"));
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Whether the scene is cached.
+         */
+        public boolean isEnabled() {
+            return file != null;
+        }
+
+        /**
+         * Map the cache file into memory.
+         *
+         * @return The scene data after the header, or null if there is no
+         *         cache file or it is for other parameters.
+         */
+        public ByteBuffer read() throws IOException {
+            if (file == null || !file.isFile()) {
+                return null;
+            }
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                if (in.length() < 8 + DIGEST_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                byte[] stored = new byte[DIGEST_SIZE];
+                in.readFully(stored);
+                if (!Arrays.equals(stored, digest)) {
+                    return null;
+                }
+                long start = in.getFilePointer();
+                // The mapping stays valid after the file is closed
+                return in.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, start, in.length() - start);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Start writing a new cache file, of which the header is written.
+         */
+        public DataOutputStream create() throws IOException {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary())));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(digest);
+            return out;
+        }
+
+        /**
+         * Close {@code out} and replace the cache file by it.
+         */
+        public void commit(DataOutputStream out) throws IOException {
+            out.close();
+            file.delete();
+            if (!temporary().renameTo(file)) {
+                throw new IOException("Could not write " + file);
+            }
+        }
+
+        /**
+         * File to which the new cache file is written.
+         */
+        private File temporary() {
+            return new File(file.getPath() + ".tmp");
+        }
+
+        /**
+         * Write the values of {@code grid} row by row.
+         */
+        public static void writeGrid(DataOutputStream out, double[][] grid) throws IOException {
+            for (double[] row : grid) {
+                for (double value : row) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+
+        /**
+         * Read a grid of {@code rows} by {@code columns} values.
+         */
+        public static double[][] readGrid(ByteBuffer in, int rows, int columns) {
+            double[][] grid = new double[rows][columns];
+            DoubleBuffer values = in.asDoubleBuffer();
+            for (double[] row : grid) {
+                values.get(row);
+            }
+            in.position(in.position() + 8 * rows * columns);
+            return grid;
+        }
+
+        /**
+         * Write the vectors of {@code grid} row by row.
+         */
+        public static void writeVectors(DataOutputStream out, Vector[][] grid) throws IOException {
+            for (Vector[] row : grid) {
+                for (Vector vector : row) {
+                    out.writeDouble(vector.x());
+                    out.writeDouble(vector.y());
+                    out.writeDouble(vector.z());
+                }
+            }
+        }
+
+        /**
+         * Read a grid of {@code rows} by {@code columns} vectors.
+         */
+        public static Vector[][] readVectors(ByteBuffer in, int rows, int columns) {
+            Vector[][] grid = new Vector[rows][columns];
+            DoubleBuffer values = in.asDoubleBuffer();
+            for (Vector[] row : grid) {
+                for (int i = 0; i < columns; i++) {
+                    row[i] = new Vector(values.get(), values.get(), values.get());
+                }
+            }
+            in.position(in.position() + 24 * rows * columns);
+            return grid;
+        }
+    }
+
+    /**
+     * Publishes snapshots of the robots to subscribers over TCP. A single
+     * thread runs a non-blocking selector, and every snapshot is written
+     * once into a direct buffer that is shared by all subscribers. A
+     * subscriber that has not received the previous snapshot yet skips
+     * the new one, so slow subscribers never block the publisher.
+     *
+     * Every message is a length prefixed frame (big endian):
+     * int length, int magic, int sequence, double tAnim, int robotCount,
+     * and for every robot: int lap, float track parameter, float x, y, z,
+     * float heading (degrees).
+     */
+    static class TelemetryServer implements Runnable {
+
+        /** Magic number of the messages. */
+        public static final int MAGIC = 0x5252544c;
+
+        /** Size of the header and of every robot in a message. */
+        public static final int HEADER_SIZE = 24, ROBOT_SIZE = 24;
+
+        /** Time after which a subscriber that is stuck on one snapshot is dropped. */
+        private static final long TIMEOUT_NANOS = 5000000000L;
+
+        /** Interval between the snapshots in nanoseconds. */
+        private final long intervalNanos;
+
+        /** Listening channel and the selector. */
+        private final ServerSocketChannel server;
+        private final Selector selector;
+
+        /**
+         * Latest published state, which is copied into the next snapshot
+         * (without the length, the magic and the sequence number).
+         */
+        private ByteBuffer staging = ByteBuffer.allocate(1 << 16);
+        private boolean changed = false;
+
+        /** Number of the next snapshot. */
+        private int sequence = 0;
+
+        /** Snapshots that every subscriber has sent, which are reused. */
+        private final ArrayDeque<Snapshot> free = new ArrayDeque<Snapshot>();
+
+        /** Number of allocated snapshot buffers. */
+        private volatile int buffers = 0;
+
+        /** Number of subscribers, and of sent and skipped snapshots. */
+        private volatile int subscribers = 0;
+        private final AtomicLong sent = new AtomicLong(), skipped = new AtomicLong();
+
+        /** Whether the server is stopped. */
+        private volatile boolean closed = false;
+
+        /**
+         * A snapshot in a direct buffer, with the number of its users (the
+         * subscribers that did not receive all of it yet, and the broadcast).
+         */
+        private static class Snapshot {
+            final ByteBuffer buffer;
+            int users;
+
+            Snapshot(int capacity) {
+                buffer = ByteBuffer.allocateDirect(capacity);
+            }
+        }
+
+        /**
+         * A subscriber with the part of a snapshot that it did not receive yet.
+         */
+        private static class Subscriber {
+            Snapshot snapshot;
+            ByteBuffer pending;
+            long since;
+        }
+
+        /**
+         * Open the server on {@code port} (0 = any free port) of the loopback
+         * or all interfaces, which sends {@code rate} snapshots per second.
+         */
+        public TelemetryServer(int port, boolean loopbackOnly, double rate) throws IOException {
+            this.intervalNanos = (long)(1e9 / rate);
+            server = ServerSocketChannel.open();
+            server.socket().bind(loopbackOnly
+                ? new InetSocketAddress(InetAddress.getByName(null), port)
+                : new InetSocketAddress(port));
+            server.configureBlocking(false);
+            selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * Start the server thread.
+         */
+        public void start() {
+            Thread thread = new Thread(this, "RobotRace telemetry");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Get the port on which the server listens.
+         */
+        public int getPort() {
+            return server.socket().getLocalPort();
+        }
+
+        /**
+         * Get the number of subscribers.
+         */
+        public int getSubscribers() {
+            return subscribers;
+        }
+
+        /**
+         * Get the number of snapshots written to subscribers.
+         */
+        public long getSent() {
+            return sent.get();
+        }
+
+        /**
+         * Get the number of allocated snapshot buffers.
+         */
+        public int getBuffers() {
+            return buffers;
+        }
+
+        /**
+         * Get the number of snapshots that were skipped for slow subscribers.
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Publish the state of the robots at time {@code tAnim}: the time on
+         * the track (the laps are the integer part), the position and the
+         * heading of every robot. Returns immediately.
+         */
+        public synchronized void publish(double tAnim, double[] trackTimes, Vector[] positions, double[] headings) {
+            int size = HEADER_SIZE - 12 + trackTimes.length * ROBOT_SIZE;
+            if (staging.capacity() < size) {
+                // Grow for more robots
+                staging = ByteBuffer.allocate(size);
+            }
+            staging.clear();
+            staging.putDouble(tAnim);
+            staging.putInt(trackTimes.length);
+            for (int i = 0; i < trackTimes.length; i++) {
+                double lap = Math.floor(trackTimes[i]);
+                staging.putInt((int)lap);
+                staging.putFloat((float)(trackTimes[i] - lap));
+                staging.putFloat((float)positions[i].x());
+                staging.putFloat((float)positions[i].y());
+                staging.putFloat((float)positions[i].z());
+                staging.putFloat((float)headings[i]);
+            }
+            staging.flip();
+            changed = true;
+        }
+
+        /**
+         * Copy the latest published state into a free snapshot (null if
+         * nothing changed), which has one user: the caller.
+         */
+        private synchronized Snapshot snapshot() {
+            if (!changed) {
+                return null;
+            }
+            changed = false;
+            int size = 12 + staging.remaining();
+            Snapshot snapshot = free.poll();
+            if (snapshot != null && snapshot.buffer.capacity() < size) {
+                // Too small for more robots, so replace it (and the other small ones later)
+                snapshot = null;
+                buffers--;
+            }
+            if (snapshot == null) {
+                snapshot = new Snapshot(size);
+                buffers++;
+            }
+            ByteBuffer buffer = snapshot.buffer;
+            buffer.clear();
+            buffer.putInt(8 + staging.remaining());
+            buffer.putInt(MAGIC);
+            buffer.putInt(sequence++);
+            buffer.put(staging.duplicate());
+            buffer.flip();
+            snapshot.users = 1;
+            return snapshot;
+        }
+
+        /**
+         * Release {@code snapshot} by one user, and reuse it when it has none left.
+         */
+        private void release(Snapshot snapshot) {
+            if (--snapshot.users == 0) {
+                free.add(snapshot);
+            }
+        }
+
+        /**
+         * Accept subscribers, and send them the snapshots at the configured rate.
+         */
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            ByteBuffer discard = ByteBuffer.allocate(256);
+            try {
+                while (!closed) {
+                    // Wait for the next snapshot (in the last millisecond without blocking)
+                    long wait = (next - System.nanoTime()) / 1000000;
+                    if (wait > 0) {
+                        selector.select(wait);
+                    } else {
+                        selector.selectNow();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                // Subscribers do not send anything, so only detect the end
+                                discard.clear();
+                                if (((SocketChannel)key.channel()).read(discard) < 0) {
+                                    drop(key);
+                                    continue;
+                                }
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    }
+                    selector.selectedKeys().clear();
+
+                    long now = System.nanoTime();
+                    if (now >= next) {
+                        broadcast(now);
+                        // Do not try to catch up after a stall
+                        next = Math.max(next + intervalNanos, now);
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Telemetry server stopped: " + ex.getMessage());
+            } finally {
+                try {
+                    for (SelectionKey key : selector.keys()) {
+                        key.channel().close();
+                    }
+                    selector.close();
+                } catch (IOException ex) {
+                    // Closing anyway
+                }
+            }
+        }
+
+        /**
+         * Accept the new subscribers.
+         */
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(selector, SelectionKey.OP_READ, new Subscriber());
+                subscribers++;
+            }
+        }
+
+        /**
+         * Hand the next snapshot to every subscriber that is ready for it.
+         */
+        private void broadcast(long now) {
+            Snapshot snapshot = snapshot();
+            if (snapshot == null) {
+                return;
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid() || !(key.attachment() instanceof Subscriber)) {
+                    continue;
+                }
+                Subscriber subscriber = (Subscriber)key.attachment();
+                if (subscriber.pending != null) {
+                    // Still busy with an older snapshot
+                    skipped.incrementAndGet();
+                    if (now - subscriber.since > TIMEOUT_NANOS) {
+                        drop(key);
+                    }
+                    continue;
+                }
+                // All subscribers share the memory of the snapshot
+                subscriber.snapshot = snapshot;
+                subscriber.pending = snapshot.buffer.duplicate();
+                subscriber.since = now;
+                snapshot.users++;
+                write(key);
+            }
+            release(snapshot);
+        }
+
+        /**
+         * Write as much of the pending snapshot of {@code key} as the socket accepts.
+         */
+        private void write(SelectionKey key) {
+            Subscriber subscriber = (Subscriber)key.attachment();
+            if (subscriber.pending == null) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            try {
+                ((SocketChannel)key.channel()).write(subscriber.pending);
+            } catch (IOException ex) {
+                drop(key);
+                return;
+            }
+            if (subscriber.pending.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ
+                    | SelectionKey.OP_WRITE);
+            } else {
+                release(subscriber.snapshot);
+                subscriber.snapshot = null;
+                subscriber.pending = null;
+                sent.incrementAndGet();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Disconnect the subscriber of {@code key}.
+         */
+        private void drop(SelectionKey key) {
+            Subscriber subscriber = (Subscriber)key.attachment();
+            if (subscriber.snapshot != null) {
+                release(subscriber.snapshot);
+                subscriber.snapshot = null;
+            }
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ex) {
+                // Already closed
+            }
+            subscribers--;
+        }
+
+        /**
+         * Stop the server and disconnect all subscribers.
+         */
+        public void close() {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Appends the steps of the race to a memory mapped file, such that the
+     * race can be replayed by a {@link RacePlayer}.
+     *
+     * The file starts with a header: int magic, int version, int robotCount,
+     * int keyframeInterval, double step, long ticks (the number of recorded
+     * ticks, updated after every tick, such that a recording of a killed
+     * process ends at its last tick), and the period of every robot
+     * (double). Then follow blocks of keyframeInterval ticks.
+     * Every block starts with a keyframe (the time difference of every robot
+     * before the first tick of the block, as doubles), which is the seek
+     * index, followed by one byte per robot for every tick: the step of the
+     * time difference of the robot in units of {@link #STEP_UNIT}.
+     */
+    static class RaceRecorder {
+
+        /** Magic number and version of the recordings. */
+        public static final int MAGIC = 0x52525243;
+        public static final int VERSION = 2;
+
+        /** Position of the number of recorded ticks in the header. */
+        public static final int TICKS_OFFSET = 24;
+
+        /** Size of a step of the time difference of a robot. */
+        public static final double STEP_UNIT = 0.002 / 255;
+
+        /** Number of ticks per block (10 seconds of the race). */
+        public static final int KEYFRAME_INTERVAL = 300;
+
+        /** Size of the mapped windows of the file. */
+        private static final long WINDOW_SIZE = 16 << 20;
+
+        /** The recording. */
+        private final RandomAccessFile file;
+
+        /** Number of robots. */
+        private final int robotCount;
+
+        /** Size of the header and of a block. */
+        private final long headerSize, blockSize;
+
+        /** Mapped header of the file, which holds the number of recorded ticks. */
+        private final MappedByteBuffer header;
+
+        /** Mapped window of the file that is being written, and its position in the file. */
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        /** Number of recorded ticks. */
+        private long ticks = 0;
+
+        /**
+         * Create recording {@code file} of robots with periods {@code periods}.
+         */
+        public RaceRecorder(File file, double[] periods, double step) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            this.file.setLength(0);
+            this.robotCount = periods.length;
+            this.headerSize = headerSize(robotCount);
+            this.blockSize = blockSize(robotCount);
+            this.file.writeInt(MAGIC);
+            this.file.writeInt(VERSION);
+            this.file.writeInt(robotCount);
+            this.file.writeInt(KEYFRAME_INTERVAL);
+            this.file.writeDouble(step);
+            this.file.writeLong(0);
+            for (double period : periods) {
+                this.file.writeDouble(period);
+            }
+            header = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, headerSize);
+        }
+
+        /**
+         * Size of the header of a recording of {@code robotCount} robots.
+         */
+        public static long headerSize(int robotCount) {
+            return 32 + 8L * robotCount;
+        }
+
+        /**
+         * Size of a block of a recording of {@code robotCount} robots.
+         */
+        public static long blockSize(int robotCount) {
+            return 8L * robotCount + (long)KEYFRAME_INTERVAL * robotCount;
+        }
+
+        /**
+         * Number of blocks in every mapped window.
+         */
+        public static long blocksPerWindow(long blockSize) {
+            return Math.max(1, WINDOW_SIZE / blockSize);
+        }
+
+        /**
+         * Append a tick, in which the robots with time differences
+         * {@code deltaTimes} (before the tick) take steps {@code steps}.
+         */
+        public synchronized void record(double[] deltaTimes, byte[] steps) throws IOException {
+            long block = ticks / KEYFRAME_INTERVAL;
+            int tick = (int)(ticks % KEYFRAME_INTERVAL);
+            long offset = block * blockSize;
+            if (window == null || offset >= windowStart + window.capacity()) {
+                // Map the next window, which holds a whole number of blocks
+                if (window != null) {
+                    window.force();
+                }
+                windowStart = offset;
+                window = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    headerSize + windowStart, blocksPerWindow(blockSize) * blockSize);
+            }
+            int position = (int)(offset - windowStart);
+            if (tick == 0) {
+                for (int i = 0; i < robotCount; i++) {
+                    window.putDouble(position + 8 * i, deltaTimes[i]);
+                }
+            }
+            position += 8 * robotCount + tick * robotCount;
+            for (int i = 0; i < robotCount; i++) {
+                window.put(position + i, steps[i]);
+            }
+            ticks++;
+            // Commit the tick after its steps
+            header.putLong(TICKS_OFFSET, ticks);
+        }
+
+        /**
+         * Finish the recording: cut off the unused part of the last window.
+         */
+        public synchronized void close() throws IOException {
+            if (window != null) {
+                window.force();
+                window = null;
+            }
+            header.force();
+            long blocks = ticks / KEYFRAME_INTERVAL;
+            long rest = ticks % KEYFRAME_INTERVAL;
+            file.setLength(headerSize + blocks * blockSize
+                + (rest > 0 ? 8L * robotCount + rest * robotCount : 0));
+            file.close();
+        }
+    }
+
+    /**
+     * Replays a recording of a {@link RaceRecorder} with random access: the
+     * state at a tick is restored from the keyframe of its block and the
+     * steps after it.
+     */
+    static class RacePlayer {
+
+        /** The recording. */
+        private final RandomAccessFile file;
+
+        /** Number of robots, and the period of every robot. */
+        private final int robotCount;
+        private final double[] periods;
+
+        /** Length of a tick in seconds. */
+        private final double step;
+
+        /** Size of the header and of a block. */
+        private final long headerSize, blockSize;
+
+        /** Number of recorded ticks. */
+        private final long ticks;
+
+        /** Mapped window of the file, and its position in the file. */
+        private MappedByteBuffer window;
+        private long windowStart = -1;
+
+        /** Time difference of every robot after {@code tick} ticks. */
+        private final double[] state;
+        private long tick = -1;
+
+        /**
+         * Open recording {@code file}.
+         */
+        public RacePlayer(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            if (this.file.readInt() != RaceRecorder.MAGIC || this.file.readInt() != RaceRecorder.VERSION) {
+                throw new IOException("Not a race recording: " + file);
+            }
+            robotCount = this.file.readInt();
+            if (this.file.readInt() != RaceRecorder.KEYFRAME_INTERVAL) {
+                throw new IOException("Unsupported keyframe interval: " + file);
+            }
+            step = this.file.readDouble();
+            long committed = this.file.readLong();
+            periods = new double[robotCount];
+            for (int i = 0; i < robotCount; i++) {
+                periods[i] = this.file.readDouble();
+            }
+            headerSize = RaceRecorder.headerSize(robotCount);
+            blockSize = RaceRecorder.blockSize(robotCount);
+            state = new double[robotCount];
+
+            // Only the committed ticks count, and only those in the file; the
+            // rest of the last window of a killed recorder is zeros
+            long length = this.file.length() - headerSize;
+            long rest = length % blockSize;
+            ticks = Math.min(Math.max(0, committed), length / blockSize * RaceRecorder.KEYFRAME_INTERVAL
+                + (rest >= 8L * robotCount ? (rest - 8L * robotCount) / robotCount : 0));
+        }
+
+        /**
+         * Get the number of robots.
+         */
+        public int getRobotCount() {
+            return robotCount;
+        }
+
+        /**
+         * Get the period of every robot.
+         */
+        public double[] getPeriods() {
+            return periods.clone();
+        }
+
+        /**
+         * Get the length of the recording in seconds.
+         */
+        public double getDuration() {
+            return ticks * step;
+        }
+
+        /**
+         * Get the number of recorded ticks.
+         */
+        public long getTicks() {
+            return ticks;
+        }
+
+        /**
+         * Get the length of a tick in seconds.
+         */
+        public double getStep() {
+            return step;
+        }
+
+        /**
+         * Copy the time difference of every robot at {@code time} seconds into
+         * the recording (clamped to the recording) to {@code deltaTimes}.
+         */
+        public void restore(double time, double[] deltaTimes) throws IOException {
+            if (ticks == 0) {
+                return;
+            }
+            long target = Math.max(0, Math.min(ticks, (long)Math.floor(time / step)));
+            long block = Math.min(target, ticks - 1) / RaceRecorder.KEYFRAME_INTERVAL;
+            ByteBuffer data = map(block);
+            int position = (int)(block * blockSize - windowStart);
+            long first = block * RaceRecorder.KEYFRAME_INTERVAL;
+            // Start from the keyframe, unless the state is further in the same block
+            if (tick < first || tick > target) {
+                for (int i = 0; i < robotCount; i++) {
+                    state[i] = data.getDouble(position + 8 * i);
+                }
+                tick = first;
+            }
+            for (; tick < target; tick++) {
+                int offset = position + 8 * robotCount + (int)(tick - first) * robotCount;
+                for (int i = 0; i < robotCount; i++) {
+                    state[i] += (data.get(offset + i) & 0xff) * RaceRecorder.STEP_UNIT;
+                }
+            }
+            System.arraycopy(state, 0, deltaTimes, 0, Math.min(robotCount, deltaTimes.length));
+        }
+
+        /**
+         * Map the window that holds block {@code block}.
+         */
+        private ByteBuffer map(long block) throws IOException {
+            long blocks = RaceRecorder.blocksPerWindow(blockSize);
+            long start = block / blocks * blocks * blockSize;
+            if (start != windowStart) {
+                long size = Math.min(blocks * blockSize, file.length() - headerSize - start);
+                window = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    headerSize + start, size);
+                windowStart = start;
+            }
+            return window;
+        }
+    }
+
+    /**
+     * Timeline of the live race, which can be scrubbed back and forth. The
+     * steps of the robots are kept for a bounded history, with a checkpoint
+     * of all time differences every few seconds. Seeking back restores the
+     * nearest checkpoint and applies the kept steps; seeking beyond the
+     * simulated part simulates the race without drawing the frames between.
+     *
+     * Keys: '[' and ']' seek 5 seconds back and forth, 'f' toggles fast
+     * forward and 'l' returns to the live race.
+     */
+    private class Timeline extends KeyAdapter {
+
+        /** Number of ticks between the checkpoints. */
+        private final int checkpointTicks;
+
+        /** Number of checkpoints in the ring (0 = disabled). */
+        private final int checkpointCount;
+
+        /** Speed of fast forward. */
+        private final double fastSpeed;
+
+        /** Steps of the robots in every tick of the ring. */
+        private byte[] steps;
+
+        /** Time differences of the robots before the first tick of every checkpoint. */
+        private double[][] checkpoints;
+
+        /** Lanes of the robots before the first tick of every checkpoint (null = fixed lanes). */
+        private LaneModel[] laneCheckpoints;
+
+        /** First tick that is kept, number of simulated ticks, and the tick of the race state. */
+        private long firstTick = 0, headTick = 0, currentTick = 0;
+
+        /** Race time at animation time {@code anchorTAnim}, and the speed of the race. */
+        private double anchorTime = 0, anchorTAnim = 0, speed = 1;
+
+        /** Race time of the last frame. */
+        private volatile double raceTime = 0;
+
+        /**
+         * Construct the timeline.
+         *
+         * @param history    Seconds of the race that are kept (0 = disabled).
+         * @param checkpoint Seconds between the checkpoints.
+         * @param fastSpeed  Speed of fast forward.
+         */
+        public Timeline(double history, double checkpoint, double fastSpeed) {
+            this.checkpointTicks = Math.max(1, (int)Math.round(checkpoint / SIMULATION_STEP));
+            this.checkpointCount = history <= 0 ? 0
+                : Math.max(2, (int)Math.ceil(history / SIMULATION_STEP / checkpointTicks));
+            this.fastSpeed = fastSpeed;
+        }
+
+        /**
+         * Whether the race can be scrubbed.
+         */
+        public boolean isEnabled() {
+            return checkpointCount > 0;
+        }
+
+        /**
+         * Listen to the keys of the window.
+         */
+        public void listen() {
+            GLAutoDrawable drawable = waitForWindowDrawable();
+            if (drawable instanceof Component) {
+                ((Component)drawable).addKeyListener(this);
+            }
+        }
+
+        /**
+         * Get the race time at animation time {@code tAnim}.
+         */
+        public synchronized double getRaceTime(double tAnim) {
+            if (!isEnabled()) {
+                return tAnim;
+            }
+            // The animation time is reset
+            if (tAnim < anchorTAnim) {
+                anchorTAnim = tAnim;
+                anchorTime = tAnim;
+            }
+            raceTime = anchorTime + (tAnim - anchorTAnim) * speed;
+            return raceTime;
+        }
+
+        /**
+         * Continue from race time {@code time} at the current animation time
+         * with speed {@code speed}.
+         */
+        private synchronized void setRaceTime(double time, double speed) {
+            anchorTAnim = gs.tAnim;
+            anchorTime = Math.max(0, time);
+            this.speed = speed;
+        }
+
+        @Override
+        public void keyPressed(KeyEvent e) {
+            switch (e.getKeyChar()) {
+                case '[':
+                    setRaceTime(raceTime - 5, speed);
+                    break;
+                case ']':
+                    setRaceTime(raceTime + 5, speed);
+                    break;
+                case 'f':
+                    setRaceTime(raceTime, speed == 1 ? fastSpeed : 1);
+                    break;
+                case 'l':
+                    setRaceTime(Math.max(raceTime, headTick * SIMULATION_STEP), 1);
+                    break;
+            }
+        }
+
+        /**
+         * Bring the race to race time {@code time}.
+         */
+        public void advance(double time) {
+            if (steps == null) {
+                steps = new byte[checkpointCount * checkpointTicks * robotDeltaTime.length];
+                checkpoints = new double[checkpointCount][robotDeltaTime.length];
+                laneCheckpoints = new LaneModel[checkpointCount];
+            }
+            long target = Math.max(firstTick, (long)Math.floor(time / SIMULATION_STEP));
+
+            // Go back to the nearest checkpoint
+            if (target < currentTick) {
+                currentTick = target / checkpointTicks * checkpointTicks;
+                int c = (int)(currentTick / checkpointTicks % checkpointCount);
+                System.arraycopy(checkpoints[c], 0, robotDeltaTime, 0, robotDeltaTime.length);
+                if (lanes != null) {
+                    lanes = new LaneModel(laneCheckpoints[c]);
+                }
+            }
+
+            int n = robotDeltaTime.length;
+            for (; currentTick < target; currentTick++) {
+                int offset = (int)(currentTick % (checkpointCount * checkpointTicks)) * n;
+                if (currentTick == headTick) {
+                    // Simulate a new tick
+                    if (headTick % checkpointTicks == 0) {
+                        int c = (int)(headTick / checkpointTicks % checkpointCount);
+                        System.arraycopy(robotDeltaTime, 0, checkpoints[c], 0, n);
+                        if (lanes != null) {
+                            laneCheckpoints[c] = new LaneModel(lanes);
+                        }
+                    }
+                    step((currentTick + 1) * SIMULATION_STEP);
+                    System.arraycopy(robotSteps, 0, steps, offset, n);
+                    headTick++;
+                    // Forget the oldest checkpoint when the ring is full
+                    if (headTick - firstTick > (long)checkpointCount * checkpointTicks) {
+                        firstTick += checkpointTicks;
+                    }
+                } else {
+                    // Apply a kept tick, and change the lanes just like the first time
+                    for (int i = 0; i < n; i++) {
+                        robotDeltaTime[i] += (steps[offset + i] & 0xff) * RaceRecorder.STEP_UNIT;
+                    }
+                    if (lanes != null) {
+                        stepLanes(lanes, robotDeltaTime, (currentTick + 1) * SIMULATION_STEP);
+                    }
+                }
+            }
+            simulationTime = currentTick * SIMULATION_STEP;
+        }
+    }
+
+    /**
+     * Lanes of the robots, such that a robot that closes in on another robot
+     * changes lanes to overtake it, and returns to its own lane afterwards.
+     * The robots are sorted by their distance along the track and only the
+     * robots that are close are compared (sweep and prune), such that an
+     * update takes O(n log n) time instead of O(n^2). The lanes change once
+     * per tick of the race, so they follow from the race when it is rewound
+     * or replayed.
+     */
+    public static class LaneModel {
+
+        /** Bits of the sort keys for the index of a robot (at most 2^20 robots). */
+        private static final int INDEX_BITS = 20;
+
+        /** Scale of the position along the track (a fraction of its length) in the sort keys. */
+        private static final double PARAM_SCALE = 1L << 40;
+
+        /** Length of a robot along the track in meters. */
+        private static final double ROBOT_LENGTH = 1.0;
+
+        /** Lateral speed (m/s) and acceleration (m/s^2) of a lane change. */
+        private static final double LANE_SPEED = 2.0, LANE_ACCELERATION = 8.0;
+
+        /** Number of lanes. */
+        public final int laneCount;
+
+        /** Width of a lane in meters. */
+        public final double laneWidth;
+
+        /** Free distance in meters that a robot keeps in front of it. */
+        public final double gap;
+
+        /** Offset of every robot to the left of the center of the track. */
+        public final double[] offsets;
+
+        /** Lateral speed of every robot. */
+        private final double[] speeds;
+
+        /** Lane of every robot when it is not overtaking, and the lane it heads for. */
+        private final int[] preferred, target;
+
+        /** Sort keys (position and index), and the robots and their positions in order. */
+        private final long[] keys;
+        private final int[] order;
+        private final double[] params;
+
+        /** Lanes that are blocked for the current robot. */
+        private final boolean[] blocked;
+
+        /**
+         * Construct the lanes of {@code robotCount} robots on {@code laneCount}
+         * lanes of width {@code laneWidth}, where robot i prefers lane i modulo
+         * {@code laneCount} (lane 0 is the leftmost lane).
+         */
+        public LaneModel(int robotCount, int laneCount, double laneWidth, double gap) {
+            if (robotCount > 1 << INDEX_BITS) {
+                throw new IllegalArgumentException("Too many robots: " + robotCount);
+            }
+            this.laneCount = laneCount;
+            this.laneWidth = laneWidth;
+            this.gap = gap;
+            offsets = new double[robotCount];
+            speeds = new double[robotCount];
+            preferred = new int[robotCount];
+            target = new int[robotCount];
+            keys = new long[robotCount];
+            order = new int[robotCount];
+            params = new double[robotCount];
+            blocked = new boolean[laneCount];
+            for (int i = 0; i < robotCount; i++) {
+                preferred[i] = target[i] = i % laneCount;
+                offsets[i] = getLaneOffset(preferred[i]);
+            }
+        }
+
+        /**
+         * Construct a copy of {@code other}, such that the lanes can be
+         * advanced ahead without changing {@code other}.
+         */
+        public LaneModel(LaneModel other) {
+            this(other.offsets.length, other.laneCount, other.laneWidth, other.gap);
+            System.arraycopy(other.offsets, 0, offsets, 0, offsets.length);
+            System.arraycopy(other.speeds, 0, speeds, 0, speeds.length);
+            System.arraycopy(other.target, 0, target, 0, target.length);
+        }
+
+        /**
+         * Get the offset of lane {@code lane} to the left of the center of the track.
+         */
+        public double getLaneOffset(int lane) {
+            return ((laneCount - 1) / 2.0 - lane) * laneWidth;
+        }
+
+        /**
+         * Get the (fractional) lane at offset {@code offset}.
+         */
+        private double getLane(double offset) {
+            return (laneCount - 1) / 2.0 - offset / laneWidth;
+        }
+
+        /**
+         * Change lanes over {@code dt} seconds for robots at distances
+         * {@code distances} along a track of length {@code trackLength}.
+         */
+        public void update(double[] distances, double trackLength, double dt) {
+            int n = offsets.length;
+
+            // Sort the robots along the track
+            for (int i = 0; i < n; i++) {
+                double s = (distances[i] / trackLength) % 1;
+                if (s < 0) {
+                    s += 1;
+                }
+                keys[i] = ((long)(s * PARAM_SCALE) << INDEX_BITS) | i;
+            }
+            Arrays.sort(keys);
+            for (int k = 0; k < n; k++) {
+                order[k] = (int)(keys[k] & ((1 << INDEX_BITS) - 1));
+                params[k] = (keys[k] >>> INDEX_BITS) / PARAM_SCALE;
+            }
+
+            // Pick a lane for every robot from the robots close to it
+            double ahead = gap / trackLength;
+            double beside = ROBOT_LENGTH / trackLength;
+            for (int k = 0; k < n; k++) {
+                int i = order[k];
+                Arrays.fill(blocked, false);
+                int count = 0;
+                // Robots in front of it, until all lanes are blocked
+                for (int m = 1; m < n && count < laneCount; m++) {
+                    int other = (k + m) % n;
+                    if (distance(params[k], params[other]) > ahead) {
+                        break;
+                    }
+                    count += block(order[other]);
+                }
+                // Robots beside it, which it must not cut off
+                for (int m = 1; m < n && count < laneCount; m++) {
+                    int other = (k - m + n) % n;
+                    if (distance(params[other], params[k]) > beside) {
+                        break;
+                    }
+                    count += block(order[other]);
+                }
+
+                // Return to its own lane, keep the lane it heads for, or pick the nearest free lane
+                if (!blocked[preferred[i]]) {
+                    target[i] = preferred[i];
+                } else if (blocked[target[i]]) {
+                    int lane = (int)Math.round(Math.max(0, Math.min(laneCount - 1, getLane(offsets[i]))));
+                    for (int d = 1; d < laneCount; d++) {
+                        // Overtake on the left if possible
+                        if (lane - d >= 0 && !blocked[lane - d]) {
+                            target[i] = lane - d;
+                            break;
+                        }
+                        if (lane + d < laneCount && !blocked[lane + d]) {
+                            target[i] = lane + d;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // Move every robot smoothly towards its lane
+            for (int i = 0; i < n; i++) {
+                double difference = getLaneOffset(target[i]) - offsets[i];
+                double speed = Math.max(-LANE_SPEED, Math.min(LANE_SPEED, 4 * difference));
+                double acceleration = LANE_ACCELERATION * dt;
+                speeds[i] += Math.max(-acceleration, Math.min(acceleration, speed - speeds[i]));
+                offsets[i] += speeds[i] * dt;
+            }
+        }
+
+        /**
+         * Get the distance along the track from parameter {@code from} to {@code to}.
+         */
+        private static double distance(double from, double to) {
+            double d = to - from;
+            return d < 0 ? d + 1 : d;
+        }
+
+        /**
+         * Block the lanes that robot {@code robot} covers.
+         *
+         * @return The number of lanes that were not blocked before.
+         */
+        private int block(int robot) {
+            double lane = getLane(offsets[robot]);
+            int first = Math.max(0, (int)Math.ceil(lane - 0.75));
+            int last = Math.min(laneCount - 1, (int)Math.floor(lane + 0.75));
+            int count = 0;
+            for (int l = first; l <= last; l++) {
+                if (!blocked[l]) {
+                    blocked[l] = true;
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Table of rotation-minimizing frames (tangent, left and up) along a
+     * track, sampled at equal arc lengths. The frames are propagated with the
+     * double reflection method, such that they do not twist, and the twist
+     * that remains when a 3D track is closed is spread over the whole track.
+     * Lookups interpolate between the samples without any allocation.
+     *
+     * When a part of the track changes, only the samples of that part are
+     * spread out again and propagated, see {@link #update}.
+     */
+    public static class FrameTable {
+
+        /** Number of samples along the track. */
+        public static final int SAMPLES = 1024;
+
+        /** Number of curve evaluations that are used to measure the arc length. */
+        private static final int LENGTH_STEPS = 8 * SAMPLES;
+
+        /** Values per sample: tangent, left and up. */
+        private static final int FRAME_SIZE = 9;
+
+        /** Curve parameter of every sample, increasing from 0 to 1. */
+        private final double[] params = new double[SAMPLES + 1];
+
+        /** Distance along the track of every sample. */
+        private final double[] distances = new double[SAMPLES + 1];
+
+        /** Frames of the samples. */
+        private final double[] frames = new double[(SAMPLES + 1) * FRAME_SIZE];
+
+        /** Length of every step of the polyline that measures the arc length. */
+        private final double[] stepLengths = new double[LENGTH_STEPS];
+
+        /** Length of the track. */
+        private double length;
+
+        /**
+         * Construct the table of track {@code trackNr} of {@code raceTrack}.
+         */
+        public FrameTable(RaceTrackModel raceTrack, int trackNr) {
+            params[SAMPLES] = 1;
+            update(raceTrack, trackNr, 0, 1);
+        }
+
+        /**
+         * Update the table after the part of track {@code trackNr} with
+         * {@code tStart} <= t <= {@code tEnd} changed. The samples outside of
+         * the part keep their parameters and frames.
+         */
+        public void update(RaceTrackModel raceTrack, int trackNr, double tStart, double tEnd) {
+            // Measure the changed steps again
+            int j0 = Math.max(0, (int)Math.floor(tStart * LENGTH_STEPS));
+            int j1 = Math.min(LENGTH_STEPS, (int)Math.ceil(tEnd * LENGTH_STEPS));
+            double[] ends = new double[6];
+            raceTrack.getCurvePoint((double)j0 / LENGTH_STEPS, trackNr, ends, 3 * (j0 % 2));
+            for (int j = j0; j < j1; j++) {
+                // Alternate between the two ends, such that nothing is allocated
+                int previous = 3 * (j % 2), point = 3 - previous;
+                raceTrack.getCurvePoint((double)(j + 1) / LENGTH_STEPS, trackNr, ends, point);
+                double dx = ends[point] - ends[previous];
+                double dy = ends[point + 1] - ends[previous + 1];
+                double dz = ends[point + 2] - ends[previous + 2];
+                stepLengths[j] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            }
+            length = 0;
+            for (double stepLength : stepLengths) {
+                length += stepLength;
+            }
+
+            // The samples around the part, which do not change (unless it is the start)
+            boolean start = tStart <= 0;
+            int ka = 0;
+            if (!start) {
+                ka = findSample(tStart);
+                while (ka > 0 && params[ka] >= tStart) {
+                    ka--;
+                }
+            }
+            int kb = SAMPLES;
+            if (tEnd < 1) {
+                kb = ka + 1;
+                while (kb < SAMPLES && params[kb] <= tEnd) {
+                    kb++;
+                }
+            }
+
+            // Spread the samples in between at equal arc lengths
+            int ja = Math.min(LENGTH_STEPS - 1, (int)(params[ka] * LENGTH_STEPS));
+            double offset = (params[ka] * LENGTH_STEPS - ja) * stepLengths[ja];
+            double range = -offset;
+            int jb = ja;
+            for (; jb < LENGTH_STEPS - 1 && jb + 1 <= params[kb] * LENGTH_STEPS; jb++) {
+                range += stepLengths[jb];
+            }
+            range += (params[kb] * LENGTH_STEPS - jb) * stepLengths[jb];
+            int j = ja;
+            double walked = 0;
+            for (int k = ka + 1; k < kb; k++) {
+                double distance = offset + range * (k - ka) / (kb - ka);
+                while (j < LENGTH_STEPS - 1 && walked + stepLengths[j] < distance) {
+                    walked += stepLengths[j];
+                    j++;
+                }
+                double f = stepLengths[j] > 0 ? Math.max(0, Math.min(1, (distance - walked) / stepLengths[j])) : 0;
+                params[k] = (j + f) / LENGTH_STEPS;
+            }
+            double shift = range - (distances[kb] - distances[ka]);
+            for (int k = ka + 1; k <= SAMPLES; k++) {
+                distances[k] = k <= kb ? distances[ka] + range * (k - ka) / (kb - ka) : distances[k] + shift;
+            }
+
+            // The points and unit tangents of the samples
+            int count = kb - ka + 1;
+            Vector[] points = new Vector[count];
+            Vector[] tangents = new Vector[count];
+            for (int k = 0; k < count; k++) {
+                points[k] = raceTrack.getCurvePoint(params[ka + k], trackNr);
+            }
+            for (int k = 0; k < count; k++) {
+                Vector tangent = raceTrack.getCurveTangent(params[ka + k], trackNr);
+                if (!(tangent.length() > 1e-9)) {
+                    // The tangent vanishes where control points coincide, so take the chord
+                    tangent = points[Math.min(count - 1, k + 1)].subtract(points[Math.max(0, k - 1)]);
+                }
+                tangents[k] = tangent.normalized();
+            }
+
+            // Start with the left vector in the ground plane, or with the kept frame
+            Vector[] lefts = new Vector[count];
+            if (start) {
+                Vector left = tangents[0].cross(Vector.Z);
+                if (left.length() < 1e-9) {
+                    left = tangents[0].cross(Vector.X);
+                }
+                lefts[0] = left.normalized();
+            } else {
+                int a = ka * FRAME_SIZE;
+                lefts[0] = new Vector(frames[a + 3], frames[a + 4], frames[a + 5]);
+            }
+
+            // Propagate the left vector by two reflections per sample
+            for (int k = 0; k < count - 1; k++) {
+                Vector v1 = points[k + 1].subtract(points[k]);
+                double c1 = v1.dot(v1);
+                Vector leftL = lefts[k], tangentL = tangents[k];
+                if (c1 > 1e-18) {
+                    leftL = leftL.subtract(v1.scale(2 / c1 * v1.dot(leftL)));
+                    tangentL = tangentL.subtract(v1.scale(2 / c1 * v1.dot(tangentL)));
+                }
+                Vector v2 = tangents[k + 1].subtract(tangentL);
+                double c2 = v2.dot(v2);
+                if (c2 > 1e-18) {
+                    leftL = leftL.subtract(v2.scale(2 / c2 * v2.dot(leftL)));
+                }
+                lefts[k + 1] = leftL.normalized();
+            }
+
+            // Spread the twist with the frame after the part (the first frame
+            // at the end of the track) over the part
+            Vector target;
+            if (kb == SAMPLES) {
+                target = start ? lefts[0] : new Vector(frames[3], frames[4], frames[5]);
+            } else {
+                int b = kb * FRAME_SIZE;
+                target = new Vector(frames[b + 3], frames[b + 4], frames[b + 5]);
+            }
+            Vector targetUp = target.cross(tangents[count - 1]);
+            double twist = Math.atan2(lefts[count - 1].dot(targetUp), lefts[count - 1].dot(target));
+            for (int k = 0; k < count; k++) {
+                Vector tangent = tangents[k];
+                Vector up = lefts[k].cross(tangent);
+                double angle = -twist * k / (count - 1);
+                Vector l = lefts[k].scale(Math.cos(angle)).add(up.scale(Math.sin(angle)));
+                Vector u = l.cross(tangent);
+                double[] values = {
+                    tangent.x(), tangent.y(), tangent.z(), l.x(), l.y(), l.z(), u.x(), u.y(), u.z()
+                };
+                System.arraycopy(values, 0, frames, (ka + k) * FRAME_SIZE, FRAME_SIZE);
+            }
+        }
+
+        /**
+         * Get the length of the track.
+         */
+        public double getLength() {
+            return length;
+        }
+
+        /**
+         * Get the sample before parameter {@code t} (in [0, 1)).
+         */
+        private int findSample(double t) {
+            int low = 0, high = SAMPLES - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (params[middle] <= t) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Get the distance along the track at parameter {@code t}.
+         */
+        public double getDistance(double t) {
+            t -= Math.floor(t);
+            int k = findSample(t);
+            double f = (t - params[k]) / (params[k + 1] - params[k]);
+            return distances[k] + f * (distances[k + 1] - distances[k]);
+        }
+
+        /**
+         * Write the frame at parameter {@code t} to {@code frame}: the unit
+         * tangent, left and up vectors (x, y, z) from {@code offset} on.
+         */
+        public void getFrame(double t, double[] frame, int offset) {
+            t -= Math.floor(t);
+            int k = findSample(t);
+            double f = (t - params[k]) / (params[k + 1] - params[k]);
+            getSampleFrame(k, f, frame, offset);
+        }
+
+        /**
+         * Get the parameter t at distance {@code distance} along the track.
+         */
+        public double getParameter(double distance) {
+            distance -= Math.floor(distance / length) * length;
+            int low = 0, high = SAMPLES - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (distances[middle] <= distance) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            double span = distances[low + 1] - distances[low];
+            return params[low] + (span > 0 ? (distance - distances[low]) / span : 0) * (params[low + 1] - params[low]);
+        }
+
+        /**
+         * Write the frame at distance {@code distance} along the track to
+         * {@code frame}, like {@link #getFrame}.
+         */
+        public void getFrameAtDistance(double distance, double[] frame, int offset) {
+            distance -= Math.floor(distance / length) * length;
+            int low = 0, high = SAMPLES - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (distances[middle] <= distance) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            double span = distances[low + 1] - distances[low];
+            getSampleFrame(low, span > 0 ? (distance - distances[low]) / span : 0, frame, offset);
+        }
+
+        /**
+         * Interpolate between sample {@code k} and the next sample with fraction {@code f}.
+         */
+        private void getSampleFrame(int k, double f, double[] frame, int offset) {
+            int a = k * FRAME_SIZE, b = a + FRAME_SIZE;
+            // Interpolate the tangent and the left vector, and make them unit length
+            for (int i = 0; i < 6; i += 3) {
+                double x = frames[a + i] + f * (frames[b + i] - frames[a + i]);
+                double y = frames[a + i + 1] + f * (frames[b + i + 1] - frames[a + i + 1]);
+                double z = frames[a + i + 2] + f * (frames[b + i + 2] - frames[a + i + 2]);
+                double norm = Math.sqrt(x * x + y * y + z * z);
+                frame[offset + i] = x / norm;
+                frame[offset + i + 1] = y / norm;
+                frame[offset + i + 2] = z / norm;
+            }
+            // The up vector is left x tangent
+            double tx = frame[offset], ty = frame[offset + 1], tz = frame[offset + 2];
+            double lx = frame[offset + 3], ly = frame[offset + 4], lz = frame[offset + 5];
+            frame[offset + 6] = ly * tz - lz * ty;
+            frame[offset + 7] = lz * tx - lx * tz;
+            frame[offset + 8] = lx * ty - ly * tx;
+        }
+    }
+
+    /**
+     * Signed distance field of the footprint of a track (the center line plus
+     * and minus half the track width) on a grid over the terrain. Distances are
+     * negative on the track, and are looked up in O(1) by bilinear
+     * interpolation, without evaluating the Bezier curves.
+     */
+    public static class TrackDistanceField {
+
+        /** The grid covers [-EXTENT, EXTENT] in x and y, like the terrain. */
+        public static final double EXTENT = 20;
+
+        /** Number of samples along the center line per grid cell. */
+        private static final int OVERSAMPLING = 2;
+
+        /** Distance between two samples of the grid. */
+        private final double cellSize;
+
+        /** Number of samples along each side of the grid. */
+        private final int size;
+
+        /** Signed distance at every sample, row by row (y) and column by column (x). */
+        private final float[] distances;
+
+        /** Nearest point on the center line of every sample, and the distance to it. */
+        private final double[] nearestX, nearestY, best;
+
+        /** Half the width of the track. */
+        private final double halfWidth;
+
+        /** Number of segments of the center line. */
+        private final int segments;
+
+        /** Points of the center line at the ends of the segments. */
+        private final double[] lineX, lineY;
+
+        /**
+         * Rasterize the footprint of track {@code trackNr} with half width
+         * {@code halfWidth} on a grid with cells of {@code cellSize} meter.
+         */
+        public TrackDistanceField(RaceTrackModel raceTrack, int trackNr, double halfWidth, double cellSize) {
+            this.cellSize = cellSize;
+            this.halfWidth = halfWidth;
+            size = (int)Math.round(2 * EXTENT / cellSize) + 1;
+            distances = new float[size * size];
+            nearestX = new double[size * size];
+            nearestY = new double[size * size];
+            best = new double[size * size];
+            Arrays.fill(best, Double.POSITIVE_INFINITY);
+
+            double length = raceTrack.getFrameTable(trackNr).getLength();
+            segments = Math.max(256, (int)Math.ceil(length / cellSize * OVERSAMPLING));
+            lineX = new double[segments + 1];
+            lineY = new double[segments + 1];
+            sample(raceTrack, trackNr, 0, segments);
+            stamp(0, segments);
+            propagate();
+        }
+
+        /**
+         * Update the field after the part of track {@code trackNr} with
+         * {@code tStart} <= t <= {@code tEnd} changed, where the old part was
+         * inside the box ({@code minX}, {@code minY}) to ({@code maxX}, {@code maxY}).
+         */
+        public void update(RaceTrackModel raceTrack, int trackNr, double tStart, double tEnd,
+                double minX, double minY, double maxX, double maxY) {
+            int first = Math.max(0, (int)Math.floor(tStart * segments) - 1);
+            int last = Math.min(segments, (int)Math.ceil(tEnd * segments) + 1);
+            sample(raceTrack, trackNr, first, last);
+
+            // Forget the nearest points on the old part
+            for (int index = 0; index < best.length; index++) {
+                if (nearestX[index] >= minX - cellSize && nearestX[index] <= maxX + cellSize
+                        && nearestY[index] >= minY - cellSize && nearestY[index] <= maxY + cellSize) {
+                    best[index] = Double.POSITIVE_INFINITY;
+                }
+            }
+
+            // Stamp the new part, and the rest of the center line near the
+            // forgotten samples (which are at most a few cells from the old box)
+            double margin = 4 * cellSize;
+            for (int k = 0; k < segments; k++) {
+                boolean changed = k >= first && k < last;
+                if (changed || (Math.max(lineX[k], lineX[k + 1]) >= minX - margin
+                        && Math.min(lineX[k], lineX[k + 1]) <= maxX + margin
+                        && Math.max(lineY[k], lineY[k + 1]) >= minY - margin
+                        && Math.min(lineY[k], lineY[k + 1]) <= maxY + margin)) {
+                    stamp(k, k + 1);
+                }
+            }
+            propagate();
+        }
+
+        /**
+         * Sample the center line at the ends of segments {@code first} to {@code last}.
+         */
+        private void sample(RaceTrackModel raceTrack, int trackNr, int first, int last) {
+            double[] point = new double[3];
+            for (int k = first; k <= last; k++) {
+                raceTrack.getCurvePoint((double)k / segments, trackNr, point, 0);
+                lineX[k] = point[0];
+                lineY[k] = point[1];
+            }
+        }
+
+        /**
+         * Stamp the exact distances around segments {@code first} to {@code last}
+         * of the center line.
+         */
+        private void stamp(int first, int last) {
+            for (int k = first; k < last; k++) {
+                double ax = lineX[k], ay = lineY[k], bx = lineX[k + 1], by = lineY[k + 1];
+                int i0 = Math.max(0, (int)Math.floor((Math.min(ax, bx) + EXTENT) / cellSize) - 1);
+                int i1 = Math.min(size - 1, (int)Math.ceil((Math.max(ax, bx) + EXTENT) / cellSize) + 1);
+                int j0 = Math.max(0, (int)Math.floor((Math.min(ay, by) + EXTENT) / cellSize) - 1);
+                int j1 = Math.min(size - 1, (int)Math.ceil((Math.max(ay, by) + EXTENT) / cellSize) + 1);
+                double dx = bx - ax, dy = by - ay;
+                double dd = dx * dx + dy * dy;
+                for (int j = j0; j <= j1; j++) {
+                    for (int i = i0; i <= i1; i++) {
+                        double x = i * cellSize - EXTENT, y = j * cellSize - EXTENT;
+                        double f = dd > 0 ? Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / dd)) : 0;
+                        double px = ax + f * dx, py = ay + f * dy;
+                        double d = Math.hypot(x - px, y - py);
+                        int index = j * size + i;
+                        if (d < best[index]) {
+                            best[index] = d;
+                            nearestX[index] = px;
+                            nearestY[index] = py;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Propagate the nearest points over the rest of the grid (two passes),
+         * and compute the signed distances.
+         */
+        private void propagate() {
+            for (int pass = 0; pass < 2; pass++) {
+                int step = pass == 0 ? 1 : -1;
+                int start = pass == 0 ? 0 : size - 1;
+                for (int j = start; j >= 0 && j < size; j += step) {
+                    for (int i = start; i >= 0 && i < size; i += step) {
+                        propagate(i, j, i - step, j);
+                        propagate(i, j, i, j - step);
+                        propagate(i, j, i - step, j - step);
+                        propagate(i, j, i + step, j - step);
+                    }
+                    // Also sweep back along the row
+                    for (int i = size - 1 - start; i >= 0 && i < size; i -= step) {
+                        propagate(i, j, i + step, j);
+                    }
+                }
+            }
+            for (int index = 0; index < distances.length; index++) {
+                distances[index] = (float)(best[index] - halfWidth);
+            }
+        }
+
+        /**
+         * Take the nearest point of sample (i2, j2) for sample (i, j) if it is nearer.
+         */
+        private void propagate(int i, int j, int i2, int j2) {
+            if (i2 < 0 || i2 >= size || j2 < 0 || j2 >= size) {
+                return;
+            }
+            int index = j * size + i, other = j2 * size + i2;
+            if (best[other] == Double.POSITIVE_INFINITY) {
+                return;
+            }
+            double d = Math.hypot(i * cellSize - EXTENT - nearestX[other], j * cellSize - EXTENT - nearestY[other]);
+            if (d < best[index]) {
+                best[index] = d;
+                nearestX[index] = nearestX[other];
+                nearestY[index] = nearestY[other];
+            }
+        }
+
+        /**
+         * Get the signed distance from ({@code x}, {@code y}) to the edge of
+         * the track (negative on the track).
+         */
+        public double distance(double x, double y) {
+            // Outside the grid, add the distance to the grid
+            double cx = Math.max(-EXTENT, Math.min(EXTENT, x));
+            double cy = Math.max(-EXTENT, Math.min(EXTENT, y));
+            double outside = cx != x || cy != y ? Math.hypot(x - cx, y - cy) : 0;
+
+            double fx = (cx + EXTENT) / cellSize, fy = (cy + EXTENT) / cellSize;
+            int i = Math.min(size - 2, (int)fx), j = Math.min(size - 2, (int)fy);
+            fx -= i;
+            fy -= j;
+            int index = j * size + i;
+            double d0 = distances[index] + fx * (distances[index + 1] - distances[index]);
+            double d1 = distances[index + size] + fx * (distances[index + size + 1] - distances[index + size]);
+            return d0 + fy * (d1 - d0) + outside;
+        }
+
+        /**
+         * Whether ({@code x}, {@code y}) is on the track.
+         */
+        public boolean isOnTrack(double x, double y) {
+            return distance(x, y) <= 0;
+        }
+
+        /**
+         * Move ({@code x}, {@code y}) away from the track along the gradient of
+         * the field, until it is at least {@code clearance} from the track, and
+         * write the result to {@code out}.
+         */
+        public void pushOut(double x, double y, double clearance, double[] out) {
+            for (int iteration = 0; iteration < 32; iteration++) {
+                double d = distance(x, y);
+                if (d >= clearance) {
+                    break;
+                }
+                double gx = distance(x + cellSize, y) - distance(x - cellSize, y);
+                double gy = distance(x, y + cellSize) - distance(x, y - cellSize);
+                double g = Math.hypot(gx, gy);
+                if (g < 1e-9) {
+                    // On a ridge of the field, so pick a direction
+                    gx = 1;
+                    gy = 0;
+                    g = 1;
+                }
+                double move = clearance - d + 0.5 * cellSize;
+                x += gx / g * move;
+                y += gy / g * move;
+            }
+            out[0] = x;
+            out[1] = y;
+        }
+    }
+
+    /**
+     * Point lights in a uniform grid, from which the strongest lights at an
+     * object are selected. Every cell lists the lights of which the range
+     * overlaps the cell, such that a query only scores the lights of the
+     * cells around the object.
+     */
+    public static class LightGrid {
+
+        /** Number of values per light: position (x, y, z), color (r, g, b) and range. */
+        public static final int LIGHT_SIZE = 7;
+
+        /** All lights. */
+        private final double[] lights;
+
+        /** Number of lights. */
+        private final int count;
+
+        /** Origin and size of the cells, and the number of cells in x and y. */
+        private final double minX, minY, cellSize;
+        private final int columns, rows;
+
+        /** Lights of every cell: cellLights[cellStart[c]] to cellLights[cellStart[c + 1]]. */
+        private final int[] cellStart, cellLights;
+
+        /** Query in which every light was scored last, to score every light once per query. */
+        private final int[] scored;
+        private int query = 0;
+
+        /** Number of lights scored by all queries. */
+        public long evaluated = 0;
+
+        /**
+         * Put {@code lights} ({@link #LIGHT_SIZE} values per light) in a grid
+         * with cells of {@code cellSize} meter.
+         */
+        public LightGrid(double[] lights, double cellSize) {
+            this.lights = lights;
+            this.cellSize = cellSize;
+            count = lights.length / LIGHT_SIZE;
+            scored = new int[count];
+
+            // The grid covers the ranges of all lights
+            double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+            double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                double range = lights[LIGHT_SIZE * i + 6];
+                x0 = Math.min(x0, lights[LIGHT_SIZE * i] - range);
+                y0 = Math.min(y0, lights[LIGHT_SIZE * i + 1] - range);
+                x1 = Math.max(x1, lights[LIGHT_SIZE * i] + range);
+                y1 = Math.max(y1, lights[LIGHT_SIZE * i + 1] + range);
+            }
+            minX = count > 0 ? x0 : 0;
+            minY = count > 0 ? y0 : 0;
+            columns = count > 0 ? (int)Math.ceil((x1 - x0) / cellSize) + 1 : 1;
+            rows = count > 0 ? (int)Math.ceil((y1 - y0) / cellSize) + 1 : 1;
+
+            // Count the lights per cell, and then fill the cells
+            cellStart = new int[columns * rows + 1];
+            for (int i = 0; i < count; i++) {
+                for (int c : getCells(i)) {
+                    cellStart[c + 1]++;
+                }
+            }
+            for (int c = 0; c < columns * rows; c++) {
+                cellStart[c + 1] += cellStart[c];
+            }
+            cellLights = new int[cellStart[columns * rows]];
+            int[] fill = Arrays.copyOf(cellStart, columns * rows);
+            for (int i = 0; i < count; i++) {
+                for (int c : getCells(i)) {
+                    cellLights[fill[c]++] = i;
+                }
+            }
+        }
+
+        /**
+         * Get the cells that the range of light {@code light} overlaps.
+         */
+        private int[] getCells(int light) {
+            int o = LIGHT_SIZE * light;
+            double range = lights[o + 6];
+            int i0 = column(lights[o] - range), i1 = column(lights[o] + range);
+            int j0 = row(lights[o + 1] - range), j1 = row(lights[o + 1] + range);
+            int[] cells = new int[(i1 - i0 + 1) * (j1 - j0 + 1)];
+            int n = 0;
+            for (int j = j0; j <= j1; j++) {
+                for (int i = i0; i <= i1; i++) {
+                    cells[n++] = j * columns + i;
+                }
+            }
+            return cells;
+        }
+
+        /**
+         * Get the column of the cell at {@code x} (clamped to the grid).
+         */
+        private int column(double x) {
+            return Math.max(0, Math.min(columns - 1, (int)Math.floor((x - minX) / cellSize)));
+        }
+
+        /**
+         * Get the row of the cell at {@code y} (clamped to the grid).
+         */
+        private int row(double y) {
+            return Math.max(0, Math.min(rows - 1, (int)Math.floor((y - minY) / cellSize)));
+        }
+
+        /**
+         * Get the number of lights.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Get value {@code k} of light {@code light}, see {@link #LIGHT_SIZE}.
+         */
+        public double get(int light, int k) {
+            return lights[LIGHT_SIZE * light + k];
+        }
+
+        /**
+         * Select at most {@code max} lights that reach the sphere around
+         * ({@code x}, {@code y}, {@code z}) with radius {@code radius},
+         * strongest first, and write them to {@code out} and their strengths
+         * to {@code strengths}.
+         *
+         * @return The number of selected lights.
+         */
+        public int select(double x, double y, double z, double radius, int max, int[] out, double[] strengths) {
+            int selected = 0;
+            if (++query == 0) {
+                // Wrapped around, so forget the old queries
+                Arrays.fill(scored, 0);
+                query = 1;
+            }
+            int i0 = column(x - radius), i1 = column(x + radius);
+            int j0 = row(y - radius), j1 = row(y + radius);
+            for (int j = j0; j <= j1; j++) {
+                for (int c = j * columns + i0; c <= j * columns + i1; c++) {
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int light = cellLights[k];
+                        if (scored[light] == query) {
+                            continue;
+                        }
+                        scored[light] = query;
+                        evaluated++;
+
+                        // The strength at the nearest point of the sphere, which
+                        // falls off to zero at the range of the light
+                        int o = LIGHT_SIZE * light;
+                        double dx = lights[o] - x, dy = lights[o + 1] - y, dz = lights[o + 2] - z;
+                        double distance = Math.max(0, Math.sqrt(dx * dx + dy * dy + dz * dz) - radius);
+                        double range = lights[o + 6];
+                        if (distance >= range) {
+                            continue;
+                        }
+                        double falloff = 1 - distance / range;
+                        double strength = Math.max(lights[o + 3], Math.max(lights[o + 4], lights[o + 5]))
+                            * falloff * falloff;
+
+                        // Insert it in the selection, which is sorted on strength
+                        int at = selected;
+                        while (at > 0 && strengths[at - 1] < strength) {
+                            at--;
+                        }
+                        if (at >= max) {
+                            continue;
+                        }
+                        int last = Math.min(selected, max - 1);
+                        System.arraycopy(out, at, out, at + 1, last - at);
+                        System.arraycopy(strengths, at, strengths, at + 1, last - at);
+                        out[at] = light;
+                        strengths[at] = strength;
+                        selected = Math.min(max, selected + 1);
+                    }
+                }
+            }
+            return selected;
+        }
+
+        /**
+         * Build floodlights every {@code spacing} meters along track
+         * {@code trackNr}, alternating between both sides of the track, at
+         * {@code height} meters above the track and with range {@code range}.
+         */
+        public static LightGrid alongTrack(RaceTrackModel raceTrack, int trackNr,
+                double spacing, double height, double range) {
+            FrameTable frames = raceTrack.getFrameTable(trackNr);
+            int count = Math.max(1, (int)(frames.getLength() / spacing));
+            double[] lights = new double[LIGHT_SIZE * count];
+            double[] frame = new double[9];
+            double[] point = new double[3];
+            for (int i = 0; i < count; i++) {
+                double distance = i * frames.getLength() / count;
+                double t = frames.getParameter(distance);
+                raceTrack.getCurvePoint(t, trackNr, point, 0);
+                frames.getFrame(t, frame, 0);
+                // Just beside the track, on the left and the right in turn
+                double side = (i % 2 == 0 ? 1 : -1) * (raceTrack.trackSize / 2 + 0.5);
+                int o = LIGHT_SIZE * i;
+                lights[o] = point[0] + side * frame[3];
+                lights[o + 1] = point[1] + side * frame[4];
+                lights[o + 2] = point[2] + height;
+                // Warm white
+                lights[o + 3] = 1.0;
+                lights[o + 4] = 0.9;
+                lights[o + 5] = 0.7;
+                lights[o + 6] = range;
+            }
+            return new LightGrid(lights, range);
+        }
+    }
+
+    /**
+     * Ray with an origin and a (unit) direction, for the ray queries.
+     */
+    public static class Ray {
+
+        /** Origin and direction. */
+        public final double ox, oy, oz, dx, dy, dz;
+
+        /** Inverse of the direction, for the slab tests. */
+        private final double ix, iy, iz;
+
+        /**
+         * Construct the ray from {@code origin} in direction {@code direction}.
+         */
+        public Ray(Vector origin, Vector direction) {
+            Vector d = direction.normalized();
+            ox = origin.x();
+            oy = origin.y();
+            oz = origin.z();
+            dx = d.x();
+            dy = d.y();
+            dz = d.z();
+            ix = 1 / dx;
+            iy = 1 / dy;
+            iz = 1 / dz;
+        }
+
+        /**
+         * Get the point at distance {@code t} along the ray.
+         */
+        public Vector at(double t) {
+            return new Vector(ox + t * dx, oy + t * dy, oz + t * dz);
+        }
+
+        /**
+         * Get the distance at which the ray enters the box, or infinity if it
+         * misses the box before distance {@code maxT}.
+         */
+        public double intersectBox(double minX, double minY, double minZ,
+                double maxX, double maxY, double maxZ, double maxT) {
+            double t0 = (minX - ox) * ix, t1 = (maxX - ox) * ix;
+            double tEnter = Math.min(t0, t1), tExit = Math.max(t0, t1);
+            t0 = (minY - oy) * iy;
+            t1 = (maxY - oy) * iy;
+            tEnter = Math.max(tEnter, Math.min(t0, t1));
+            tExit = Math.min(tExit, Math.max(t0, t1));
+            t0 = (minZ - oz) * iz;
+            t1 = (maxZ - oz) * iz;
+            tEnter = Math.max(tEnter, Math.min(t0, t1));
+            tExit = Math.min(tExit, Math.max(t0, t1));
+            // NaN (a zero direction on the border of a slab) counts as a miss
+            if (!(tEnter <= tExit) || tExit < 0 || tEnter > maxT) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return Math.max(0, tEnter);
+        }
+
+        /**
+         * Get the distance at which the ray hits triangle (a, b, c), or
+         * infinity if it misses (Moller-Trumbore).
+         */
+        public double intersectTriangle(double ax, double ay, double az, double bx, double by, double bz,
+                double cx, double cy, double cz) {
+            double e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+            double e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+            double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+            double det = e1x * px + e1y * py + e1z * pz;
+            if (Math.abs(det) < 1e-12) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double inv = 1 / det;
+            double sx = ox - ax, sy = oy - ay, sz = oz - az;
+            double u = (sx * px + sy * py + sz * pz) * inv;
+            if (u < 0 || u > 1) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+            double v = (dx * qx + dy * qy + dz * qz) * inv;
+            if (v < 0 || u + v > 1) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+            return t >= 0 ? t : Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Bounding volume hierarchy over axis aligned boxes, to find the nearest
+     * box on a ray. Nodes are split at the median of the longest axis.
+     */
+    public static class BoundingVolumeHierarchy {
+
+        /** Maximum number of boxes in a leaf. */
+        private static final int LEAF_SIZE = 2;
+
+        /** Boxes of the objects (min x, y, z, max x, y, z). */
+        private final double[] boxes;
+
+        /** Objects in the order of the leaves. */
+        private final int[] objects;
+
+        /** Boxes of the nodes. */
+        private final double[] nodeBoxes;
+
+        /** First child (inner node) or first object (leaf), and number of objects (0 = inner node). */
+        private final int[] nodeStart, nodeCount;
+
+        /** Number of nodes. */
+        private int nodes = 0;
+
+        /**
+         * Build the hierarchy over the first {@code count} boxes of {@code boxes}.
+         */
+        public BoundingVolumeHierarchy(double[] boxes, int count) {
+            this.boxes = boxes;
+            objects = new int[count];
+            for (int i = 0; i < count; i++) {
+                objects[i] = i;
+            }
+            int maxNodes = Math.max(1, 2 * count);
+            nodeBoxes = new double[6 * maxNodes];
+            nodeStart = new int[maxNodes];
+            nodeCount = new int[maxNodes];
+            nodes = 1;
+            build(0, 0, count);
+        }
+
+        /**
+         * Build node {@code node} over objects {@code start} to {@code end}.
+         */
+        private void build(int node, int start, int end) {
+            double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int k = start; k < end; k++) {
+                int o = 6 * objects[k];
+                for (int a = 0; a < 3; a++) {
+                    box[a] = Math.min(box[a], boxes[o + a]);
+                    box[a + 3] = Math.max(box[a + 3], boxes[o + a + 3]);
+                }
+            }
+            System.arraycopy(box, 0, nodeBoxes, 6 * node, 6);
+            if (end - start <= LEAF_SIZE) {
+                nodeStart[node] = start;
+                nodeCount[node] = end - start;
+                return;
+            }
+
+            // Split at the median of the centers along the longest axis
+            int axis = 0;
+            for (int a = 1; a < 3; a++) {
+                if (box[a + 3] - box[a] > box[axis + 3] - box[axis]) {
+                    axis = a;
+                }
+            }
+            int middle = (start + end) >>> 1;
+            select(start, end, middle, axis);
+
+            int left = nodes;
+            nodes += 2;
+            nodeStart[node] = left;
+            nodeCount[node] = 0;
+            build(left, start, middle);
+            build(left + 1, middle, end);
+        }
+
+        /**
+         * Partially sort the objects from {@code start} to {@code end}, such
+         * that object {@code k} has the median center along axis {@code axis}.
+         */
+        private void select(int start, int end, int k, int axis) {
+            int low = start, high = end - 1;
+            while (low < high) {
+                double pivot = center(objects[(low + high) >>> 1], axis);
+                int i = low, j = high;
+                while (i <= j) {
+                    while (center(objects[i], axis) < pivot) {
+                        i++;
+                    }
+                    while (center(objects[j], axis) > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int swap = objects[i];
+                        objects[i++] = objects[j];
+                        objects[j--] = swap;
+                    }
+                }
+                if (k <= j) {
+                    high = j;
+                } else if (k >= i) {
+                    low = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Get the center of the box of object {@code object} along axis {@code axis}.
+         */
+        private double center(int object, int axis) {
+            return boxes[6 * object + axis] + boxes[6 * object + axis + 3];
+        }
+
+        /**
+         * Find the nearest box that {@code ray} enters before distance {@code maxT}.
+         *
+         * @param hit The distance to the box is written to hit[0].
+         * @return    The index of the box, or -1 if there is none.
+         */
+        public int intersect(Ray ray, double maxT, double[] hit) {
+            int nearest = -1;
+            double best = maxT;
+            int[] stack = new int[64];
+            int top = 0;
+            if (objects.length > 0) {
+                stack[top++] = 0;
+            }
+            while (top > 0) {
+                int node = stack[--top];
+                int b = 6 * node;
+                double t = ray.intersectBox(nodeBoxes[b], nodeBoxes[b + 1], nodeBoxes[b + 2],
+                    nodeBoxes[b + 3], nodeBoxes[b + 4], nodeBoxes[b + 5], best);
+                if (t == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (nodeCount[node] == 0) {
+                    stack[top++] = nodeStart[node];
+                    stack[top++] = nodeStart[node] + 1;
+                    continue;
+                }
+                for (int k = nodeStart[node]; k < nodeStart[node] + nodeCount[node]; k++) {
+                    int o = 6 * objects[k];
+                    t = ray.intersectBox(boxes[o], boxes[o + 1], boxes[o + 2],
+                        boxes[o + 3], boxes[o + 4], boxes[o + 5], best);
+                    if (t != Double.POSITIVE_INFINITY && (t < best || nearest < 0)) {
+                        best = t;
+                        nearest = objects[k];
+                    }
+                }
+            }
+            hit[0] = best;
+            return nearest;
+        }
+    }
+
+    /**
+     * Height field of a grid (such as the terrain or the landscape) with a
+     * min-max quadtree over its cells, for fast ray casts and height queries.
+     */
+    public static class HeightField {
+
+        /** Coordinates of the columns (u) and the rows (v), nondecreasing. */
+        private final double[] xs, ys;
+
+        /** Height of every grid point. */
+        private final double[][] heights;
+
+        /** Number of nodes along u and v at every level (level 0 = the cells). */
+        private final int[] widths, depths;
+
+        /** Minimum and maximum height of the nodes at every level, v by v. */
+        private final double[][] minHeights, maxHeights;
+
+        /**
+         * Construct the height field of the grid with coordinates {@code xs}
+         * and {@code ys}, and heights {@code heights} plus {@code offset}.
+         */
+        public HeightField(double[] xs, double[] ys, double[][] heights, double offset) {
+            this.xs = xs;
+            this.ys = ys;
+            this.heights = new double[xs.length][ys.length];
+            for (int u = 0; u < xs.length; u++) {
+                for (int v = 0; v < ys.length; v++) {
+                    this.heights[u][v] = heights[u][v] + offset;
+                }
+            }
+
+            // The levels of the quadtree, up to a single node
+            int levels = 1;
+            for (int n = Math.max(xs.length - 1, ys.length - 1); n > 1; n = (n + 1) / 2) {
+                levels++;
+            }
+            widths = new int[levels];
+            depths = new int[levels];
+            minHeights = new double[levels][];
+            maxHeights = new double[levels][];
+            widths[0] = xs.length - 1;
+            depths[0] = ys.length - 1;
+            minHeights[0] = new double[widths[0] * depths[0]];
+            maxHeights[0] = new double[widths[0] * depths[0]];
+            for (int v = 0; v < depths[0]; v++) {
+                for (int u = 0; u < widths[0]; u++) {
+                    double[] corners = {this.heights[u][v], this.heights[u + 1][v],
+                        this.heights[u][v + 1], this.heights[u + 1][v + 1]};
+                    double min = corners[0], max = corners[0];
+                    for (double h : corners) {
+                        min = Math.min(min, h);
+                        max = Math.max(max, h);
+                    }
+                    minHeights[0][v * widths[0] + u] = min;
+                    maxHeights[0][v * widths[0] + u] = max;
+                }
+            }
+            for (int level = 1; level < levels; level++) {
+                widths[level] = (widths[level - 1] + 1) / 2;
+                depths[level] = (depths[level - 1] + 1) / 2;
+                minHeights[level] = new double[widths[level] * depths[level]];
+                maxHeights[level] = new double[widths[level] * depths[level]];
+                Arrays.fill(minHeights[level], Double.POSITIVE_INFINITY);
+                Arrays.fill(maxHeights[level], Double.NEGATIVE_INFINITY);
+                for (int v = 0; v < depths[level - 1]; v++) {
+                    for (int u = 0; u < widths[level - 1]; u++) {
+                        int child = v * widths[level - 1] + u;
+                        int parent = (v / 2) * widths[level] + u / 2;
+                        minHeights[level][parent] = Math.min(minHeights[level][parent], minHeights[level - 1][child]);
+                        maxHeights[level][parent] = Math.max(maxHeights[level][parent], maxHeights[level - 1][child]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the height at ({@code x}, {@code y}), or negative infinity
+         * outside of the grid.
+         */
+        public double heightAt(double x, double y) {
+            if (x < xs[0] || x > xs[xs.length - 1] || y < ys[0] || y > ys[ys.length - 1]) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            int u = find(xs, x), v = find(ys, y);
+            double fx = xs[u + 1] > xs[u] ? (x - xs[u]) / (xs[u + 1] - xs[u]) : 0;
+            double fy = ys[v + 1] > ys[v] ? (y - ys[v]) / (ys[v + 1] - ys[v]) : 0;
+            double h0 = heights[u][v] + fx * (heights[u + 1][v] - heights[u][v]);
+            double h1 = heights[u][v + 1] + fx * (heights[u + 1][v + 1] - heights[u][v + 1]);
+            return h0 + fy * (h1 - h0);
+        }
+
+        /**
+         * Find the cell of coordinate {@code c} in {@code coordinates}.
+         */
+        private static int find(double[] coordinates, double c) {
+            int low = 0, high = coordinates.length - 2;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (coordinates[middle] <= c) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Get the distance at which {@code ray} hits the height field, or
+         * infinity if it does not before distance {@code maxT}.
+         */
+        public double intersect(Ray ray, double maxT) {
+            int top = widths.length - 1;
+            double best = maxT;
+            for (int v = 0; v < depths[top]; v++) {
+                for (int u = 0; u < widths[top]; u++) {
+                    best = intersect(ray, top, u, v, best);
+                }
+            }
+            return best < maxT ? best : Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Intersect {@code ray} with node (u, v) at level {@code level}, and
+         * get the nearest hit, or {@code best} if that is nearer.
+         */
+        private double intersect(Ray ray, int level, int u, int v, double best) {
+            int u0 = u << level, u1 = Math.min((u + 1) << level, widths[0]);
+            int v0 = v << level, v1 = Math.min((v + 1) << level, depths[0]);
+            int node = v * widths[level] + u;
+            if (ray.intersectBox(xs[u0], ys[v0], minHeights[level][node],
+                    xs[u1], ys[v1], maxHeights[level][node], best) == Double.POSITIVE_INFINITY) {
+                return best;
+            }
+            if (level == 0) {
+                // The two triangles of the cell
+                double x0 = xs[u], x1 = xs[u + 1], y0 = ys[v], y1 = ys[v + 1];
+                double t = ray.intersectTriangle(x0, y0, heights[u][v], x1, y0, heights[u + 1][v],
+                    x1, y1, heights[u + 1][v + 1]);
+                t = Math.min(t, ray.intersectTriangle(x0, y0, heights[u][v], x1, y1, heights[u + 1][v + 1],
+                    x0, y1, heights[u][v + 1]));
+                return Math.min(best, t);
+            }
+
+            // Visit the children front to back
+            int su = ray.dx < 0 ? 1 : 0, sv = ray.dy < 0 ? 1 : 0;
+            for (int j = 0; j < 2; j++) {
+                for (int i = 0; i < 2; i++) {
+                    int cu = 2 * u + (i ^ su), cv = 2 * v + (j ^ sv);
+                    if (cu < widths[level - 1] && cv < depths[level - 1]) {
+                        best = intersect(ray, level - 1, cu, cv, best);
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Ray queries against the scene: picking the robot under the mouse, such
+     * that the camera follows it, and keeping the camera above the ground.
+     * Robots, trees and track parts are found with a bounding volume
+     * hierarchy, and the terrain and the landscape with height fields.
+     */
+    private class RayCaster extends MouseAdapter {
+
+        /** Minimum height of the camera above the ground. */
+        private static final double CLEARANCE = 0.5;
+
+        /** Size of a robot (x, y) and its height. */
+        private static final double ROBOT_SIZE = 1.0, ROBOT_HEIGHT = 2.0;
+
+        /** Pixel and window size of the last click (null = none). */
+        private int[] click;
+
+        /** Height field of the terrain for every track (null = not built yet). */
+        private final HeightField[] terrainFields = new HeightField[raceTrack.getTrackCount()];
+
+        /** Height field of the landscape (null = not built yet). */
+        private HeightField landscapeField;
+
+        /**
+         * Get the first coordinate of every row of {@code grid}.
+         */
+        private double[] column(double[][] grid) {
+            double[] values = new double[grid.length];
+            for (int u = 0; u < grid.length; u++) {
+                values[u] = grid[u][0];
+            }
+            return values;
+        }
+
+        /**
+         * Get the height field of the terrain of track {@code trackNr}.
+         */
+        private synchronized HeightField getTerrainField(int trackNr) {
+            if (terrainFields[trackNr] == null) {
+                // The terrain is drawn 1.5 m lower
+                terrainFields[trackNr] = new HeightField(column(terrain.xCoordinate),
+                    terrain.yCoordinate[0], terrain.getHeights(trackNr), -1.5);
+            }
+            return terrainFields[trackNr];
+        }
+
+        /**
+         * Get the height field of the landscape.
+         */
+        private synchronized HeightField getLandscapeField() {
+            if (landscapeField == null) {
+                // The landscape is drawn 2 m lower
+                landscapeField = new HeightField(column(landscape.xCoordinate),
+                    landscape.yCoordinate[0], landscape.zCoordinate, -2);
+            }
+            return landscapeField;
+        }
+
+        /**
+         * Get the height of the ground at ({@code x}, {@code y}).
+         */
+        public double groundHeight(int trackNr, double x, double y) {
+            return Math.max(getTerrainField(trackNr).heightAt(x, y), getLandscapeField().heightAt(x, y));
+        }
+
+        /**
+         * Get the distance at which {@code ray} hits the ground, or infinity.
+         */
+        public double intersectGround(int trackNr, Ray ray, double maxT) {
+            return Math.min(getTerrainField(trackNr).intersect(ray, maxT), getLandscapeField().intersect(ray, maxT));
+        }
+
+        /**
+         * Get the eye of a camera looking at {@code center} from {@code eye},
+         * moved in front of the hills between them and above the ground.
+         */
+        public Vector keepAboveGround(int trackNr, Vector center, Vector eye) {
+            Vector V = eye.subtract(center);
+            double distance = V.length();
+            if (distance > 1e-9) {
+                double t = intersectGround(trackNr, new Ray(center, V), distance);
+                if (t < distance) {
+                    eye = center.add(V.scale(Math.max(0, t - CLEARANCE) / distance));
+                }
+            }
+            double ground = groundHeight(trackNr, eye.x(), eye.y()) + CLEARANCE;
+            return eye.z() < ground ? new Vector(eye.x(), eye.y(), ground) : eye;
+        }
+
+        /**
+         * Get the robot (or -1) at pixel ({@code x}, {@code y}) of a
+         * {@code width} by {@code height} window showing {@code packet}.
+         */
+        public int pick(FramePacket packet, int x, int y, int width, int height) {
+            if (!sceneLoader.isReady()) {
+                // The trees and the ground are not built yet
+                return -1;
+            }
+            Ray ray = packet.getPixelRay(x, y, width, height);
+
+            // Boxes of the robots, the trees (1.5 m lower) and the track parts
+            int robotCount = robots.length;
+            double[] parts = raceTrack.getTrackParts(packet.trackNr);
+            int partCount = parts.length / RaceTrackModel.TRACK_PART_SIZE;
+            double[] boxes = new double[6 * (robotCount + trees.length + partCount)];
+            for (int i = 0; i < robotCount; i++) {
+                double[] t = packet.robotTranslations;
+                setBox(boxes, i, t[3 * i] - ROBOT_SIZE / 2, t[3 * i + 1] - ROBOT_SIZE / 2, t[3 * i + 2],
+                    t[3 * i] + ROBOT_SIZE / 2, t[3 * i + 1] + ROBOT_SIZE / 2, t[3 * i + 2] + ROBOT_HEIGHT);
+            }
+            Vector[] treesOnTrack = getTreePositions(packet.trackNr);
+            for (int i = 0; i < trees.length; i++) {
+                Vector p = treesOnTrack[i];
+                double radius = trees[i].height / 4;
+                setBox(boxes, robotCount + i, p.x() - radius, p.y() - radius, p.z() - 1.5,
+                    p.x() + radius, p.y() + radius, p.z() - 1.5 + trees[i].height);
+            }
+            for (int i = 0; i < partCount; i++) {
+                // The vertices Q0..Q7 of the part
+                int offset = i * RaceTrackModel.TRACK_PART_SIZE;
+                double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                for (int q = 0; q < 8; q++) {
+                    for (int a = 0; a < 3; a++) {
+                        box[a] = Math.min(box[a], parts[offset + 3 * q + a]);
+                        box[a + 3] = Math.max(box[a + 3], parts[offset + 3 * q + a]);
+                    }
+                }
+                System.arraycopy(box, 0, boxes, 6 * (robotCount + trees.length + i), 6);
+            }
+
+            // The nearest object that is not behind the ground
+            double[] hit = new double[1];
+            int object = new BoundingVolumeHierarchy(boxes, boxes.length / 6)
+                .intersect(ray, Double.POSITIVE_INFINITY, hit);
+            if (object < 0 || object >= robotCount
+                    || intersectGround(packet.trackNr, ray, hit[0]) < hit[0]) {
+                return -1;
+            }
+            return object;
+        }
+
+        /**
+         * Set box {@code index} of {@code boxes}.
+         */
+        private void setBox(double[] boxes, int index, double minX, double minY, double minZ,
+                double maxX, double maxY, double maxZ) {
+            double[] box = {minX, minY, minZ, maxX, maxY, maxZ};
+            System.arraycopy(box, 0, boxes, 6 * index, 6);
+        }
+
+        /**
+         * Remember the click, which is picked on the GL thread.
+         */
+        @Override
+        public synchronized void mouseClicked(MouseEvent event) {
+            Component component = event.getComponent();
+            if (component != null) {
+                click = new int[] {event.getX(), event.getY(), component.getWidth(), component.getHeight()};
+            }
+        }
+
+        /**
+         * Follow the robot that was clicked in the last frame, or stop
+         * following when the click was not on a robot.
+         *
+         * @return Whether the followed robot changed.
+         */
+        public boolean apply() {
+            int[] pixel;
+            synchronized (this) {
+                pixel = click;
+                click = null;
+            }
+            FramePacket packet = frame;
+            if (pixel == null || packet == null) {
+                return false;
+            }
+            int robot = pick(packet, pixel[0], pixel[1], pixel[2], pixel[3]);
+            if (robot == followedRobot) {
+                return false;
+            }
+            followedRobot = robot;
+            return true;
+        }
+
+        /**
+         * Listen to the mouse clicks in the window.
+         */
+        public void listen() {
+            GLAutoDrawable drawable = waitForWindowDrawable();
+            if (drawable instanceof Component) {
+                ((Component)drawable).addMouseListener(this);
+            }
+        }
+
+        /**
+         * Forget the height field of the terrain of track {@code trackNr},
+         * after the track changed.
+         */
+        public synchronized void invalidate(int trackNr) {
+            terrainFields[trackNr] = null;
+        }
+    }
+
+    /**
+     * Moves the control points of the track by dragging them with the middle
+     * mouse button. The moves are applied on the GL thread, between two
+     * frames, and only the segments that use the point are updated.
+     */
+    private class TrackEditor extends MouseAdapter {
+
+        /** Maximum distance from the ray through the pixel to a picked control point. */
+        private static final double PICK_RADIUS = 1.0;
+
+        /** Track and control point that are dragged (index -1 = none). */
+        private int trackNr, index = -1;
+
+        /** Height of the plane in which the point is dragged. */
+        private double height;
+
+        /** Position to which the point moves in the next frame (null = none). */
+        private Vector pending;
+
+        /** Whether the drag ended, such that the terrain and the trees follow the track. */
+        private boolean released;
+
+        /**
+         * Pick the control point under the mouse.
+         */
+        @Override
+        public void mousePressed(MouseEvent event) {
+            FramePacket packet = frame;
+            Component component = event.getComponent();
+            Vector[] points = packet == null ? null : raceTrack.getControlPoints(packet.trackNr);
+            if (event.getButton() != MouseEvent.BUTTON2 || component == null || points == null) {
+                return;
+            }
+            Ray ray = packet.getPixelRay(event.getX(), event.getY(), component.getWidth(), component.getHeight());
+            Vector origin = new Vector(ray.ox, ray.oy, ray.oz);
+            Vector direction = new Vector(ray.dx, ray.dy, ray.dz);
+            int nearest = -1;
+            double nearestDistance = PICK_RADIUS;
+            for (int i = 0; i < points.length; i++) {
+                Vector P = points[i].subtract(origin);
+                double along = P.dot(direction);
+                double distance = P.subtract(direction.scale(along)).length();
+                if (along > 0 && distance < nearestDistance) {
+                    nearest = i;
+                    nearestDistance = distance;
+                }
+            }
+            synchronized (this) {
+                if (nearest >= 0) {
+                    trackNr = packet.trackNr;
+                    index = nearest;
+                    height = points[nearest].z();
+                    released = false;
+                }
+            }
+        }
+
+        /**
+         * Move the picked control point in its horizontal plane.
+         */
+        @Override
+        public void mouseDragged(MouseEvent event) {
+            FramePacket packet = frame;
+            Component component = event.getComponent();
+            if (packet == null || component == null) {
+                return;
+            }
+            Ray ray = packet.getPixelRay(event.getX(), event.getY(), component.getWidth(), component.getHeight());
+            synchronized (this) {
+                if (index < 0 || released || packet.trackNr != trackNr || Math.abs(ray.dz) < 1e-9) {
+                    return;
+                }
+                double t = (height - ray.oz) / ray.dz;
+                if (t > 0) {
+                    pending = ray.at(t);
+                }
+            }
+        }
+
+        /**
+         * End the drag.
+         */
+        @Override
+        public synchronized void mouseReleased(MouseEvent event) {
+            if (event.getButton() == MouseEvent.BUTTON2 && index >= 0) {
+                released = true;
+            }
+        }
+
+        /**
+         * Apply the move of the control point (if any).
+         *
+         * @return Whether the track changed.
+         */
+        public boolean apply() {
+            int nr, i;
+            Vector point;
+            boolean done;
+            synchronized (this) {
+                nr = trackNr;
+                i = index;
+                point = pending;
+                done = released;
+                pending = null;
+                if (released) {
+                    index = -1;
+                    released = false;
+                }
+            }
+            if (point != null) {
+                raceTrack.moveControlPoint(nr, i, point);
+            }
+            if (done) {
+                // The trees and the terrain only follow at the end of the drag
+                trackTreePositions[nr] = null;
+                if (terrain != null) {
+                    terrain.invalidate(nr);
+                }
+                if (floodlights != null) {
+                    floodlights.invalidate(nr);
+                }
+                if (rayCaster != null) {
+                    rayCaster.invalidate(nr);
+                }
+            }
+            return point != null || done;
+        }
+
+        /**
+         * Draws the control points of track {@code trackNr}, with the dragged point in red.
+         */
+        public void draw(int trackNr) {
+            Vector[] points = raceTrack.getControlPoints(trackNr);
+            if (points == null) {
+                return;
+            }
+            int dragged;
+            synchronized (this) {
+                dragged = this.trackNr == trackNr ? index : -1;
+            }
+            gl.glPushAttrib(GL_ENABLE_BIT | GL_CURRENT_BIT | GL_POINT_BIT);
+            gl.glDisable(GL_LIGHTING);
+            gl.glDisable(GL_TEXTURE_2D);
+            gl.glPointSize(6f);
+            gl.glBegin(GL_POINTS);
+            for (int i = 0; i < points.length; i++) {
+                if (i == dragged) {
+                    gl.glColor3f(1f, 0f, 0f);
+                } else {
+                    gl.glColor3f(1f, 1f, 0f);
+                }
+                gl.glVertex3d(points[i].x(), points[i].y(), points[i].z() + 0.05);
+            }
+            gl.glEnd();
+            gl.glPopAttrib();
+        }
+
+        /**
+         * Listen to the mouse in the window.
+         */
+        public void listen() {
+            GLAutoDrawable drawable = waitForWindowDrawable();
+            if (drawable instanceof Component) {
+                ((Component)drawable).addMouseListener(this);
+                ((Component)drawable).addMouseMotionListener(this);
+            }
+        }
+    }
+
+    /**
+     * Floodlights along the track for night races. Fixed-function OpenGL has
+     * eight lights, of which the ambient light and the camera light take two,
+     * so every robot, tree and chunk of the track is lit by the strongest
+     * floodlights near it, which are selected from a {@link LightGrid}.
+     */
+    private class Floodlights {
+
+        /** Number of floodlights that light an object (GL_LIGHT2 to GL_LIGHT7). */
+        private static final int MAX_LIGHTS = 6;
+
+        /** Number of track parts that are lit by the same floodlights. */
+        public static final int CHUNK_PARTS = 10;
+
+        /** Height of the floodlights above the track, and their range. */
+        private static final double HEIGHT = 6, RANGE = 12;
+
+        /** Distance between two floodlights along the track. */
+        private final double spacing;
+
+        /** Floodlights of every track (null = not built yet). */
+        private final LightGrid[] grids = new LightGrid[raceTrack.getTrackCount()];
+
+        /** Floodlights of the track that is being drawn. */
+        private LightGrid grid;
+
+        /** Selected floodlights and their strengths. */
+        private final int[] selected = new int[MAX_LIGHTS];
+        private final double[] strengths = new double[MAX_LIGHTS];
+
+        /** Floodlight of every light slot (-1 = disabled, -2 = unknown). */
+        private final int[] bound = new int[MAX_LIGHTS];
+
+        /** Translation in z of the model view matrix when the slots were bound. */
+        private double boundTranslation;
+
+        /** Parameters of a light, and the bounding box of a chunk, which are reused. */
+        private final float[] ambient = {0f, 0f, 0f, 1f};
+        private final float[] color = new float[4];
+        private final float[] position = new float[4];
+        private final double[] box = new double[6];
+
+        /** Whether the lights per frame are reported. */
+        private final boolean report;
+
+        /** Number of frames, lit objects, bound lights and scored lights since the last report. */
+        private long frames = 0, objects = 0, boundLights = 0, evaluated = 0;
+
+        /** Time of the last report. */
+        private long reportTime = System.nanoTime();
+
+        /**
+         * Construct the floodlights with {@code spacing} meters between them.
+         *
+         * @param report Whether the lights per frame are reported once per second.
+         */
+        public Floodlights(double spacing, boolean report) {
+            this.spacing = spacing;
+            this.report = report;
+        }
+
+        /**
+         * Get the floodlights of track {@code trackNr}.
+         */
+        public synchronized LightGrid getGrid(int trackNr) {
+            if (grids[trackNr] == null) {
+                grids[trackNr] = LightGrid.alongTrack(raceTrack, trackNr, spacing, HEIGHT, RANGE);
+            }
+            return grids[trackNr];
+        }
+
+        /**
+         * Forget the floodlights of track {@code trackNr}, after the track changed.
+         */
+        public synchronized void invalidate(int trackNr) {
+            grids[trackNr] = null;
+        }
+
+        /**
+         * Start a view of track {@code trackNr}, after the camera is set.
+         */
+        public void beginView(int trackNr) {
+            grid = getGrid(trackNr);
+            // The light positions depend on the camera, so bind them again
+            Arrays.fill(bound, -2);
+        }
+
+        /**
+         * Bind the strongest floodlights at the sphere around ({@code x},
+         * {@code y}, {@code z}) with radius {@code radius}, where the model
+         * view matrix is translated by {@code translationZ} in z.
+         */
+        public void bind(double x, double y, double z, double radius, double translationZ) {
+            long before = grid.evaluated;
+            int count = grid.select(x, y, z, radius, MAX_LIGHTS, selected, strengths);
+            evaluated += grid.evaluated - before;
+            objects++;
+            boundLights += count;
+            if (translationZ != boundTranslation) {
+                Arrays.fill(bound, -2);
+                boundTranslation = translationZ;
+            }
+            for (int slot = 0; slot < MAX_LIGHTS; slot++) {
+                int light = slot < count ? selected[slot] : -1;
+                if (bound[slot] == light) {
+                    continue;
+                }
+                bound[slot] = light;
+                int id = GL_LIGHT2 + slot;
+                if (light < 0) {
+                    gl.glDisable(id);
+                    continue;
+                }
+                color[0] = (float)grid.get(light, 3);
+                color[1] = (float)grid.get(light, 4);
+                color[2] = (float)grid.get(light, 5);
+                color[3] = 1f;
+                position[0] = (float)grid.get(light, 0);
+                position[1] = (float)grid.get(light, 1);
+                position[2] = (float)(grid.get(light, 2) - translationZ);
+                position[3] = 1f;
+                double range = grid.get(light, 6);
+                gl.glLightfv(id, GL_AMBIENT, ambient, 0);
+                gl.glLightfv(id, GL_DIFFUSE, color, 0);
+                gl.glLightfv(id, GL_SPECULAR, color, 0);
+                gl.glLightfv(id, GL_POSITION, position, 0);
+                // Down to a tenth at the range of the light
+                gl.glLightf(id, GL_CONSTANT_ATTENUATION, 1f);
+                gl.glLightf(id, GL_LINEAR_ATTENUATION, 0f);
+                gl.glLightf(id, GL_QUADRATIC_ATTENUATION, (float)(9 / (range * range)));
+                gl.glEnable(id);
+            }
+        }
+
+        /**
+         * Bind the strongest floodlights at parts {@code first} to {@code last}
+         * (exclusive) of {@code parts}.
+         */
+        public void bindTrackChunk(double[] parts, int first, int last) {
+            Arrays.fill(box, 0, 3, Double.POSITIVE_INFINITY);
+            Arrays.fill(box, 3, 6, Double.NEGATIVE_INFINITY);
+            for (int i = first; i < last; i++) {
+                // The vertices Q0..Q7 of the part
+                int offset = i * RaceTrackModel.TRACK_PART_SIZE;
+                for (int q = 0; q < 8; q++) {
+                    for (int a = 0; a < 3; a++) {
+                        box[a] = Math.min(box[a], parts[offset + 3 * q + a]);
+                        box[a + 3] = Math.max(box[a + 3], parts[offset + 3 * q + a]);
+                    }
+                }
+            }
+            double dx = box[3] - box[0], dy = box[4] - box[1], dz = box[5] - box[2];
+            bind((box[0] + box[3]) / 2, (box[1] + box[4]) / 2, (box[2] + box[5]) / 2,
+                Math.sqrt(dx * dx + dy * dy + dz * dz) / 2, 0);
+        }
+
+        /**
+         * Disable the floodlights, for the objects that they do not light.
+         */
+        public void unbind() {
+            for (int slot = 0; slot < MAX_LIGHTS; slot++) {
+                if (bound[slot] != -1) {
+                    gl.glDisable(GL_LIGHT2 + slot);
+                    bound[slot] = -1;
+                }
+            }
+        }
+
+        /**
+         * End the frame, and report the lights per frame once per second (if enabled).
+         */
+        public void endFrame() {
+            if (!report) {
+                return;
+            }
+            frames++;
+            long now = System.nanoTime();
+            if (now - reportTime < 1000000000L) {
+                return;
+            }
+            System.out.println(String.format(
+                "Floodlights: %d on the track, %.0f evaluated and %.0f bound for %.0f objects per frame",
+                grid == null ? 0 : grid.getCount(), (double)evaluated / frames,
+                (double)boundLights / frames, (double)objects / frames));
+            frames = objects = boundLights = evaluated = 0;
+            reportTime = now;
+        }
+    }
+
+    /**
+     * Subsystems of the scene to which OpenGL calls are attributed.
+     */
+    public enum Subsystem {
+        /** Projection, camera and lights. */
+        VIEW,
+        /** The robots. */
+        ROBOTS,
+        /** The race track. */
+        TRACK,
+        /** The terrain. */
+        TERRAIN,
+        /** The (more realistic) landscape. */
+        LANDSCAPE,
+        /** The trees. */
+        TREES,
+        /** The atmosphere sphere. */
+        SKY,
+        /** The axis frame. */
+        AXES
+    }
+
+    /**
+     * Kinds of OpenGL calls that are counted per subsystem.
+     */
+    public enum Counter {
+        /** Number of glBegin blocks. */
+        BEGIN,
+        /** Number of vertices submitted. */
+        VERTICES,
+        /** Number of texture binds. */
+        TEXTURE_BINDS,
+        /** Number of material changes. */
+        MATERIAL_CHANGES,
+        /** Number of matrix operations. */
+        MATRIX_OPERATIONS
+    }
+
+    /**
+     * Counts the OpenGL calls per subsystem.
+     *
+     * The counters are filled by a proxy that is installed as the GL
+     * object of the context, such that also the calls made by GLUT and
+     * by the textures are counted. The counters of the last completed
+     * frame can be queried, and every {@code dumpInterval} frames they
+     * are appended to a file as a single line of JSON.
+     */
+    private class GLStatistics implements InvocationHandler {
+
+        /** Dump the counters every this many frames (0 = disabled). */
+        private final int dumpInterval;
+
+        /** File to which the counters are appended. */
+        private final String dumpFile;
+
+        /** The real GL object to which all calls are forwarded. */
+        private GL2 target;
+
+        /** The proxy that counts the calls. */
+        private GL2 proxy;
+
+        /** Counters of the frame that is being drawn. */
+        private long[][] current = new long[Subsystem.values().length][Counter.values().length];
+
+        /** Counters of the last completed frame. */
+        private long[][] last = new long[Subsystem.values().length][Counter.values().length];
+
+        /** The subsystem to which the calls are attributed. */
+        private int subsystem = Subsystem.VIEW.ordinal();
+
+        /** Number of completed frames. */
+        private long frames = 0;
+
+        /** Counter (or null) per GL method, to prevent string matching per call. */
+        private final Map<Method, Counter> counters = new HashMap<Method, Counter>();
+
+        /**
+         * Construct the statistics.
+         *
+         * @param dumpInterval Dump every this many frames (0 = disabled).
+         * @param dumpFile     File to which the counters are appended.
+         */
+        public GLStatistics(int dumpInterval, String dumpFile) {
+            this.dumpInterval = dumpInterval;
+            this.dumpFile = dumpFile;
+        }
+
+        /**
+         * Whether the calls are counted.
+         */
+        public boolean isEnabled() {
+            return dumpInterval > 0;
+        }
+
+        /**
+         * Install the counting proxy as GL object of the context of {@code gl}.
+         *
+         * @param  gl The real GL object.
+         * @return    The counting proxy.
+         */
+        public GL2 install(GL2 gl) {
+            target = gl;
+            proxy = (GL2)Proxy.newProxyInstance(GL2.class.getClassLoader(),
+                new Class<?>[] {GL2.class}, this);
+            // GLUT and the Base class obtain the GL object from the context
+            gl.getContext().setGL(proxy);
+            return proxy;
+        }
+
+        /**
+         * Attribute all following calls to {@code subsystem}.
+         */
+        public void select(Subsystem subsystem) {
+            this.subsystem = subsystem.ordinal();
+        }
+
+        /**
+         * Get a counter of the last completed frame.
+         *
+         * @param  subsystem The subsystem.
+         * @param  counter   The counter.
+         * @return           Value of the counter.
+         */
+        public long get(Subsystem subsystem, Counter counter) {
+            return last[subsystem.ordinal()][counter.ordinal()];
+        }
+
+        /**
+         * Get a counter of the last completed frame summed over all subsystems.
+         */
+        public long total(Counter counter) {
+            long sum = 0;
+            for (Subsystem s : Subsystem.values()) {
+                sum += get(s, counter);
+            }
+            return sum;
+        }
+
+        /**
+         * Close the counters of the current frame.
+         */
+        public void endFrame() {
+            if (!isEnabled()) {
+                return;
+            }
+            // Swap the counters and reset the ones of the next frame
+            long[][] completed = current;
+            current = last;
+            last = completed;
+            for (long[] row : current) {
+                Arrays.fill(row, 0);
+            }
+            frames++;
+            if (frames % dumpInterval == 0) {
+                dump();
+            }
+        }
+
+        /**
+         * Get the counters of the last completed frame as JSON.
+         */
+        public String toJSON() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"frame\":").append(frames);
+            json.append(",\"time\":").append(System.currentTimeMillis());
+            for (Subsystem s : Subsystem.values()) {
+                json.append(",\"").append(s.name().toLowerCase()).append("\":{");
+                for (Counter c : Counter.values()) {
+                    if (c.ordinal() > 0) {
+                        json.append(',');
+                    }
+                    json.append('"').append(c.name().toLowerCase()).append("\":");
+                    json.append(get(s, c));
+                }
+                json.append('}');
+            }
+            return json.append('}').toString();
+        }
+
+        /**
+         * Append the counters of the last completed frame to the dump file.
+         */
+        private void dump() {
+            PrintWriter out = null;
+            try {
+                out = new PrintWriter(new FileWriter(dumpFile, true));
+                out.println(toJSON());
+            } catch (IOException e) {
+                System.err.println("Could not write " + dumpFile + ": " + e.getMessage());
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+
+        /**
+         * Find the counter that is raised by {@code method} (or null).
+         */
+        private Counter counterOf(Method method) {
+            String name = method.getName();
+            if (name.equals("glBegin")) {
+                return Counter.BEGIN;
+            } else if (name.startsWith("glVertex")) {
+                return Counter.VERTICES;
+            } else if (name.equals("glBindTexture")) {
+                return Counter.TEXTURE_BINDS;
+            } else if (name.startsWith("glMaterial")) {
+                return Counter.MATERIAL_CHANGES;
+            } else if (name.startsWith("glTranslate") || name.startsWith("glRotate")
+                    || name.startsWith("glScale") || name.equals("glPushMatrix")
+                    || name.equals("glPopMatrix") || name.equals("glLoadIdentity")
+                    || name.startsWith("glLoadMatrix") || name.startsWith("glMultMatrix")) {
+                return Counter.MATRIX_OPERATIONS;
+            }
+            return null;
+        }
+
+        /**
+         * Count and forward a call to the real GL object.
+         */
+        @Override
+        public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+            Counter counter;
+            if (counters.containsKey(method)) {
+                counter = counters.get(method);
+            } else {
+                counter = counterOf(method);
+                counters.put(method, counter);
+            }
+            if (counter != null) {
+                current[subsystem][counter.ordinal()]++;
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            // Keep handing out the proxy instead of the real GL object
+            return result == target ? proxy : result;
+        }
+    }
+    
+    /**
+     * Histogram of durations with a fixed set of buckets.
+     *
+     * Durations are stored in microseconds. The first 16 buckets have a
+     * width of 1 us, after that every power of two is split into 16 buckets,
+     * such that the relative error of a bucket is at most 1/16. Recording a
+     * duration is a single array increment and never allocates.
+     */
+    private static class Histogram {
+
+        /** Number of buckets per power of two. */
+        private static final int SUB_BUCKETS = 16;
+
+        /** Number of counts per bucket (covers up to 2^63 us). */
+        private final long[] counts = new long[(64 - 3) * SUB_BUCKETS];
+
+        /** Number of recorded durations. */
+        private long count = 0;
+
+        /** Sum of all recorded durations in us. */
+        private long sum = 0;
+
+        /** Largest recorded duration in us. */
+        private long max = 0;
+
+        /**
+         * Get the bucket of duration {@code us}.
+         */
+        private static int bucketOf(long us) {
+            if (us < SUB_BUCKETS) {
+                return (int)us;
+            }
+            // Position of the highest bit, and the 4 bits below it
+            int msb = 63 - Long.numberOfLeadingZeros(us);
+            int sub = (int)(us >> (msb - 4)) & (SUB_BUCKETS - 1);
+            return (msb - 3) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Get the lowest duration in us that falls in {@code bucket}.
+         */
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int msb = bucket / SUB_BUCKETS + 3;
+            long sub = bucket % SUB_BUCKETS;
+            return (1L << msb) + (sub << (msb - 4));
+        }
+
+        /**
+         * Record a duration of {@code nanos} nanoseconds.
+         */
+        public void record(long nanos) {
+            long us = Math.max(0, nanos / 1000);
+            counts[bucketOf(us)]++;
+            count++;
+            sum += us;
+            max = Math.max(max, us);
+        }
+
+        /**
+         * Get the duration in us below which a fraction {@code p} of the durations falls.
+         */
+        public long percentile(double p) {
+            long rank = (long)Math.ceil(p * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank && seen > 0) {
+                    // Report the upper bound of the bucket, but never more than the max
+                    return Math.min(max, lowerBound(bucket + 1) - 1);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Get the mean duration in us.
+         */
+        public double mean() {
+            return count == 0 ? 0 : (double)sum / count;
+        }
+    }
+
+    /**
+     * Measures the time spent in the sections of a frame.
+     *
+     * Every section has its own {@link Histogram}. The p50, p99 and max can
+     * be shown in an overlay on top of the scene, and all buckets are written
+     * to a CSV file when the application exits.
+     */
+    private class Profiler {
+
+        /** Whether the sections are timed. */
+        private final boolean enabled;
+
+        /** Whether the overlay is drawn. */
+        private final boolean overlay;
+
+        /** Histogram per section, in the order of first use. */
+        private final Map<String, Histogram> sections = new LinkedHashMap<String, Histogram>();
+
+        /** Section names of the robots, to prevent string concatenation per frame. */
+        private String[] robotSections = new String[0];
+
+        /** Largest number of robots that get a section each, besides all robots together. */
+        private final int robotLimit;
+
+        /**
+         * Construct the profiler.
+         *
+         * @param enabled    Whether the sections are timed.
+         * @param overlay    Whether the overlay is drawn.
+         * @param csvFile    File to which the histograms are written at exit (or null).
+         * @param robotLimit Largest number of robots that get a section each.
+         */
+        public Profiler(boolean enabled, boolean overlay, final String csvFile, int robotLimit) {
+            this.enabled = enabled;
+            this.robotLimit = robotLimit;
+            this.overlay = enabled && overlay;
+            if (enabled && csvFile != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        writeCSV(csvFile);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Get the start time of a section.
+         */
+        public long start() {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Record the time since {@code start} for section {@code name}.
+         */
+        public void record(String name, long start) {
+            if (!enabled) {
+                return;
+            }
+            long duration = System.nanoTime() - start;
+            synchronized (sections) {
+                Histogram histogram = sections.get(name);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    sections.put(name, histogram);
+                }
+                histogram.record(duration);
+            }
+        }
+
+        /**
+         * Whether every robot of {@code robotCount} robots gets its own
+         * section, besides the "robots" section of all robots together.
+         */
+        public boolean isPerRobot(int robotCount) {
+            return enabled && robotCount <= robotLimit;
+        }
+
+        /**
+         * Record the time since {@code start} for robot {@code i}.
+         */
+        public void recordRobot(int i, long start) {
+            if (!enabled) {
+                return;
+            }
+            if (i >= robotSections.length) {
+                String[] names = new String[i + 1];
+                for (int j = 0; j < names.length; j++) {
+                    names[j] = "robot " + j;
+                }
+                robotSections = names;
+            }
+            record(robotSections[i], start);
+        }
+
+        /**
+         * Draw the p50, p99 and max (in ms) of all sections in the top left corner.
+         */
+        public void drawOverlay() {
+            if (!overlay) {
+                return;
+            }
+            // Draw in window coordinates without lighting, textures and depth
+            gl.glPushAttrib(GL_ENABLE_BIT | GL_CURRENT_BIT);
+            gl.glDisable(GL_LIGHTING);
+            gl.glDisable(GL_TEXTURE_2D);
+            gl.glDisable(GL_DEPTH_TEST);
+            gl.glMatrixMode(GL_PROJECTION);
+            gl.glPushMatrix();
+            gl.glLoadIdentity();
+            gl.glOrtho(0, gs.w, 0, gs.h, -1, 1);
+            gl.glMatrixMode(GL_MODELVIEW);
+            gl.glPushMatrix();
+            gl.glLoadIdentity();
+
+            gl.glColor3f(1f, 1f, 1f);
+            int y = gs.h - 16;
+            gl.glRasterPos2i(8, y);
+            glut.glutBitmapString(GLUT.BITMAP_8_BY_13,
+                String.format("%-14s %8s %8s %8s", "section", "p50", "p99", "max"));
+            synchronized (sections) {
+                for (Map.Entry<String, Histogram> entry : sections.entrySet()) {
+                    Histogram histogram = entry.getValue();
+                    y -= 14;
+                    gl.glRasterPos2i(8, y);
+                    glut.glutBitmapString(GLUT.BITMAP_8_BY_13, String.format("%-14s %8.2f %8.2f %8.2f",
+                        entry.getKey(),
+                        histogram.percentile(0.5) / 1000.0,
+                        histogram.percentile(0.99) / 1000.0,
+                        histogram.max / 1000.0));
+                }
+            }
+
+            gl.glPopMatrix();
+            gl.glMatrixMode(GL_PROJECTION);
+            gl.glPopMatrix();
+            gl.glMatrixMode(GL_MODELVIEW);
+            gl.glPopAttrib();
+        }
+
+        /**
+         * Write all non-empty buckets of all sections to {@code file}.
+         */
+        public void writeCSV(String file) {
+            PrintWriter out = null;
+            try {
+                out = new PrintWriter(new FileWriter(file));
+                out.println("section,from_us,to_us,count");
+                synchronized (sections) {
+                    for (Map.Entry<String, Histogram> entry : sections.entrySet()) {
+                        Histogram histogram = entry.getValue();
+                        for (int bucket = 0; bucket < histogram.counts.length; bucket++) {
+                            if (histogram.counts[bucket] > 0) {
+                                out.println(entry.getKey() + ","
+                                    + Histogram.lowerBound(bucket) + ","
+                                    + (Histogram.lowerBound(bucket + 1) - 1) + ","
+                                    + histogram.counts[bucket]);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write " + file + ": " + e.getMessage());
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Animator that paces frames to a target frame time, and that lowers
+     * the resolution when frames miss their deadline.
+     *
+     * When a frame takes longer than the target, the scene is drawn into
+     * an offscreen framebuffer at a lower scale, which is then upscaled to
+     * the window. When there is headroom for a while, the scale is raised
+     * again. The scale and the number of missed deadlines are available as
+     * metrics, and are printed once per second.
+     */
+    private class FramePacer implements Runnable {
+
+        /** Target frame time in nanoseconds (0 = disabled). */
+        private final long targetNanos;
+
+        /** Lowest scale of the resolution. */
+        private final double minScale;
+
+        /** Current scale of the resolution. */
+        private volatile double scale = 1;
+
+        /** Number of frames that took longer than the target. */
+        private volatile long missedDeadlines = 0;
+
+        /** Number of consecutive frames with headroom. */
+        private int headroomFrames = 0;
+
+        /** Size of the frame that is being drawn. */
+        private int renderWidth, renderHeight;
+
+        /** Offscreen framebuffer with its color and depth buffer (0 = none). */
+        private int framebuffer, colorbuffer, depthbuffer;
+
+        /** Size of the offscreen framebuffer. */
+        private int bufferWidth, bufferHeight;
+
+        /**
+         * Construct the frame pacer.
+         *
+         * @param targetMillis Target frame time in milliseconds (0 = disabled).
+         * @param minScale     Lowest scale of the resolution.
+         */
+        public FramePacer(double targetMillis, double minScale) {
+            this.targetNanos = (long)(targetMillis * 1e6);
+            this.minScale = minScale;
+        }
+
+        /**
+         * Whether the frames are paced by this animator.
+         */
+        public boolean isEnabled() {
+            return targetNanos > 0;
+        }
+
+        /**
+         * Get the current scale of the resolution.
+         */
+        public double getScale() {
+            return scale;
+        }
+
+        /**
+         * Get the number of frames that took longer than the target.
+         */
+        public long getMissedDeadlines() {
+            return missedDeadlines;
+        }
+
+        /**
+         * Replace the animator of the window by this one.
+         */
+        public void start() {
+            stopWindowAnimator();
+            Thread thread = new Thread(this, "FramePacer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Draw frames at the target frame time and adapt the scale.
+         */
+        @Override
+        public void run() {
+            GLAutoDrawable drawable = findWindowDrawable();
+            long deadline = System.nanoTime();
+            long reportTime = deadline;
+            int frames = 0;
+            while (drawable != null) {
+                long start = System.nanoTime();
+                drawable.display();
+                long frameTime = System.nanoTime() - start;
+                frames++;
+
+                if (frameTime > targetNanos) {
+                    // Over budget: lower the resolution
+                    missedDeadlines++;
+                    headroomFrames = 0;
+                    scale = Math.max(minScale, scale * 0.9);
+                } else if (frameTime < 0.7 * targetNanos && ++headroomFrames >= 30) {
+                    // Enough headroom for a second: raise the resolution
+                    headroomFrames = 0;
+                    scale = Math.min(1, scale * 1.05);
+                }
+
+                // Wait for the next deadline, or start right away when behind
+                deadline += targetNanos;
+                long wait = deadline - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else {
+                    deadline = System.nanoTime();
+                }
+
+                if (System.nanoTime() - reportTime >= 1000000000L) {
+                    System.out.println(String.format("Frame pacing: %d fps, scale %.2f, %d missed deadlines",
+                        frames, scale, missedDeadlines));
+                    reportTime = System.nanoTime();
+                    frames = 0;
+                }
+            }
+        }
+
+        /**
+         * Select the buffer for the next frame and compute its size.
+         */
+        public void beginFrame() {
+            renderWidth = gs.w;
+            renderHeight = gs.h;
+            if (!isEnabled() || scale >= 1) {
+                return;
+            }
+            renderWidth = Math.max(1, (int)(gs.w * scale));
+            renderHeight = Math.max(1, (int)(gs.h * scale));
+
+            // (Re)create the offscreen buffer at the size of the window
+            if (framebuffer == 0 || bufferWidth != gs.w || bufferHeight != gs.h) {
+                createFramebuffer(gs.w, gs.h);
+            }
+            gl.glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        }
+
+        /**
+         * Upscale the offscreen buffer to the window if the frame was scaled.
+         */
+        public void endFrame() {
+            if (renderWidth == gs.w && renderHeight == gs.h) {
+                return;
+            }
+            gl.glBindFramebuffer(GL_READ_FRAMEBUFFER, framebuffer);
+            gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+            gl.glBlitFramebuffer(0, 0, renderWidth, renderHeight, 0, 0, gs.w, gs.h,
+                GL_COLOR_BUFFER_BIT, GL_LINEAR);
+            gl.glBindFramebuffer(GL_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+            gl.glViewport(0, 0, gs.w, gs.h);
+        }
+
+        /**
+         * Create the offscreen framebuffer with a color and depth buffer.
+         */
+        private void createFramebuffer(int width, int height) {
+            int[] ids = new int[2];
+            if (framebuffer != 0) {
+                gl.glDeleteFramebuffers(1, new int[] {framebuffer}, 0);
+                gl.glDeleteRenderbuffers(2, new int[] {colorbuffer, depthbuffer}, 0);
+            }
+            gl.glGenFramebuffers(1, ids, 0);
+            framebuffer = ids[0];
+            gl.glGenRenderbuffers(2, ids, 0);
+            colorbuffer = ids[0];
+            depthbuffer = ids[1];
+
+            gl.glBindRenderbuffer(GL_RENDERBUFFER, colorbuffer);
+            gl.glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+            gl.glBindRenderbuffer(GL_RENDERBUFFER, depthbuffer);
+            gl.glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+            gl.glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+            gl.glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+            gl.glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, colorbuffer);
+            gl.glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthbuffer);
+            gl.glBindFramebuffer(GL_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+            bufferWidth = width;
+            bufferHeight = height;
+        }
+    }
+    
+    /**
+     * Captures the frames to disk without stalling the render thread.
+     *
+     * Every frame is read into the next pixel buffer object of a ring, which
+     * returns immediately. The pixels of a PBO are only mapped when the ring
+     * comes around again, by which time the transfer has finished. They are
+     * copied into a pooled buffer and handed to encoder threads, which write
+     * a PNG sequence or a single raw BGRA stream. When no buffer is free or
+     * the queue of the encoders is full, the frame is dropped instead of
+     * waiting. Dropped frames, queue depth and encoder throughput are
+     * printed once per second.
+     */
+    private class FrameCapture {
+
+        /** Directory to which the frames are written (null = disabled). */
+        private final File directory;
+
+        /** Whether a raw BGRA stream is written instead of PNG files. */
+        private final boolean raw;
+
+        /** Pixel buffer objects of the ring. */
+        private final int[] pbos;
+
+        /** Frame number of the frame in every PBO (-1 = empty). */
+        private final long[] pboFrames;
+
+        /** Size of the frames in the PBOs. */
+        private int width, height;
+
+        /** Number of the next frame. */
+        private long frame = 0;
+
+        /** Encoder threads with a bounded queue. */
+        private ThreadPoolExecutor encoders;
+
+        /** Buffers that are free to receive a frame. */
+        private BlockingQueue<byte[]> freeBuffers;
+
+        /** Stream of the raw frames. */
+        private OutputStream rawStream;
+
+        /** Number of dropped frames. */
+        private final AtomicLong dropped = new AtomicLong();
+
+        /** Number of encoded frames and bytes. */
+        private final AtomicLong encoded = new AtomicLong();
+        private final AtomicLong encodedBytes = new AtomicLong();
+
+        /** Time of the last report. */
+        private long reportTime = System.nanoTime();
+
+        /**
+         * Construct the frame capture.
+         *
+         * @param directory Directory to which the frames are written (null = disabled).
+         * @param raw       Whether a raw BGRA stream is written instead of PNG files.
+         * @param ringSize  Number of PBOs in the ring.
+         * @param threads   Number of encoder threads (1 for a raw stream).
+         * @param queueSize Number of frames that may wait for an encoder.
+         */
+        public FrameCapture(String directory, boolean raw, int ringSize, int threads, int queueSize) {
+            this.directory = directory == null ? null : new File(directory);
+            this.raw = raw;
+            this.pbos = new int[Math.max(2, ringSize)];
+            this.pboFrames = new long[pbos.length];
+            if (this.directory == null) {
+                return;
+            }
+            this.directory.mkdirs();
+            // The raw stream must stay in order, so use a single encoder for it
+            int encoderCount = raw ? 1 : Math.max(1, threads);
+            encoders = new ThreadPoolExecutor(encoderCount, encoderCount, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        dropped.incrementAndGet();
+                        ((EncodeTask)task).release();
+                    }
+                });
+            freeBuffers = new ArrayBlockingQueue<byte[]>(queueSize + encoderCount + 1);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            });
+        }
+
+        /**
+         * Whether the frames are captured.
+         */
+        public boolean isEnabled() {
+            return directory != null;
+        }
+
+        /**
+         * Start reading the current frame and hand the oldest frame to the encoders.
+         */
+        public void captureFrame() {
+            if (!isEnabled()) {
+                return;
+            }
+            if (pbos[0] == 0 || width != gs.w || height != gs.h) {
+                createBuffers(gs.w, gs.h);
+            }
+            int index = (int)(frame % pbos.length);
+
+            // The PBO that is about to be reused holds the oldest frame
+            if (pboFrames[index] >= 0) {
+                collect(index);
+            }
+
+            // Start the asynchronous transfer of this frame
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, pbos[index]);
+            gl.glPixelStorei(GL_PACK_ALIGNMENT, 1);
+            gl.glReadPixels(0, 0, width, height, GL_BGRA, GL_UNSIGNED_BYTE, 0);
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            pboFrames[index] = frame;
+            frame++;
+
+            report();
+        }
+
+        /**
+         * Map PBO {@code index}, and hand a copy of its pixels to the encoders.
+         */
+        private void collect(int index) {
+            long number = pboFrames[index];
+            pboFrames[index] = -1;
+            byte[] pixels = freeBuffers.poll();
+            if (pixels == null) {
+                if (encoders.getQueue().remainingCapacity() == 0) {
+                    // All buffers are waiting for the encoders
+                    dropped.incrementAndGet();
+                    return;
+                }
+                pixels = new byte[4 * width * height];
+            }
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, pbos[index]);
+            ByteBuffer mapped = gl.glMapBuffer(GL_PIXEL_PACK_BUFFER, GL_READ_ONLY);
+            if (mapped != null) {
+                mapped.get(pixels, 0, Math.min(pixels.length, mapped.remaining()));
+                gl.glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+            }
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            if (mapped == null) {
+                freeBuffers.offer(pixels);
+                dropped.incrementAndGet();
+                return;
+            }
+            encoders.execute(new EncodeTask(number, pixels, width, height));
+        }
+
+        /**
+         * Create the ring of PBOs for frames of {@code width} by {@code height}.
+         */
+        private void createBuffers(int width, int height) {
+            if (pbos[0] != 0) {
+                gl.glDeleteBuffers(pbos.length, pbos, 0);
+            }
+            this.width = width;
+            this.height = height;
+            // Buffers of the old size can not be reused
+            freeBuffers.clear();
+            gl.glGenBuffers(pbos.length, pbos, 0);
+            for (int i = 0; i < pbos.length; i++) {
+                gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, pbos[i]);
+                gl.glBufferData(GL_PIXEL_PACK_BUFFER, 4L * width * height, null, GL_STREAM_READ);
+                pboFrames[i] = -1;
+            }
+            gl.glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        }
+
+        /**
+         * Print the dropped frames, queue depth and encoder throughput once per second.
+         */
+        private void report() {
+            long now = System.nanoTime();
+            if (now - reportTime < 1000000000L) {
+                return;
+            }
+            double seconds = (now - reportTime) / 1e9;
+            System.out.println(String.format(
+                "Capture: %d frames, %d dropped, queue %d, %.1f frames/s, %.1f MB/s encoded",
+                frame, dropped.get(), encoders.getQueue().size(),
+                encoded.getAndSet(0) / seconds, encodedBytes.getAndSet(0) / seconds / 1e6));
+            reportTime = now;
+        }
+
+        /**
+         * Wait for the encoders to finish the queued frames.
+         */
+        private void finish() {
+            encoders.shutdown();
+            try {
+                encoders.awaitTermination(30, TimeUnit.SECONDS);
+                if (rawStream != null) {
+                    rawStream.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.err.println("Could not close the capture: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Writes a single frame.
+         */
+        private class EncodeTask implements Runnable {
+
+            /** Number of the frame. */
+            private final long number;
+
+            /** BGRA pixels of the frame, bottom row first. */
+            private final byte[] pixels;
+
+            /** Size of the frame. */
+            private final int width, height;
+
+            /**
+             * Construct the task for frame {@code number}.
+             */
+            public EncodeTask(long number, byte[] pixels, int width, int height) {
+                this.number = number;
+                this.pixels = pixels;
+                this.width = width;
+                this.height = height;
+            }
+
+            /**
+             * Return the pixel buffer to the pool.
+             */
+            public void release() {
+                if (pixels.length == 4 * FrameCapture.this.width * FrameCapture.this.height) {
+                    freeBuffers.offer(pixels);
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (raw) {
+                        if (rawStream == null) {
+                            rawStream = new FileOutputStream(new File(directory,
+                                "capture_" + width + "x" + height + ".bgra"));
+                        }
+                        rawStream.write(pixels);
+                        encodedBytes.addAndGet(pixels.length);
+                    } else {
+                        // Convert to an image with the top row first
+                        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                        int[] row = new int[width];
+                        for (int y = 0; y < height; y++) {
+                            int offset = 4 * (height - 1 - y) * width;
+                            for (int x = 0; x < width; x++) {
+                                int i = offset + 4 * x;
+                                row[x] = (pixels[i + 2] & 0xff) << 16 | (pixels[i + 1] & 0xff) << 8 | (pixels[i] & 0xff);
+                            }
+                            image.setRGB(0, y, width, 1, row, 0, width);
+                        }
+                        File file = new File(directory, String.format("frame_%06d.png", number));
+                        ImageIO.write(image, "png", file);
+                        encodedBytes.addAndGet(file.length());
+                    }
+                    encoded.incrementAndGet();
+                } catch (IOException e) {
+                    System.err.println("Could not write frame " + number + ": " + e.getMessage());
+                } finally {
+                    release();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Renders stills that are larger than the window and the maximum viewport.
+     *
+     * The frustum of {@link #setView} is split into tiles, which are drawn
+     * one by one into an offscreen buffer. Every row of tiles is written to
+     * a PNG file as soon as it is complete, such that only a single row of
+     * tiles is held in memory.
+     */
+    private class TiledRenderer implements GLEventListener {
+
+        /** Width and height of the still. */
+        private int imageWidth, imageHeight;
+
+        /** Maximum width and height of a tile. */
+        private int tileSize;
+
+        /** Position and size of the current tile in the still (top left origin). */
+        private int tileX, tileY, tileWidth, tileHeight;
+
+        /** Whether a tile is being drawn. */
+        private boolean rendering = false;
+
+        /** RGB pixels of the current tile (bottom row first). */
+        private ByteBuffer pixels;
+
+        /**
+         * Whether a tile is being drawn.
+         */
+        public boolean isRendering() {
+            return rendering;
+        }
+
+        /**
+         * Set the part of the perspective frustum of the current tile.
+         *
+         * @param fovy Vertical field of view of the still in degrees.
+         * @param near Distance of the near plane.
+         * @param far  Distance of the far plane.
+         */
+        public void setTileFrustum(double fovy, double near, double far) {
+            // Bounds of the frustum of the whole still at the near plane
+            double top = near * Math.tan(Math.toRadians(fovy) / 2);
+            double right = top * imageWidth / imageHeight;
+            // Bounds of the tile, where the rows of the still go from top to bottom
+            double left = -right + 2 * right * tileX / imageWidth;
+            double tileRight = -right + 2 * right * (tileX + tileWidth) / imageWidth;
+            double tileTop = top - 2 * top * tileY / imageHeight;
+            double bottom = top - 2 * top * (tileY + tileHeight) / imageHeight;
+            gl.glFrustum(left, tileRight, bottom, tileTop, near, far);
+        }
+
+        /**
+         * Render a still of {@code width} by {@code height} pixels at
+         * animation time {@code tAnim} to PNG file {@code file}.
+         */
+        public void render(String file, int width, int height, float tAnim) throws IOException {
+            stopWindowAnimator();
+            imageWidth = width;
+            imageHeight = height;
+            tileSize = 1024;
+            GLOffscreenAutoDrawable drawable = createOffscreenDrawable(tileSize, tileSize, false);
+            drawable.addGLEventListener(this);
+            // Create the context, such that the maximum viewport is known
+            drawable.display();
+
+            long start = System.currentTimeMillis();
+            PNGWriter png = new PNGWriter(file, width, height);
+            byte[] row = new byte[3 * width * tileSize];
+            pixels = ByteBuffer.allocateDirect(3 * tileSize * tileSize);
+            try {
+                for (tileY = 0; tileY < height; tileY += tileSize) {
+                    tileHeight = Math.min(tileSize, height - tileY);
+                    for (tileX = 0; tileX < width; tileX += tileSize) {
+                        tileWidth = Math.min(tileSize, width - tileX);
+                        gs.tAnim = tAnim;
+                        pixels.clear();
+                        rendering = true;
+                        drawable.display();
+                        rendering = false;
+                        // Copy the tile into the row, flipping it upside down
+                        for (int y = 0; y < tileHeight; y++) {
+                            pixels.position(3 * (tileHeight - 1 - y) * tileWidth);
+                            pixels.get(row, 3 * (y * width + tileX), 3 * tileWidth);
+                        }
+                    }
+                    png.writeRows(row, tileHeight);
+                    System.out.println("Rendered rows " + tileY + " to " + (tileY + tileHeight) + " of " + height);
+                }
+            } finally {
+                png.close();
+                drawable.destroy();
+            }
+            System.out.println("Wrote " + file + " (" + width + "x" + height + ") in "
+                + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        /**
+         * Prepare the offscreen context and limit the tiles to the maximum viewport.
+         */
+        @Override
+        public void init(GLAutoDrawable drawable) {
+            initializeOffscreen(drawable);
+            int[] maxViewport = new int[2];
+            gl.glGetIntegerv(GL_MAX_VIEWPORT_DIMS, maxViewport, 0);
+            tileSize = Math.min(tileSize, Math.min(maxViewport[0], maxViewport[1]));
+        }
+
+        /**
+         * Draw the scene of the current tile and read its pixels.
+         */
+        @Override
+        public void display(GLAutoDrawable drawable) {
+            if (!rendering) {
+                return;
+            }
+            gl = drawable.getGL().getGL2();
+            gs.w = tileWidth;
+            gs.h = tileHeight;
+            setView();
+            drawScene();
+            gl.glPixelStorei(GL_PACK_ALIGNMENT, 1);
+            gl.glReadPixels(0, 0, tileWidth, tileHeight, GL_RGB, GL_UNSIGNED_BYTE, pixels);
+        }
+
+        @Override
+        public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+        }
+
+        @Override
+        public void dispose(GLAutoDrawable drawable) {
+        }
+    }
+
+    /**
+     * Writes an RGB PNG file row by row, without holding the image in memory.
+     */
+    private static class PNGWriter {
+
+        /** The PNG file. */
+        private final RandomAccessFile file;
+
+        /** Width of the image. */
+        private final int width;
+
+        /** Compressor of the image data, which is written in IDAT chunks. */
+        private final DeflaterOutputStream deflater;
+
+        /**
+         * Open {@code file} and write the header of an image of {@code width} by {@code height}.
+         */
+        public PNGWriter(String file, int width, int height) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            this.file.setLength(0);
+            this.width = width;
+            this.file.write(new byte[] {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+            ByteBuffer header = ByteBuffer.allocate(13);
+            header.putInt(width).putInt(height);
+            // 8 bits per sample, RGB, deflate, no filter, no interlace
+            header.put((byte)8).put((byte)2).put((byte)0).put((byte)0).put((byte)0);
+            writeChunk("IHDR", header.array(), 13);
+            deflater = new DeflaterOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte)b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    byte[] chunk = new byte[length];
+                    System.arraycopy(data, offset, chunk, 0, length);
+                    writeChunk("IDAT", chunk, length);
+                }
+            }, new Deflater(Deflater.BEST_SPEED), 1 << 16);
+        }
+
+        /**
+         * Write {@code count} rows of RGB pixels (top row first).
+         */
+        public void writeRows(byte[] rows, int count) throws IOException {
+            for (int y = 0; y < count; y++) {
+                // Every row starts with its filter type (none)
+                deflater.write(0);
+                deflater.write(rows, 3 * y * width, 3 * width);
+            }
+        }
+
+        /**
+         * Finish the image data and close the file.
+         */
+        public void close() throws IOException {
+            deflater.finish();
+            writeChunk("IEND", new byte[0], 0);
+            file.close();
+        }
+
+        /**
+         * Write a chunk of type {@code type} with {@code length} bytes of {@code data}.
+         */
+        private void writeChunk(String type, byte[] data, int length) throws IOException {
+            byte[] typeBytes = type.getBytes("US-ASCII");
+            CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            crc.update(data, 0, length);
+            file.writeInt(length);
+            file.write(typeBytes);
+            file.write(data, 0, length);
+            file.writeInt((int)crc.getValue());
+        }
+    }
+    
+    /**
+     * Renders a scripted camera path offscreen as fast as possible.
+     *
+     * For every track and every camera mode, {@code frames} frames are
+     * drawn into an offscreen FBO (or pbuffer) without vsync, while the
+     * animation time advances at a fixed 30 frames per second. The window
+     * animator is stopped during the benchmark. Every frame ends with a
+     * glFinish, such that the frame time includes the time of the GPU (or
+     * of Mesa's software renderer with LIBGL_ALWAYS_SOFTWARE=1).
+     */
+    private class OffscreenBenchmark implements GLEventListener {
+
+        /** Number of frames per track and camera mode. */
+        private final int frames;
+
+        /** Width of the offscreen buffer. */
+        private final int width;
+
+        /** Height of the offscreen buffer. */
+        private final int height;
+
+        /** Whether a pbuffer is used instead of an FBO. */
+        private final boolean pbuffer;
+
+        /** Animation time of the next frame. */
+        private float tAnim;
+
+        /**
+         * Construct the benchmark.
+         *
+         * @param frames  Number of frames per track and camera mode.
+         * @param width   Width of the offscreen buffer.
+         * @param height  Height of the offscreen buffer.
+         * @param pbuffer Whether a pbuffer is used instead of an FBO.
+         */
+        public OffscreenBenchmark(int frames, int width, int height, boolean pbuffer) {
+            this.frames = frames;
+            this.width = width;
+            this.height = height;
+            this.pbuffer = pbuffer;
+        }
+
+        /**
+         * Run the benchmark and print the results.
+         */
+        public void run() {
+            stopWindowAnimator();
+
+            GLOffscreenAutoDrawable drawable = createOffscreenDrawable(width, height, pbuffer);
+            drawable.addGLEventListener(this);
+            System.out.println("Rendering " + width + "x" + height + " offscreen ("
+                + (pbuffer ? "pbuffer" : "FBO") + "), " + frames + " frames per view");
+
+            Histogram total = new Histogram();
+            long totalNanos = 0;
+            System.out.println(String.format("%-6s %-7s %9s %9s %9s %9s %9s",
+                "track", "camera", "fps", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+            for (int trackNr = 0; trackNr < raceTrack.getTrackCount(); trackNr++) {
+                for (int camMode = 0; camMode <= 4; camMode++) {
+                    gs.trackNr = trackNr;
+                    gs.camMode = camMode;
+                    Histogram histogram = new Histogram();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < frames; i++) {
+                        long frameStart = System.nanoTime();
+                        drawable.display();
+                        long frameTime = System.nanoTime() - frameStart;
+                        histogram.record(frameTime);
+                        total.record(frameTime);
+                    }
+                    long nanos = System.nanoTime() - start;
+                    totalNanos += nanos;
+                    print(trackNr + "", camMode + "", histogram, frames, nanos);
+                }
+            }
+            print("all", "all", total, total.count, totalNanos);
+            drawable.destroy();
+        }
+
+        /**
+         * Print the frame rate and frame time percentiles of a view.
+         */
+        private void print(String track, String camera, Histogram histogram, long frames, long nanos) {
+            System.out.println(String.format("%-6s %-7s %9.1f %9.2f %9.2f %9.2f %9.2f",
+                track, camera, frames * 1e9 / nanos,
+                histogram.percentile(0.5) / 1000.0,
+                histogram.percentile(0.9) / 1000.0,
+                histogram.percentile(0.99) / 1000.0,
+                histogram.max / 1000.0));
+        }
+
+        /**
+         * Load the textures for the offscreen context and configure OpenGL.
+         */
+        @Override
+        public void init(GLAutoDrawable drawable) {
+            initializeOffscreen(drawable);
+            gs.w = width;
+            gs.h = height;
+            tAnim = 0;
+        }
+
+        /**
+         * Draw a single frame at the next animation time.
+         */
+        @Override
+        public void display(GLAutoDrawable drawable) {
+            gl = drawable.getGL().getGL2();
+            gs.tAnim = tAnim;
+            tAnim += 1f / FPS;
+            setView();
+            drawScene();
+            gl.glFinish();
+        }
+
+        @Override
+        public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+        }
+
+        @Override
+        public void dispose(GLAutoDrawable drawable) {
+        }
+    }
+    
+    /**
+     * Main program execution body, delegates to an instance of
+     * the RobotRace implementation.
+     */
+    public static void main(String args[]) {
+        RobotRace robotRace = new RobotRace();
+
+        // Render frames offscreen as fast as possible
+        // (enabled by running with -Drobotrace.benchmark=N)
+        int frames = Integer.getInteger("robotrace.benchmark", 0);
+        if (frames > 0) {
+            robotRace.sceneLoader.await();
+            robotRace.new OffscreenBenchmark(frames,
+                Integer.getInteger("robotrace.benchmark.width", 800),
+                Integer.getInteger("robotrace.benchmark.height", 600),
+                Boolean.getBoolean("robotrace.benchmark.pbuffer")).run();
+            System.exit(0);
+        }
+
+        // Render a high resolution still of a race moment
+        // (enabled by running with -Drobotrace.still=file.png)
+        String still = System.getProperty("robotrace.still");
+        if (still != null) {
+            int width = Integer.getInteger("robotrace.still.width", 16384);
+            robotRace.sceneLoader.await();
+            try {
+                robotRace.tiledRenderer.render(still, width,
+                    Integer.getInteger("robotrace.still.height", width * 9 / 16),
+                    Float.parseFloat(System.getProperty("robotrace.still.time", "10")));
+            } catch (IOException e) {
+                System.err.println("Could not write " + still + ": " + e.getMessage());
+            }
+            System.exit(0);
+        }
+
+        // Replace the fixed frame rate by adaptive frame pacing
+        if (robotRace.framePacer.isEnabled()) {
+            robotRace.framePacer.start();
+        }
+
+        // Scrub through the race with the keys
+        if (robotRace.timeline.isEnabled()) {
+            robotRace.timeline.listen();
+        }
+
+        // Follow the robot that is clicked
+        if (robotRace.rayCaster != null) {
+            robotRace.rayCaster.listen();
+        }
+
+        // Edit the track with the mouse
+        if (robotRace.trackEditor != null) {
+            robotRace.trackEditor.listen();
+        }
+
+        // Show the loaded tracks and the track of the scenario in the window
+        if (!robotRace.loadedTrackNames.isEmpty() || robotRace.gs.trackNr != 0) {
+            robotRace.showTracks();
+        }
     }
     
 }
\ No newline at end of file
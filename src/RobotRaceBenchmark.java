@@ -0,0 +1,542 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import robotrace.Vector;
+
+/**
+ * Micro benchmarks of the geometry and simulation of the RobotRace.
+ *
+ * Only the models (the parts of the scene without OpenGL calls) are
+ * measured, such that the benchmarks run from the command line without
+ * a display:
+ *
+ * java -cp dist/RobotRace.jar:dist/lib/* RobotRaceBenchmark [options] [filter]
+ *
+ * Options:
+ * -w seconds   Warmup time per benchmark (default 1).
+ * -i n         Number of measured iterations (default 5).
+ * -t seconds   Time per measured iteration (default 1).
+ *
+ * The tracks that are loaded with -Drobotrace.tracks=file,file,... are
+ * measured after the built-in tracks.
+ *
+ * Every benchmark is reported in nanoseconds per operation (with the
+ * 99.9% confidence error over the iterations, from the Student's t
+ * distribution like JMH) and bytes allocated per operation, which are
+ * taken from the allocation counter of the thread.
+ *
+ * @author  Kevin Jacobs
+ * @author  Max Hageluken
+ */
+public class RobotRaceBenchmark {
+
+    /**
+     * A single benchmark.
+     */
+    private static abstract class Benchmark {
+
+        /** Name of the benchmark. */
+        private final String name;
+
+        /**
+         * Construct a benchmark with name {@code name}.
+         */
+        public Benchmark(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Run one operation. The result is consumed to prevent dead code elimination.
+         */
+        public abstract Object run();
+
+        /**
+         * Run one operation and feed its result to the sink.
+         */
+        public void consume() {
+            sink += System.identityHashCode(run());
+        }
+    }
+
+    /**
+     * A benchmark of an operation with a {@code double} result, which is fed
+     * to the sink without boxing, such that the bytes per operation are only
+     * those of the operation.
+     */
+    private static abstract class DoubleBenchmark extends Benchmark {
+
+        /**
+         * Construct a benchmark with name {@code name}.
+         */
+        public DoubleBenchmark(String name) {
+            super(name);
+        }
+
+        /**
+         * Run one operation.
+         */
+        public abstract double runDouble();
+
+        @Override
+        public Object run() {
+            return runDouble();
+        }
+
+        @Override
+        public void consume() {
+            doubleSink += runDouble();
+        }
+    }
+
+    /** Sinks for the results, such that the operations are not optimized away. */
+    private static int sink;
+    private static double doubleSink;
+
+    /** Warmup time per benchmark in nanoseconds. */
+    private long warmupNanos = 1000000000L;
+
+    /** Number of measured iterations. */
+    private int iterations = 5;
+
+    /** Time per measured iteration in nanoseconds. */
+    private long iterationNanos = 1000000000L;
+
+    /** All benchmarks. */
+    private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    /**
+     * Add the tracks of -Drobotrace.tracks to {@code raceTrack}.
+     */
+    private static RobotRace.RaceTrackModel loadTracks(RobotRace.RaceTrackModel raceTrack) {
+        String trackFiles = System.getProperty("robotrace.tracks");
+        if (trackFiles != null) {
+            for (String name : trackFiles.split(",")) {
+                try {
+                    raceTrack.addTrack(RobotRace.TrackFormat.read(new java.io.File(name.trim())));
+                } catch (java.io.IOException ex) {
+                    System.err.println("Could not load track " + name.trim() + ": " + ex.getMessage());
+                }
+            }
+        }
+        return raceTrack;
+    }
+
+    /**
+     * Construct all benchmarks.
+     */
+    public RobotRaceBenchmark() {
+        final Vector[] points = {
+            new Vector(0, 0, 0), new Vector(1, 2, 0), new Vector(3, 2, 0), new Vector(4, 0, 0)
+        };
+        benchmarks.add(new Benchmark("BezierCurve") {
+            private double t = 0;
+            @Override
+            public Object run() {
+                t = (t + 0.001) % 1;
+                return RobotRace.BezierCurve(t, points);
+            }
+        });
+        benchmarks.add(new Benchmark("BezierCurveTangent") {
+            private double t = 0;
+            @Override
+            public Object run() {
+                t = (t + 0.001) % 1;
+                return RobotRace.BezierCurveTangent(t, points);
+            }
+        });
+
+        // Curves of all tracks
+        final RobotRace.RaceTrackModel raceTrack = loadTracks(new RobotRace.RaceTrackModel());
+        for (int trackNr = 0; trackNr < raceTrack.getTrackCount(); trackNr++) {
+            final int nr = trackNr;
+            benchmarks.add(new Benchmark("getCurvePoint track " + nr) {
+                private double t = 0;
+                @Override
+                public Object run() {
+                    t = (t + 0.001) % 1;
+                    return raceTrack.getCurvePoint(t, nr);
+                }
+            });
+            benchmarks.add(new Benchmark("getCurvePoint array track " + nr) {
+                private final double[] point = new double[3];
+                private double t = 0;
+                @Override
+                public Object run() {
+                    t = (t + 0.001) % 1;
+                    raceTrack.getCurvePoint(t, nr, point, 0);
+                    return point;
+                }
+            });
+            benchmarks.add(new Benchmark("getCurveTangent track " + nr) {
+                private double t = 0;
+                @Override
+                public Object run() {
+                    t = (t + 0.001) % 1;
+                    return raceTrack.getCurveTangent(t, nr);
+                }
+            });
+            benchmarks.add(new Benchmark("FrameTable.getFrame track " + nr) {
+                private final double[] frame = new double[9];
+                private double t = 0;
+                @Override
+                public Object run() {
+                    t = (t + 0.001) % 1;
+                    raceTrack.getFrameTable(nr).getFrame(t, frame, 0);
+                    return frame;
+                }
+            });
+            benchmarks.add(new DoubleBenchmark("TrackDistanceField.distance track " + nr) {
+                private int i = 0;
+                @Override
+                public double runDouble() {
+                    i = (i + 7) % 1600;
+                    return raceTrack.getDistanceField(nr).distance(i % 40 - 20.0, i / 40 - 20.0);
+                }
+            });
+            benchmarks.add(new DoubleBenchmark("getTrackLength track " + nr) {
+                @Override
+                public double runDouble() {
+                    return raceTrack.getTrackLength(nr);
+                }
+            });
+            benchmarks.add(new Benchmark("getTrackPart track " + nr) {
+                private final double[] part = new double[RobotRace.RaceTrackModel.TRACK_PART_SIZE];
+                private int i = 0;
+                @Override
+                public Object run() {
+                    i = (i + 1) % 200;
+                    raceTrack.getTrackPart(i / 200.0, (i + 1) / 200.0, nr, part, 0);
+                    return part;
+                }
+            });
+        }
+
+        // Edits of a control point, with the derived tables built
+        final RobotRace.RaceTrackModel editedTrack = loadTracks(new RobotRace.RaceTrackModel());
+        for (int trackNr = 1; trackNr < editedTrack.getTrackCount(); trackNr++) {
+            final int nr = trackNr;
+            editedTrack.getTrackParts(nr);
+            editedTrack.getDistanceField(nr);
+            benchmarks.add(new Benchmark("moveControlPoint track " + nr) {
+                private final Vector point = editedTrack.getControlPoints(nr)[2];
+                private int i = 0;
+                @Override
+                public Object run() {
+                    // Move the point back and forth
+                    i++;
+                    editedTrack.moveControlPoint(nr, 2, point.add(new Vector(0.1 * (i % 2), 0, 0)));
+                    return editedTrack;
+                }
+            });
+        }
+
+        // Loading a track of 10000 segments (a circle) in both formats
+        final int segmentCount = 10000;
+        StringBuilder text = new StringBuilder("start 10 0 0\n");
+        for (int i = 0; i < segmentCount; i++) {
+            double a0 = 2 * Math.PI * i / segmentCount, a1 = 2 * Math.PI * (i + 1) / segmentCount;
+            double h = 10 * 4.0 / 3 * Math.tan((a1 - a0) / 4);
+            text.append(String.format(java.util.Locale.ROOT, "bezier %.6f %.6f 0 %.6f %.6f 0 %.6f %.6f 0%n",
+                10 * Math.cos(a0) - h * Math.sin(a0), 10 * Math.sin(a0) + h * Math.cos(a0),
+                10 * Math.cos(a1) + h * Math.sin(a1), 10 * Math.sin(a1) - h * Math.cos(a1),
+                10 * Math.cos(a1), 10 * Math.sin(a1)));
+        }
+        final byte[] textTrack = text.toString().getBytes(java.nio.charset.Charset.forName("UTF-8"));
+        final byte[] binaryTrack;
+        try {
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            RobotRace.TrackFormat.writeBinary(
+                RobotRace.TrackFormat.read(new java.io.ByteArrayInputStream(textTrack)), out);
+            binaryTrack = out.toByteArray();
+        } catch (java.io.IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (final boolean binary : new boolean[] {false, true}) {
+            benchmarks.add(new Benchmark("TrackFormat.read " + segmentCount + (binary ? " binary" : " text")) {
+                @Override
+                public Object run() {
+                    try {
+                        return RobotRace.TrackFormat.read(new java.io.ByteArrayInputStream(
+                            binary ? binaryTrack : textTrack));
+                    } catch (java.io.IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            });
+        }
+
+        // 1000 lights on a field of 200 by 200 meters
+        java.util.Random lightRandom = new java.util.Random(1);
+        double[] lights = new double[1000 * RobotRace.LightGrid.LIGHT_SIZE];
+        for (int i = 0; i < lights.length; i += RobotRace.LightGrid.LIGHT_SIZE) {
+            lights[i] = 200 * lightRandom.nextDouble() - 100;
+            lights[i + 1] = 200 * lightRandom.nextDouble() - 100;
+            lights[i + 2] = 6;
+            lights[i + 3] = lights[i + 4] = lights[i + 5] = 1;
+            lights[i + 6] = 12;
+        }
+        final RobotRace.LightGrid lightGrid = new RobotRace.LightGrid(lights, 12);
+        benchmarks.add(new Benchmark("LightGrid.select 1000") {
+            private final int[] selected = new int[6];
+            private final double[] strengths = new double[6];
+            private double t = 0;
+            @Override
+            public Object run() {
+                t = (t + 0.001) % 1;
+                lightGrid.select(180 * t - 90, 90 - 180 * t, 1, 1.5, 6, selected, strengths);
+                return selected;
+            }
+        });
+
+        // Grids of several sizes
+        for (final int steps : new int[] {50, 100, 200, 400}) {
+            benchmarks.add(new Benchmark("TerrainModel " + steps + "x" + steps) {
+                @Override
+                public Object run() {
+                    return new RobotRace.TerrainModel(steps, steps);
+                }
+            });
+        }
+        for (final int steps : new int[] {10, 50, 100}) {
+            benchmarks.add(new Benchmark("LandscapeModel " + steps + "x" + steps) {
+                @Override
+                public Object run() {
+                    return new RobotRace.LandscapeModel(steps, steps);
+                }
+            });
+        }
+
+        // Ray casts against the terrain
+        final RobotRace.TerrainModel terrain = new RobotRace.TerrainModel(200, 200);
+        double[] xs = new double[200];
+        for (int u = 0; u < xs.length; u++) {
+            xs[u] = terrain.xCoordinate[u][0];
+        }
+        final RobotRace.HeightField heightField = new RobotRace.HeightField(
+            xs, terrain.yCoordinate[0], terrain.zCoordinate, -1.5);
+        benchmarks.add(new DoubleBenchmark("HeightField.intersect 200x200") {
+            private double angle = 0;
+            @Override
+            public double runDouble() {
+                // Orbit around the center, looking down on it
+                angle += 0.01;
+                Vector eye = new Vector(25 * Math.cos(angle), 25 * Math.sin(angle), 8);
+                return heightField.intersect(new RobotRace.Ray(eye, eye.scale(-1)), Double.POSITIVE_INFINITY);
+            }
+        });
+
+        // Trees and robots
+        benchmarks.add(new Benchmark("TreeModel") {
+            @Override
+            public Object run() {
+                return new RobotRace.TreeModel(4.2);
+            }
+        });
+        final RobotRace.RobotModel robot = new RobotRace.RobotModel();
+        benchmarks.add(new Benchmark("RobotModel.update") {
+            private double tAnim = 0;
+            @Override
+            public Object run() {
+                tAnim += 0.033;
+                robot.update(tAnim);
+                return robot;
+            }
+        });
+        benchmarks.add(new Benchmark("RobotModel.setDirection") {
+            private double t = 0;
+            @Override
+            public Object run() {
+                t = (t + 0.001) % 1;
+                robot.setDirection(raceTrack.getTangent(t));
+                return robot;
+            }
+        });
+
+        // Lanes of large robot fields
+        for (final int robotCount : new int[] {100, 1000, 10000}) {
+            final RobotRace.LaneModel lanes = new RobotRace.LaneModel(robotCount, 4, 1.0, 2.0);
+            // Distances along a track of 400 meters
+            final double[] distances = new double[robotCount];
+            for (int i = 0; i < robotCount; i++) {
+                distances[i] = 400.0 * i / robotCount;
+            }
+            benchmarks.add(new Benchmark("LaneModel " + robotCount + " robots") {
+                @Override
+                public Object run() {
+                    for (int i = 0; i < robotCount; i++) {
+                        // Robots at slightly different speeds, such that they overtake
+                        distances[i] += 400 * (1 + (i % 7) * 0.01) / (30 * 20.0);
+                    }
+                    lanes.update(distances, 400, 1.0 / 30);
+                    return lanes;
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread (or -1 if unsupported).
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Run {@code benchmark} for {@code nanos} nanoseconds.
+     *
+     * @return Number of operations, elapsed nanoseconds and allocated bytes.
+     */
+    private static long[] measure(Benchmark benchmark, long nanos) {
+        long operations = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            // Check the clock only every 64 operations
+            for (int i = 0; i < 64; i++) {
+                benchmark.consume();
+            }
+            operations += 64;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return new long[] {operations, elapsed, allocatedBytes() - bytes};
+    }
+
+    /**
+     * Get the natural logarithm of the gamma function at {@code x} > 0 (Lanczos).
+     */
+    private static double logGamma(double x) {
+        double[] c = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+            -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+        double y = x;
+        double sum = 1.000000000190015;
+        for (double coefficient : c) {
+            sum += coefficient / ++y;
+        }
+        double t = x + 5.5;
+        return (x + 0.5) * Math.log(t) - t + Math.log(2.5066282746310005 * sum / x);
+    }
+
+    /**
+     * Get the regularized incomplete beta function I_x(a, b), by its
+     * continued fraction (Lentz).
+     */
+    private static double incompleteBeta(double x, double a, double b) {
+        if (x <= 0 || x >= 1) {
+            return x <= 0 ? 0 : 1;
+        }
+        if (x > (a + 1) / (a + b + 2)) {
+            // The continued fraction converges fast on the other side
+            return 1 - incompleteBeta(1 - x, b, a);
+        }
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b)
+            + a * Math.log(x) + b * Math.log(1 - x)) / a;
+        double tiny = 1e-300;
+        double c = 1, d = 1 - (a + b) * x / (a + 1);
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        double f = d;
+        for (int m = 1; m <= 300; m++) {
+            for (int odd = 0; odd < 2; odd++) {
+                double numerator = odd == 0
+                    ? m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m))
+                    : -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+                d = 1 + numerator * d;
+                d = 1 / (Math.abs(d) < tiny ? tiny : d);
+                c = 1 + numerator / c;
+                c = Math.abs(c) < tiny ? tiny : c;
+                f *= c * d;
+            }
+            if (Math.abs(c * d - 1) < 1e-15) {
+                break;
+            }
+        }
+        return front * f;
+    }
+
+    /**
+     * Get the critical value of the Student's t distribution with
+     * {@code df} degrees of freedom for a two-sided confidence of
+     * {@code confidence}, by bisection of its distribution function.
+     */
+    private static double studentT(double confidence, int df) {
+        // P(|T| > t) = I_x(df / 2, 1 / 2) with x = df / (df + t^2)
+        double alpha = 1 - confidence;
+        double low = 0, high = 1e9;
+        for (int i = 0; i < 200; i++) {
+            double t = (low + high) / 2;
+            if (incompleteBeta(df / (df + t * t), df / 2.0, 0.5) > alpha) {
+                low = t;
+            } else {
+                high = t;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    /**
+     * Run all benchmarks of which the name contains {@code filter}.
+     */
+    public void run(String filter) {
+        System.out.println(String.format("%-32s %6s %14s %12s %14s",
+            "Benchmark", "Iter", "ns/op", "Error", "B/op"));
+        for (Benchmark benchmark : benchmarks) {
+            if (filter != null && !benchmark.name.contains(filter)) {
+                continue;
+            }
+            measure(benchmark, warmupNanos);
+
+            double[] scores = new double[iterations];
+            long operations = 0;
+            long bytes = 0;
+            for (int i = 0; i < iterations; i++) {
+                long[] result = measure(benchmark, iterationNanos);
+                scores[i] = (double)result[1] / result[0];
+                operations += result[0];
+                bytes += result[2];
+            }
+
+            // Mean and the 99.9% error over the iterations (none for a single iteration)
+            double mean = 0;
+            for (double score : scores) {
+                mean += score / iterations;
+            }
+            double variance = 0;
+            for (double score : scores) {
+                variance += (score - mean) * (score - mean) / Math.max(1, iterations - 1);
+            }
+            double error = iterations < 2 ? Double.NaN
+                : studentT(0.999, iterations - 1) * Math.sqrt(variance / iterations);
+            System.out.println(String.format("%-32s %6d %14.3f %12.3f %14.1f",
+                benchmark.name, iterations, mean, error,
+                bytes < 0 ? Double.NaN : (double)bytes / operations));
+        }
+    }
+
+    /**
+     * Parse the options and run the benchmarks.
+     */
+    public static void main(String args[]) {
+        RobotRaceBenchmark benchmark = new RobotRaceBenchmark();
+        String filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-w") && i + 1 < args.length) {
+                benchmark.warmupNanos = (long)(Double.parseDouble(args[++i]) * 1e9);
+            } else if (args[i].equals("-i") && i + 1 < args.length) {
+                benchmark.iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                benchmark.iterationNanos = (long)(Double.parseDouble(args[++i]) * 1e9);
+            } else {
+                filter = args[i];
+            }
+        }
+        benchmark.run(filter);
+        if (sink == 42 || doubleSink == 42) {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import robotrace.Vector;
+
+/**
+ * Loopback client of the telemetry server of the RobotRace, which measures
+ * the throughput of the server and checks the messages:
+ *
+ * java -cp dist/RobotRace.jar:dist/lib/* RobotRaceTelemetryClient [options]
+ *
+ * Options:
+ * -p port      Port of a running RobotRace (default 0: start a server with
+ *              a simulated race in this process, without a display).
+ * -c n         Number of subscribers (default 16).
+ * -r rate      Snapshots per second of the simulated race (default 1000).
+ * -n robots    Number of robots of the simulated race (default 4).
+ * -t seconds   Duration of the measurement (default 5).
+ *
+ * @author  Kevin Jacobs
+ * @author  Max Hageluken
+ */
+public class RobotRaceTelemetryClient {
+
+    /** Port of the server (0 = start a simulated race). */
+    private int port = 0;
+
+    /** Number of subscribers. */
+    private int clients = 16;
+
+    /** Snapshots per second of the simulated race. */
+    private double rate = 1000;
+
+    /** Number of robots of the simulated race. */
+    private int robotCount = 4;
+
+    /** Duration of the measurement in nanoseconds. */
+    private long durationNanos = 5000000000L;
+
+    /**
+     * A subscriber with its receive buffer and counters.
+     */
+    private static class Subscriber {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long messages = 0;
+        long bytes = 0;
+        long missed = 0;
+        int sequence = -1;
+    }
+
+    /**
+     * Publish a simulated race of {@code robotCount} robots on the O-track.
+     */
+    private void simulate(final RobotRace.TelemetryServer server) {
+        Thread thread = new Thread("Simulated race") {
+            @Override
+            public void run() {
+                RobotRace.RaceTrackModel raceTrack = new RobotRace.RaceTrackModel();
+                double[] trackTimes = new double[robotCount];
+                Vector[] positions = new Vector[robotCount];
+                double[] headings = new double[robotCount];
+                long start = System.nanoTime();
+                // Publish twice per snapshot, such that every snapshot is new
+                long interval = (long)(1e9 / (2 * rate));
+                for (long frame = 0; ; frame++) {
+                    double tAnim = (System.nanoTime() - start) / 1e9;
+                    for (int i = 0; i < robotCount; i++) {
+                        trackTimes[i] = tAnim / 20.0 + 0.01 * i;
+                        positions[i] = raceTrack.getCurvePoint(trackTimes[i], 1);
+                        headings[i] = Math.toDegrees(Math.atan2(
+                            raceTrack.getCurveTangent(trackTimes[i], 1).y(),
+                            raceTrack.getCurveTangent(trackTimes[i], 1).x()));
+                    }
+                    server.publish(tAnim, trackTimes, positions, headings);
+                    long sleep = start + (frame + 1) * interval - System.nanoTime();
+                    if (sleep > 0) {
+                        try {
+                            Thread.sleep(sleep / 1000000, (int)(sleep % 1000000));
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Read all complete messages in the buffer of {@code subscriber}.
+     */
+    private static void parse(Subscriber subscriber) throws IOException {
+        ByteBuffer buffer = subscriber.buffer;
+        buffer.flip();
+        while (buffer.remaining() >= 4 && buffer.remaining() >= 4 + buffer.getInt(buffer.position())) {
+            int length = buffer.getInt();
+            int end = buffer.position() + length;
+            if (buffer.getInt() != RobotRace.TelemetryServer.MAGIC) {
+                throw new IOException("Bad message");
+            }
+            int sequence = buffer.getInt();
+            buffer.getDouble();
+            int robots = buffer.getInt();
+            if (length != RobotRace.TelemetryServer.HEADER_SIZE - 4
+                    + robots * RobotRace.TelemetryServer.ROBOT_SIZE) {
+                throw new IOException("Bad message length " + length);
+            }
+            if (subscriber.sequence >= 0 && sequence != subscriber.sequence + 1) {
+                subscriber.missed += sequence - subscriber.sequence - 1;
+            }
+            subscriber.sequence = sequence;
+            subscriber.messages++;
+            subscriber.bytes += 4 + length;
+            buffer.position(end);
+        }
+        buffer.compact();
+        if (buffer.position() >= 4 && 4 + buffer.getInt(0) > buffer.capacity()) {
+            // Grow for a message of more robots
+            ByteBuffer grown = ByteBuffer.allocate(4 + buffer.getInt(0));
+            buffer.flip();
+            grown.put(buffer);
+            subscriber.buffer = grown;
+        }
+    }
+
+    /**
+     * Connect the subscribers and report the throughput.
+     */
+    public void run() throws IOException {
+        RobotRace.TelemetryServer server = null;
+        int serverPort = port;
+        if (port == 0) {
+            server = new RobotRace.TelemetryServer(0, true, rate);
+            server.start();
+            simulate(server);
+            serverPort = server.getPort();
+        }
+
+        Selector selector = Selector.open();
+        Subscriber[] subscribers = new Subscriber[clients];
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", serverPort));
+            channel.configureBlocking(false);
+            subscribers[i] = new Subscriber();
+            channel.register(selector, SelectionKey.OP_READ, subscribers[i]);
+        }
+
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        while (System.nanoTime() < end) {
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                Subscriber subscriber = (Subscriber)key.attachment();
+                if (((SocketChannel)key.channel()).read(subscriber.buffer) < 0) {
+                    throw new IOException("Disconnected by the server");
+                }
+                parse(subscriber);
+            }
+            selector.selectedKeys().clear();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long messages = 0, bytes = 0, missed = 0;
+        for (Subscriber subscriber : subscribers) {
+            messages += subscriber.messages;
+            bytes += subscriber.bytes;
+            missed += subscriber.missed;
+        }
+        System.out.println(String.format("%d subscribers: %.0f messages/s per subscriber, "
+            + "%.0f messages/s and %.2f MB/s in total, %d snapshots skipped",
+            clients, messages / seconds / clients, messages / seconds, bytes / seconds / 1e6, missed));
+        if (server != null) {
+            System.out.println(String.format("Server: %d snapshots sent, %d skipped for slow subscribers, "
+                + "%d snapshot buffers", server.getSent(), server.getSkipped(), server.getBuffers()));
+            server.close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Parse the options and run the client.
+     */
+    public static void main(String args[]) throws IOException {
+        RobotRaceTelemetryClient client = new RobotRaceTelemetryClient();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("-p")) {
+                client.port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-c")) {
+                client.clients = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-r")) {
+                client.rate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-n")) {
+                client.robotCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-t")) {
+                client.durationNanos = (long)(Double.parseDouble(args[++i]) * 1e9);
+            }
+        }
+        client.run();
+    }
+}